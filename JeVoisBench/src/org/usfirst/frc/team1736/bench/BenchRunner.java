@@ -0,0 +1,111 @@
+package org.usfirst.frc.team1736.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Minimal benchmark harness. Runs an operation through a warmup phase, then a timed phase, and reports
+ * throughput, per-operation latency percentiles and bytes allocated per operation.
+ * <br>
+ * <br>
+ * Allocation is read from the HotSpot per-thread allocation counter, so it only covers the benchmark
+ * thread. That is exactly what we want for the packet pipeline, which runs on a single thread on the robot.
+ */
+public class BenchRunner {
+
+    /** One unit of benchmarked work. Returns the number of items (ex: packets) it processed. */
+    public interface BenchOp {
+        int run();
+    }
+
+    /** Default number of timed operations, suitable for sub-microsecond operations */
+    public static final int DEFAULT_OPS = 1000000;
+    private static final int MAX_LATENCY_SAMPLES = 100000;
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final long[] latencySamples = new long[MAX_LATENCY_SAMPLES];
+    private final String filter;
+
+    // Keeps the JIT from throwing away results
+    private long blackhole = 0;
+
+    public BenchRunner(String filter) {
+        this.filter = filter;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            threadBean = null;
+        }
+    }
+
+    /**
+     * Runs a single benchmark and prints one line of results. Skipped if it does not match the filter.
+     * @param name benchmark name, used in the report and for filtering
+     * @param itemName what a single item is, ex: "pkt"
+     * @param numOps number of timed operations. A fifth as many are run first as warmup.
+     * @param op operation to run
+     */
+    public void run(String name, String itemName, int numOps, BenchOp op) {
+        if (!isSelected(name)) {
+            return;
+        }
+
+        int latencySamples_n = Math.min(numOps / 10, MAX_LATENCY_SAMPLES);
+
+        for (int i = 0; i < numOps / 5; i++) {
+            blackhole += op.run();
+        }
+
+        // Throughput and allocation, measured over one uninterrupted run
+        long items = 0;
+        long allocStart = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numOps; i++) {
+            items += op.run();
+        }
+        long elapsed_ns = System.nanoTime() - startTime;
+        long allocated = allocatedBytes() - allocStart;
+        blackhole += items;
+
+        // Latency, timing each operation on its own
+        for (int i = 0; i < latencySamples_n; i++) {
+            long opStart = System.nanoTime();
+            blackhole += op.run();
+            latencySamples[i] = System.nanoTime() - opStart;
+        }
+        Arrays.sort(latencySamples, 0, latencySamples_n);
+
+        double perItem = items > 0 ? items : 1;
+        System.out.println(String.format("%-32s %12.0f %s/s %9.1f ns/%s | op latency p50 %7d ns  p99 %7d ns  max %9d ns | %8.2f B/%s",
+                name,
+                items / (elapsed_ns / 1.0e9), itemName,
+                elapsed_ns / perItem, itemName,
+                latencySamples[latencySamples_n / 2],
+                latencySamples[(int) (latencySamples_n * 0.99)],
+                latencySamples[latencySamples_n - 1],
+                allocated < 0 ? Double.NaN : allocated / perItem, itemName));
+    }
+
+    /**
+     * Returns true if a benchmark with the given name matches the filter, for benchmarks which do their own timing.
+     */
+    public boolean isSelected(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    /**
+     * Returns something derived from every benchmark result, so nothing can be optimized away.
+     */
+    public long getBlackhole() {
+        return blackhole;
+    }
+
+    private long allocatedBytes() {
+        if (threadBean == null) {
+            return -1;
+        }
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,412 @@
+package org.usfirst.frc.team1736.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.usfirst.frc.team1736.lib.LoadMon.CasseroleRIOLoadMonitor;
+import org.usfirst.frc.team1736.lib.LoopTiming.LoopTimingMonitor;
+import org.usfirst.frc.team1736.lib.MatchLog.BinaryMatchLog;
+import org.usfirst.frc.team1736.lib.Telemetry.TelemetrySink;
+import org.usfirst.frc.team1736.robot.JeVoisInterface;
+import org.usfirst.frc.team1736.robot.JeVoisManager;
+import org.usfirst.frc.team1736.robot.JeVoisPacketFramer;
+import org.usfirst.frc.team1736.robot.SimulatedJeVoisTransport;
+import org.usfirst.frc.team1736.robot.TargetList;
+import org.usfirst.frc.team1736.robot.TargetObservation;
+
+/**
+ * Entry point for the off-robot benchmarks. Pass a name fragment as the first argument to only run
+ * the benchmarks which contain it.
+ * <br>
+ * <br>
+ * Covers:
+ * <ul>
+ * <li>JeVoisInterface.parsePacket() on pre-built packet strings, with and without a four target list</li>
+ * <li>The byte framer used by blockAndGetPacket(), fed clean, fragmented, garbage-interleaved and bursty text streams, and binary packets</li>
+ * <li>The same framer on the clean stream with latency tracing stamps turned on</li>
+ * <li>CasseroleRIOLoadMonitor.periodicUpdate() reading the real /proc files of the host</li>
+ * <li>LoopTimingMonitor overhead for one three-phase loop</li>
+ * <li>TelemetrySink.log() on the calling thread, with the writer formatting into a discarding stream</li>
+ * <li>Writing one full 8-value record into a BinaryMatchLog in a temp file</li>
+ * <li>Listener CPU time for one to three simulated cameras, each with its own thread or all sharing a JeVoisManager</li>
+ * <li>Packet latency, from the simulated camera sending it until it's published, with the listener blocking on reads
+ * versus polling</li>
+ * </ul>
+ */
+public class JeVoisBenchmarks {
+
+    // Camera counts and packet rates compared in the manager benchmark, and how long each setup is measured
+    private static final int[] MANAGER_CAMERA_COUNTS = {1, 2, 3};
+    private static final double[] MANAGER_PACKET_RATES_HZ = {60, 500};
+    private static final int MANAGER_SETTLE_MS = 500;
+    private static final int MANAGER_RUN_MS = 2000;
+
+    // Packet rates compared in the read mode benchmark, and how long each mode is measured
+    private static final double[] READ_MODE_PACKET_RATES_HZ = {60, 250};
+    private static final int READ_MODE_SETTLE_MS = 500;
+    private static final int READ_MODE_RUN_MS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        BenchRunner runner = new BenchRunner(args.length > 0 ? args[0] : null);
+
+        benchParsePacket(runner);
+        benchFraming(runner);
+        benchLoadMonitor(runner);
+        benchLoopTiming(runner);
+        benchTelemetry(runner);
+        benchMatchLog(runner);
+        benchManager(runner);
+        benchReadMode(runner);
+
+        System.out.println("(blackhole " + runner.getBlackhole() + ")");
+        System.exit(0);
+    }
+
+    private static void benchParsePacket(BenchRunner runner) {
+        final JeVoisInterface cam = new JeVoisInterface();
+        final Random rand = new Random(1736);
+        final String[] packets = new String[1024];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = PacketStreams.makePacketBody(rand, i);
+        }
+
+        runner.run("parsePacket", "pkt", BenchRunner.DEFAULT_OPS, new BenchRunner.BenchOp() {
+            int idx = 0;
+            public int run() {
+                idx = (idx + 1) & (packets.length - 1);
+                return cam.parsePacket(packets[idx], 0.0) == 0 ? 1 : 0;
+            }
+        });
+
+        // Same again with four targets listed in each packet, reading the list back out each time
+        final String[] multiPackets = new String[1024];
+        for (int i = 0; i < multiPackets.length; i++) {
+            StringBuilder sb = new StringBuilder(PacketStreams.makePacketBody(rand, packets.length + i));
+            sb.append(",4");
+            for (int j = 0; j < 4; j++) {
+                int width = 5 + rand.nextInt(100);
+                int height = 5 + rand.nextInt(100);
+                int x = rand.nextInt(352 - width);
+                int y = rand.nextInt(288 - height);
+                sb.append(String.format(",%d,%d,%d,%d,%d,%d,%.1f", x + width / 2, y + height / 2, x, y, width, height, width * height * 0.8));
+            }
+            multiPackets[i] = sb.toString();
+        }
+        final TargetList targets = new TargetList();
+
+        runner.run("parsePacket/multiTarget", "pkt", BenchRunner.DEFAULT_OPS, new BenchRunner.BenchOp() {
+            int idx = 0;
+            public int run() {
+                idx = (idx + 1) & (multiPackets.length - 1);
+                cam.parsePacket(multiPackets[idx], 0.0);
+                cam.getTargets(targets);
+                return targets.getCount();
+            }
+        });
+    }
+
+    private static void benchFraming(BenchRunner runner) {
+        for (int type = 0; type < PacketStreams.NAMES.length; type++) {
+            final PacketStreams stream = PacketStreams.build(type);
+            final JeVoisPacketFramer framer = new JeVoisPacketFramer();
+
+            runner.run("framing/" + PacketStreams.NAMES[type], "pkt", BenchRunner.DEFAULT_OPS, new BenchRunner.BenchOp() {
+                public int run() {
+                    int packets = 0;
+                    framer.feed(stream.data, stream.nextChunkStart(), stream.nextChunkLength());
+                    stream.advance();
+                    while (framer.parseNextPacket() != JeVoisPacketFramer.RESULT_NONE) {
+                        packets++;
+                    }
+                    return packets;
+                }
+            });
+        }
+
+        // Cost of the latency tracing stamps, to compare against the plain clean stream
+        final PacketStreams stream = PacketStreams.build(0);
+        final JeVoisPacketFramer framer = new JeVoisPacketFramer();
+        framer.setTracing(true);
+
+        runner.run("framing/" + PacketStreams.NAMES[0] + "/traced", "pkt", BenchRunner.DEFAULT_OPS, new BenchRunner.BenchOp() {
+            public int run() {
+                int packets = 0;
+                framer.feed(stream.data, stream.nextChunkStart(), stream.nextChunkLength());
+                stream.advance();
+                while (framer.parseNextPacket() != JeVoisPacketFramer.RESULT_NONE) {
+                    packets++;
+                }
+                return packets;
+            }
+        });
+    }
+
+    private static void benchLoadMonitor(BenchRunner runner) throws Exception {
+        final CasseroleRIOLoadMonitor loadMon = new CasseroleRIOLoadMonitor();
+        final Method periodicUpdate = CasseroleRIOLoadMonitor.class.getDeclaredMethod("periodicUpdate");
+        periodicUpdate.setAccessible(true);
+        // Passed explicitly so the varargs call doesn't allocate an empty array each sample
+        final Object[] noArgs = new Object[0];
+
+        runner.run("loadMon/periodicUpdate", "sample", 20000, new BenchRunner.BenchOp() {
+            public int run() {
+                try {
+                    periodicUpdate.invoke(loadMon, noArgs);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                return 1;
+            }
+        });
+    }
+
+    private static void benchLoopTiming(BenchRunner runner) {
+        final LoopTimingMonitor loopTiming = new LoopTimingMonitor(0.02, "a", "b", "c");
+
+        runner.run("loopTiming/loop", "loop", BenchRunner.DEFAULT_OPS, new BenchRunner.BenchOp() {
+            public int run() {
+                loopTiming.startLoop();
+                loopTiming.startPhase(0);
+                loopTiming.startPhase(1);
+                loopTiming.startPhase(2);
+                loopTiming.endLoop();
+                return 1;
+            }
+        });
+    }
+
+    private static void benchTelemetry(BenchRunner runner) {
+        PrintStream discard = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        final TelemetrySink telemetry = new TelemetrySink(discard, TelemetrySink.DEFAULT_QUEUE_SIZE, 1, Integer.MAX_VALUE / 1000);
+        final int channel = telemetry.addChannel("value");
+
+        runner.run("telemetry/log", "value", BenchRunner.DEFAULT_OPS, new BenchRunner.BenchOp() {
+            double value = 0;
+            public int run() {
+                value += 0.25;
+                return telemetry.log(channel, value) ? 1 : 0;
+            }
+        });
+        System.out.println("  telemetry dropped (queue full): " + telemetry.getDroppedQueueFullCount());
+        telemetry.stop();
+    }
+
+    private static void benchMatchLog(BenchRunner runner) throws Exception {
+        final int numOps = 500000;
+        File logFile = File.createTempFile("benchMatchLog", ".bin");
+        logFile.deleteOnExit();
+        // Room for the warmup and timed runs, so nothing is dropped for being full
+        final BinaryMatchLog log = BinaryMatchLog.create(logFile.getPath(), numOps * 2);
+        log.defineRecordType(1, "bench", "a", "b", "c", "d", "e", "f", "g", "h");
+
+        runner.run("matchLog/record", "record", numOps, new BenchRunner.BenchOp() {
+            double value = 0;
+            public int run() {
+                value += 0.25;
+                int record = log.startRecord();
+                for (int i = 0; i < BinaryMatchLog.MAX_FIELDS; i++) {
+                    log.setField(record, i, value + i);
+                }
+                log.finishRecord(record, 1, value);
+                return (record >= 0) ? 1 : 0;
+            }
+        });
+        System.out.println("  match log dropped: " + log.getDroppedRecordCount());
+        log.close();
+    }
+
+    /**
+     * Not an ops/s benchmark, so it prints its own lines. Runs each setup for a couple of seconds of real time,
+     * and reports the CPU time used by the listener thread(s) per second, and per packet received. For the shared
+     * thread, also reports how many times it woke up without finding anything, per packet.
+     */
+    private static void benchManager(BenchRunner runner) throws Exception {
+        boolean warmedUp = false;
+        for (double rate_Hz : MANAGER_PACKET_RATES_HZ) {
+            for (int numCams : MANAGER_CAMERA_COUNTS) {
+                for (boolean shared : new boolean[] {false, true}) {
+                    String name = String.format("manager/%s/%dcam@%.0fHz", shared ? "shared" : "dedicated", numCams, rate_Hz);
+                    if (!runner.isSelected(name)) {
+                        continue;
+                    }
+                    if (!warmedUp) {
+                        // Get the listener code compiled before anything is measured
+                        runManagerSetup(null, 3, 500, false);
+                        runManagerSetup(null, 3, 500, true);
+                        warmedUp = true;
+                    }
+                    runManagerSetup(name, numCams, rate_Hz, shared);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts up simulated cameras, measures their listener thread(s), and shuts them down again.
+     * @param name what to print the results as, or null to not measure or print anything
+     */
+    private static void runManagerSetup(String name, int numCams, double rate_Hz, boolean shared) throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Set<Long> oldThreads = new HashSet<Long>();
+        for (long id : threadBean.getAllThreadIds()) {
+            oldThreads.add(id);
+        }
+
+        JeVoisManager manager = shared ? new JeVoisManager() : null;
+        SimulatedJeVoisTransport[] sims = new SimulatedJeVoisTransport[numCams];
+        JeVoisInterface[] cams = new JeVoisInterface[numCams];
+        for (int i = 0; i < numCams; i++) {
+            sims[i] = new SimulatedJeVoisTransport(rate_Hz);
+            cams[i] = shared ? manager.addCamera("Cam" + i, sims[i], false) : new JeVoisInterface(false, sims[i]);
+        }
+        Thread.sleep(MANAGER_SETTLE_MS);
+
+        if (name != null) {
+            List<Long> listeners = newListenerThreads(threadBean, oldThreads);
+            long cpuStart_ns = listenerCpuTime(threadBean, listeners);
+            long framesStart = totalFrames(cams);
+            long idleStart = shared ? manager.getIdlePassCount() : 0;
+            long wallStart_ns = System.nanoTime();
+            Thread.sleep(MANAGER_RUN_MS);
+            long cpu_ns = listenerCpuTime(threadBean, listeners) - cpuStart_ns;
+            long frames = totalFrames(cams) - framesStart;
+            long idle = shared ? manager.getIdlePassCount() - idleStart : 0;
+            double wall_s = (System.nanoTime() - wallStart_ns) / 1.0e9;
+
+            System.out.println(String.format("%-32s %8.2f ms cpu/s %9.1f us cpu/pkt | %d thread(s), %6.0f pkt/s",
+                    name, cpu_ns / 1.0e6 / wall_s, cpu_ns / 1.0e3 / Math.max(frames, 1),
+                    listeners.size(), frames / wall_s)
+                    + (shared ? String.format(", %.1f idle wakeups/pkt", idle / (double) Math.max(frames, 1)) : ""));
+        }
+
+        if (manager != null) {
+            manager.stop();
+        }
+        for (SimulatedJeVoisTransport sim : sims) {
+            sim.close();
+        }
+    }
+
+    /**
+     * Not an ops/s benchmark, so it prints its own lines. For each packet rate, runs one simulated camera with the
+     * listener blocking in the transport until bytes arrive, then with the original poll-and-sleep loop. A reader
+     * thread spins on getLatestObservation() to catch each packet the moment it's published, and the time since the
+     * simulated camera sent it is recorded. Also reports the listener's CPU time per second. The reader yields
+     * on every pass, so the listener isn't held up waiting for it even on a single core.
+     */
+    private static void benchReadMode(BenchRunner runner) throws Exception {
+        for (double rate_Hz : READ_MODE_PACKET_RATES_HZ) {
+            for (boolean blocking : new boolean[] {true, false}) {
+                String name = String.format("readMode/%s@%.0fHz", blocking ? "blocking" : "polling", rate_Hz);
+                if (runner.isSelected(name)) {
+                    runReadModeSetup(name, rate_Hz, blocking);
+                }
+            }
+        }
+    }
+
+    private static void runReadModeSetup(String name, double rate_Hz, boolean blocking) throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Set<Long> oldThreads = new HashSet<Long>();
+        for (long id : threadBean.getAllThreadIds()) {
+            oldThreads.add(id);
+        }
+
+        SimulatedJeVoisTransport sim = new SimulatedJeVoisTransport(rate_Hz);
+        JeVoisInterface cam = new JeVoisInterface(false, sim);
+        cam.setBlockingReadMode(blocking);
+        Thread.sleep(READ_MODE_SETTLE_MS);
+
+        List<Long> listeners = newListenerThreads(threadBean, oldThreads);
+        TargetObservation obs = new TargetObservation();
+        long[] latencies_ns = new long[(int) (rate_Hz * READ_MODE_RUN_MS / 1000 * 2)];
+        int numLatencies = 0;
+        long lastFrame = -1;
+
+        long cpuStart_ns = listenerCpuTime(threadBean, listeners);
+        long wallStart_ns = System.nanoTime();
+        long end_ns = wallStart_ns + READ_MODE_RUN_MS * 1000000L;
+        while (System.nanoTime() < end_ns && numLatencies < latencies_ns.length) {
+            cam.getLatestObservation(obs);
+            long frame = obs.getFrameCounter();
+            if (frame != lastFrame) {
+                long published_ns = System.nanoTime();
+                // Packets which came in the same read are published back to back, so any we skipped over
+                // were published within microseconds of this one
+                long firstFrame = (lastFrame >= 0 && frame > lastFrame) ? lastFrame + 1 : frame;
+                for (long f = firstFrame; f <= frame && numLatencies < latencies_ns.length; f++) {
+                    latencies_ns[numLatencies++] = published_ns - sim.getPacketDueTime_ns(f);
+                }
+                lastFrame = frame;
+            }
+            // Let the listener run the moment it's woken, even with only one core
+            Thread.yield();
+        }
+        long cpu_ns = listenerCpuTime(threadBean, listeners) - cpuStart_ns;
+        double wall_s = (System.nanoTime() - wallStart_ns) / 1.0e9;
+        // The first one seen may have been published before we started watching
+        Arrays.sort(latencies_ns, 1, Math.max(numLatencies, 1));
+
+        System.out.println(String.format("%-32s latency p50 %7.0f us  p99 %7.0f us  max %7.0f us | %8.2f ms cpu/s, %d pkts",
+                name, percentile(latencies_ns, numLatencies, 50) / 1.0e3, percentile(latencies_ns, numLatencies, 99) / 1.0e3,
+                percentile(latencies_ns, numLatencies, 100) / 1.0e3, cpu_ns / 1.0e6 / wall_s, numLatencies - 1));
+
+        sim.close();
+    }
+
+    /**
+     * Returns a percentile of sorted[1..count-1]
+     */
+    private static long percentile(long[] sorted, int count, double pct) {
+        if (count < 2) {
+            return 0;
+        }
+        int idx = 1 + (int) Math.min(Math.round((count - 2) * pct / 100.0), count - 2);
+        return sorted[idx];
+    }
+
+    /**
+     * Returns the ids of the JeVois listener threads which aren't in oldThreads
+     */
+    private static List<Long> newListenerThreads(ThreadMXBean threadBean, Set<Long> oldThreads) {
+        List<Long> listeners = new ArrayList<Long>();
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+            if (info != null && !oldThreads.contains(info.getThreadId()) && info.getThreadName().startsWith("JeVois")) {
+                listeners.add(info.getThreadId());
+            }
+        }
+        return listeners;
+    }
+
+    private static long listenerCpuTime(ThreadMXBean threadBean, List<Long> listeners) {
+        long total = 0;
+        for (long id : listeners) {
+            total += Math.max(threadBean.getThreadCpuTime(id), 0);
+        }
+        return total;
+    }
+
+    private static long totalFrames(JeVoisInterface[] cams) {
+        long total = 0;
+        for (JeVoisInterface cam : cams) {
+            total += cam.getFrameStats().getFramesReceived();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,138 @@
+package org.usfirst.frc.team1736.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.usfirst.frc.team1736.lib.MatchLog.BinaryMatchLog;
+import org.usfirst.frc.team1736.lib.MatchLog.MatchLogExporter;
+import org.usfirst.frc.team1736.robot.FrameSequenceTracker;
+import org.usfirst.frc.team1736.robot.JeVoisInterface;
+import org.usfirst.frc.team1736.robot.ReplayTransport;
+
+/**
+ * Plays a recorded JeVois serial capture back through JeVoisInterface, and reports how fast it went and what
+ * came out. Every packet the interface accepts is saved, with its arrival time, to a CSV file. Run the same capture
+ * through two builds and compare their CSV files to see if a parser change altered any results.
+ * <br>
+ * <br>
+ * Usage:
+ * <pre>
+ * JeVoisReplay replay &lt;capture&gt; [speed] [outputPrefix]
+ * JeVoisReplay compare &lt;before.csv&gt; &lt;after.csv&gt;
+ * </pre>
+ * The capture is either a RecordingTransport file, or plain text saved from blockAndPrintAllSerial(). Speed is 1 for real
+ * time, 10 for ten times faster, or 0 (the default) for as fast as the interface can take it. Results go to
+ * "outputPrefix_vision.csv", where the prefix defaults to the capture file name without its extension.
+ */
+public class JeVoisReplay {
+
+    // Largest number of packets we can save results for
+    private static final int MAX_RESULT_RECORDS = 2000000;
+    // How many differing rows to print when comparing
+    private static final int MAX_DIFFS_SHOWN = 10;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("replay")) {
+            double speed = (args.length > 2) ? Double.parseDouble(args[2]) : 0.0;
+            String outPrefix = (args.length > 3) ? args[3] : args[1].replaceFirst("\\.[^./\\\\]*$", "");
+            replay(args[1], speed, outPrefix);
+        } else if (args.length >= 3 && args[0].equals("compare")) {
+            int diffs = compare(args[1], args[2]);
+            System.exit(diffs == 0 ? 0 : 2);
+        } else {
+            System.out.println("Usage: JeVoisReplay replay <capture> [speed, 0 = as fast as possible] [output prefix]");
+            System.out.println("       JeVoisReplay compare <before.csv> <after.csv>");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs a capture through a JeVoisInterface and writes out the results.
+     */
+    private static void replay(String capturePath, double speed, String outPrefix) throws IOException {
+        ReplayTransport transport = new ReplayTransport(capturePath, speed);
+        System.out.println("Loaded " + capturePath + ": " + transport.getNumBytes() + " bytes in " + transport.getNumChunks()
+                + " chunks, " + String.format("%.1f", transport.getDuration_s()) + "s long");
+
+        File logFile = File.createTempFile("jevoisReplay", ".bin");
+        logFile.deleteOnExit();
+        BinaryMatchLog log = BinaryMatchLog.create(logFile.getPath(), MAX_RESULT_RECORDS);
+        if (log == null) {
+            throw new IOException("Cannot create results log " + logFile.getPath());
+        }
+
+        JeVoisInterface cam = new JeVoisInterface(false, transport);
+        cam.setMatchLog(log);
+
+        long startTime_ns = System.nanoTime();
+        transport.startReplay();
+        double timeout_s = (speed > 0) ? transport.getDuration_s() / speed + 10.0 : 600.0;
+        if (!transport.waitForFinish(timeout_s)) {
+            System.out.println("Replay did not finish within " + String.format("%.0f", timeout_s) + "s, results are partial");
+        }
+        double elapsed_s = (System.nanoTime() - startTime_ns) / 1.0e9;
+        transport.close();
+
+        long packets = log.getRecordCount();
+        FrameSequenceTracker frames = cam.getFrameStats();
+        System.out.println(String.format("Replayed in %.3fs (%.1fx real time)", elapsed_s,
+                transport.getDuration_s() / Math.max(elapsed_s, 1e-9)));
+        System.out.println(String.format("  throughput: %.0f packets/s, %.0f kB/s", packets / elapsed_s,
+                transport.getBytesDelivered() / elapsed_s / 1000.0));
+        System.out.println("  packets accepted: " + packets + ", malformed: " + cam.getMalformedPacketCount()
+                + ", duplicate: " + frames.getDuplicateFrames() + ", stale: " + frames.getStaleFrames());
+        System.out.println("  frames missed: " + frames.getFramesMissed()
+                + String.format(" (%.2f%%)", frames.getFrameLossPct()) + ", counter restarts: " + frames.getCounterRestarts());
+        if (log.getDroppedRecordCount() > 0) {
+            System.out.println("  results dropped, log full: " + log.getDroppedRecordCount());
+        }
+
+        log.close();
+        MatchLogExporter.export(logFile.getPath(), outPrefix);
+        System.out.println("Results written to " + outPrefix + "_vision.csv");
+    }
+
+    /**
+     * Compares two result files row by row.
+     * @return number of rows which differ, including rows only in one of the files
+     */
+    private static int compare(String beforePath, String afterPath) throws IOException {
+        int rows = 0;
+        int diffs = 0;
+
+        try (BufferedReader before = Files.newBufferedReader(Paths.get(beforePath), StandardCharsets.UTF_8);
+             BufferedReader after = Files.newBufferedReader(Paths.get(afterPath), StandardCharsets.UTF_8)) {
+            String header = before.readLine();
+            if (header == null || !header.equals(after.readLine())) {
+                System.out.println("Column headers differ, cannot compare");
+                return -1;
+            }
+            System.out.println("  columns: " + header);
+
+            while (true) {
+                String beforeLine = before.readLine();
+                String afterLine = after.readLine();
+                if (beforeLine == null && afterLine == null) {
+                    break;
+                }
+                rows++;
+                if (beforeLine == null || afterLine == null || !beforeLine.equals(afterLine)) {
+                    diffs++;
+                    if (diffs <= MAX_DIFFS_SHOWN) {
+                        System.out.println("  row " + rows + ":");
+                        System.out.println("    - " + (beforeLine != null ? beforeLine : "(missing)"));
+                        System.out.println("    + " + (afterLine != null ? afterLine : "(missing)"));
+                    }
+                }
+            }
+        }
+
+        System.out.println(rows + " rows compared, " + diffs + " differ");
+        return diffs;
+    }
+}
@@ -0,0 +1,166 @@
+package org.usfirst.frc.team1736.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.usfirst.frc.team1736.robot.JeVoisPacketFramer;
+
+/**
+ * Synthetic JeVois serial streams for benchmarking. Each stream is a fixed byte array plus a list of
+ * chunk boundaries, which mimic how bytes show up from the serial driver in separate reads.
+ * Streams are built once with a fixed seed, so results are repeatable run to run.
+ */
+public class PacketStreams {
+
+    /** Packets are delivered one whole packet per read */
+    public static final int CLEAN = 0;
+    /** Packets are split across reads at random points, 1-8 bytes per read */
+    public static final int FRAGMENTED = 1;
+    /** Random junk (including stray start/end characters) between packets, and an occasional start character
+     *  followed by more junk than the framer can buffer before its end character */
+    public static final int GARBAGE = 2;
+    /** Several packets arrive in one read, as happens after the reader has been starved */
+    public static final int BURST = 3;
+    /** Binary packets ("binmode on"), delivered one whole packet per read */
+    public static final int BINARY = 4;
+
+    public static final String[] NAMES = {"clean", "fragmented", "garbage", "burst", "binary"};
+
+    private static final int NUM_PACKETS = 4096;
+    // In the garbage stream, one in this many packets is preceded by an overlong unterminated packet
+    private static final int OVERLONG_PERIOD = 256;
+    private static final int OVERLONG_LEN = 600;
+
+    public final byte[] data;
+    public final int[] chunkEnds;
+    private int chunkIdx = 0;
+
+    private PacketStreams(byte[] data, int[] chunkEnds) {
+        this.data = data;
+        this.chunkEnds = chunkEnds;
+    }
+
+    /**
+     * Builds one of the synthetic stream types
+     * @param type CLEAN, FRAGMENTED, GARBAGE, BURST or BINARY
+     */
+    public static PacketStreams build(int type) {
+        Random rand = new Random(1736);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] packet = new byte[JeVoisPacketFramer.BINARY_TARGET_PACKET_LEN];
+        int[] ends = new int[NUM_PACKETS * 48];
+        int numChunks = 0;
+
+        for (int i = 0; i < NUM_PACKETS; i++) {
+            if (type == GARBAGE && rand.nextInt(3) == 0) {
+                int garbageLen = 1 + rand.nextInt(12);
+                for (int j = 0; j < garbageLen; j++) {
+                    out.write("x}9,{F\n ".charAt(rand.nextInt(8)));
+                }
+            }
+            if (type == GARBAGE && (i % OVERLONG_PERIOD) == OVERLONG_PERIOD - 1) {
+                // No newline, sync byte or second start character until the end, so it all counts as one packet
+                out.write('{');
+                for (int j = 0; j < OVERLONG_LEN; j++) {
+                    out.write("x9,F ".charAt(rand.nextInt(5)));
+                    if (j % 64 == 63) {
+                        // Trickles in over several reads, so the framer never falls behind and drops it for overflow
+                        ends[numChunks++] = out.size();
+                    }
+                }
+                out.write('}');
+            }
+
+            if (type == BINARY) {
+                int len = JeVoisPacketFramer.encodeBinaryPacket(makePacketValues(rand, i), packet, 0);
+                out.write(packet, 0, len);
+            } else {
+                byte[] text = makePacket(rand, i).getBytes(StandardCharsets.US_ASCII);
+                out.write(text, 0, text.length);
+            }
+
+            if (type == CLEAN || type == GARBAGE || type == BINARY) {
+                ends[numChunks++] = out.size();
+            } else if (type == BURST && (i % 8 == 7)) {
+                ends[numChunks++] = out.size();
+            }
+        }
+
+        byte[] bytes = out.toByteArray();
+
+        if (type == FRAGMENTED) {
+            int pos = 0;
+            while (pos < bytes.length) {
+                pos = Math.min(bytes.length, pos + 1 + rand.nextInt(8));
+                ends[numChunks++] = pos;
+            }
+        } else if (numChunks == 0 || ends[numChunks - 1] != bytes.length) {
+            ends[numChunks++] = bytes.length;
+        }
+
+        int[] trimmedEnds = new int[numChunks];
+        System.arraycopy(ends, 0, trimmedEnds, 0, numChunks);
+        return new PacketStreams(bytes, trimmedEnds);
+    }
+
+    /**
+     * Builds the body (no start/end characters) of a single realistic packet
+     */
+    public static String makePacketBody(Random rand, int frame) {
+        double[] values = makePacketValues(rand, frame);
+        return String.format("%d,%s,%.3f,%.1f,%.1f,%.1f,%.1f,%d",
+                (long) values[0],
+                (values[1] != 0.0) ? "T" : "F",
+                values[2],
+                values[3],
+                values[4],
+                values[5],
+                values[6],
+                (long) values[7]);
+    }
+
+    /**
+     * Makes up the field values of a single realistic packet, in packet order
+     */
+    public static double[] makePacketValues(Random rand, int frame) {
+        boolean visible = rand.nextBoolean();
+        return new double[] {
+                frame,
+                visible ? 1.0 : 0.0,
+                visible ? (rand.nextDouble() * 60.0 - 30.0) : 0.0,
+                visible ? (rand.nextDouble() * 5000.0) : 0.0,
+                59.5 + rand.nextDouble(),
+                40.0 + rand.nextDouble() * 20.0,
+                45.0 + rand.nextDouble() * 10.0,
+                8000 + rand.nextInt(4000)};
+    }
+
+    private static String makePacket(Random rand, int frame) {
+        return "{" + makePacketBody(rand, frame) + "}\n";
+    }
+
+    /**
+     * Index into data of the start of the next chunk to deliver
+     */
+    public int nextChunkStart() {
+        return chunkIdx == 0 ? 0 : chunkEnds[chunkIdx - 1];
+    }
+
+    /**
+     * Length of the next chunk to deliver. Call advance() afterward to move on.
+     */
+    public int nextChunkLength() {
+        return chunkEnds[chunkIdx] - nextChunkStart();
+    }
+
+    /**
+     * Moves to the next chunk, wrapping around to the start of the stream at the end
+     */
+    public void advance() {
+        chunkIdx++;
+        if (chunkIdx >= chunkEnds.length) {
+            chunkIdx = 0;
+        }
+    }
+}
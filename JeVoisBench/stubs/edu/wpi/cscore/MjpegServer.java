@@ -0,0 +1,16 @@
+package edu.wpi.cscore;
+
+/**
+ * Benchmark stand-in for the cscore MJPEG server. Does nothing.
+ */
+public class MjpegServer {
+
+    public MjpegServer(String name, int port) {
+    }
+
+    public void setSource(UsbCamera source) {
+    }
+
+    public void free() {
+    }
+}
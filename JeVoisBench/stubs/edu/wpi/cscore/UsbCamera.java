@@ -0,0 +1,17 @@
+package edu.wpi.cscore;
+
+/**
+ * Benchmark stand-in for the cscore USB camera. Does nothing.
+ */
+public class UsbCamera {
+
+    public UsbCamera(String name, int dev) {
+    }
+
+    public boolean setVideoMode(VideoMode.PixelFormat pixelFormat, int width, int height, int fps) {
+        return true;
+    }
+
+    public void free() {
+    }
+}
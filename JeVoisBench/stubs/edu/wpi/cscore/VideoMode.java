@@ -0,0 +1,9 @@
+package edu.wpi.cscore;
+
+/**
+ * Benchmark stand-in for the cscore video mode description.
+ */
+public class VideoMode {
+
+    public enum PixelFormat { kUnknown, kMJPEG, kYUYV, kRGB565, kBGR, kGray }
+}
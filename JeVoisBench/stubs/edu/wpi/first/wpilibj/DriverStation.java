@@ -0,0 +1,15 @@
+package edu.wpi.first.wpilibj;
+
+/**
+ * Benchmark stand-in for the WPILib DriverStation. Errors and warnings go to stderr.
+ */
+public class DriverStation {
+
+    public static void reportError(String error, boolean printTrace) {
+        System.err.println("ERROR: " + error);
+    }
+
+    public static void reportWarning(String warning, boolean printTrace) {
+        System.err.println("WARNING: " + warning);
+    }
+}
@@ -0,0 +1,75 @@
+package edu.wpi.first.wpilibj;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark stand-in for the WPILib SerialPort. Behaves like a JeVois which answers every
+ * command line with "OK" but never streams any packets. Reads block for the configured timeout
+ * when nothing is buffered, same as the real port.
+ */
+public class SerialPort {
+
+    public enum Port { kOnboard, kMXP, kUSB, kUSB1, kUSB2 }
+
+    private final StringBuilder rxBuffer = new StringBuilder();
+    private double timeout_s = 5.0;
+
+    public SerialPort(int baudRate, Port port) {
+    }
+
+    public synchronized int getBytesReceived() {
+        return rxBuffer.length();
+    }
+
+    public synchronized String readString() {
+        return readString(rxBuffer.length());
+    }
+
+    public synchronized String readString(int count) {
+        return new String(read(count), StandardCharsets.US_ASCII);
+    }
+
+    public synchronized byte[] read(int count) {
+        if (rxBuffer.length() == 0) {
+            try {
+                wait((long) (timeout_s * 1000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int n = Math.min(count, rxBuffer.length());
+        byte[] retval = rxBuffer.substring(0, n).getBytes(StandardCharsets.US_ASCII);
+        rxBuffer.delete(0, n);
+        return retval;
+    }
+
+    public synchronized int write(byte[] buffer, int count) {
+        for (int i = 0; i < count; i++) {
+            if (buffer[i] == '\n') {
+                rxBuffer.append("OK\n");
+                notifyAll();
+            }
+        }
+        return count;
+    }
+
+    public int writeString(String data) {
+        return write(data.getBytes(StandardCharsets.US_ASCII), data.length());
+    }
+
+    public void setTimeout(double timeout) {
+        timeout_s = timeout;
+    }
+
+    public void setReadBufferSize(int size) {
+    }
+
+    public void flush() {
+    }
+
+    public void reset() {
+    }
+
+    public void free() {
+    }
+}
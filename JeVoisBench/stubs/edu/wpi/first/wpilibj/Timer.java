@@ -0,0 +1,19 @@
+package edu.wpi.first.wpilibj;
+
+/**
+ * Benchmark stand-in for the WPILib Timer. Uses the JVM's monotonic clock in place of the FPGA.
+ */
+public class Timer {
+
+    public static double getFPGATimestamp() {
+        return System.nanoTime() / 1.0e9;
+    }
+
+    public static void delay(double seconds) {
+        try {
+            Thread.sleep((long) (seconds * 1000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
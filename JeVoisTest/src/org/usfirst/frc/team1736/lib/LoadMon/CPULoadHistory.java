@@ -0,0 +1,251 @@
+package org.usfirst.frc.team1736.lib.LoadMon;
+
+/*
+ *******************************************************************************************
+ * Copyright (C) 2018 FRC Team 1736 Robot Casserole - www.robotcasserole.org
+ *******************************************************************************************
+ *
+ * This software is released under the MIT Licence - see the license.txt
+ *  file in the root of this repo.
+ *
+ * Non-legally-binding statement from Team 1736:
+ *  Thank you for taking the time to read through our software! We hope you
+ *   find it educational and informative! 
+ *  Please feel free to snag our software for your own use in whatever project
+ *   you have going on right now! We'd love to be able to help out! Shoot us 
+ *   any questions you may have, all our contact info should be on our website
+ *   (listed above).
+ *  If you happen to end up using our software to make money, that is wonderful!
+ *   Robot Casserole is always looking for more sponsors, so we'd be very appreciative
+ *   if you would consider donating to our club to help further STEM education.
+ */
+
+import java.util.Arrays;
+
+/**
+ * DESCRIPTION: <br>
+ * Fixed-size history of recent CPU load samples from CasseroleRIOLoadMonitor. Holds the overall load and the
+ * load of the busiest core for each sample, along with the time the sample was taken. The newest sample
+ * overwrites the oldest once full. All storage is allocated up front.
+ * <br>
+ * <br>
+ * Each sample covers the time since the previous one, so a load spike shows up in the first sample taken
+ * after it. Times are FPGA timestamps (the same clock as Timer.getFPGATimestamp()), so a loop overrun
+ * seen in robot code can be lined up with what the CPU was doing at that moment.
+ * <br>
+ * <br>
+ * USAGE:
+ * <ol>
+ * <li>Get from CasseroleRIOLoadMonitor.getHistory()</li>
+ * <li>Call getMin/getMax/getPercentile for statistics over the last few seconds</li>
+ * <li>Call getLoadAt() or getHistoryAround() to look at a particular moment</li>
+ * </ol>
+ * 
+ * 
+ */
+
+public class CPULoadHistory {
+	
+	/** Overall (all-cpu) load percentage */
+	public static final int CHANNEL_TOTAL = 0;
+	/** Load percentage of whichever core was busiest in each sample */
+	public static final int CHANNEL_BUSIEST_CORE = 1;
+	static final int NUM_CHANNELS = 2;
+	
+	// Sample storage, as rings. Slot nextIdx is the next one written.
+	final double[] sampleTimes;
+	final double[][] sampleLoads;
+	int nextIdx = 0;
+	int numSamples = 0;
+	
+	// Scratch space for sorting samples when calculating percentiles
+	final double[] sortBuf;
+	
+	/**
+	 * Constructor
+	 * @param capacity How many samples to keep
+	 */
+	public CPULoadHistory(int capacity){
+		capacity = Math.max(capacity, 1);
+		sampleTimes = new double[capacity];
+		sampleLoads = new double[NUM_CHANNELS][capacity];
+		sortBuf = new double[capacity];
+	}
+	
+	/**
+	 * Adds the newest sample, overwriting the oldest if full.
+	 * @param time_s FPGA timestamp the sample was taken at, in seconds
+	 * @param totalLoadPct overall CPU load
+	 * @param busiestCoreLoadPct load of the busiest core
+	 */
+	synchronized void add(double time_s, double totalLoadPct, double busiestCoreLoadPct){
+		sampleTimes[nextIdx] = time_s;
+		sampleLoads[CHANNEL_TOTAL][nextIdx] = totalLoadPct;
+		sampleLoads[CHANNEL_BUSIEST_CORE][nextIdx] = busiestCoreLoadPct;
+		nextIdx = (nextIdx + 1) % sampleTimes.length;
+		numSamples = Math.min(numSamples + 1, sampleTimes.length);
+	}
+	
+	/**
+	 * @return ring index of the i'th oldest sample
+	 */
+	private int ringIdx(int i){
+		return (nextIdx - numSamples + i + sampleTimes.length) % sampleTimes.length;
+	}
+	
+	/**
+	 * @return index (counting from the oldest sample) of the first sample taken within the last window_s seconds
+	 */
+	private int windowStart(double window_s){
+		if(numSamples == 0){
+			return 0;
+		}
+		double startTime = sampleTimes[ringIdx(numSamples - 1)] - window_s;
+		int i = numSamples - 1;
+		while(i > 0 && sampleTimes[ringIdx(i - 1)] >= startTime){
+			i--;
+		}
+		return i;
+	}
+	
+	/**
+	 * @return number of samples presently stored
+	 */
+	public synchronized int size(){
+		return numSamples;
+	}
+	
+	/**
+	 * @return FPGA timestamp of the oldest stored sample, or -1 if there are none
+	 */
+	public synchronized double getOldestTime(){
+		return (numSamples > 0) ? sampleTimes[ringIdx(0)] : -1;
+	}
+	
+	/**
+	 * @return FPGA timestamp of the newest stored sample, or -1 if there are none
+	 */
+	public synchronized double getNewestTime(){
+		return (numSamples > 0) ? sampleTimes[ringIdx(numSamples - 1)] : -1;
+	}
+	
+	/**
+	 * Lowest load seen over the last few seconds.
+	 * @param channel CHANNEL_TOTAL or CHANNEL_BUSIEST_CORE
+	 * @param window_s how far back from the newest sample to look, in seconds
+	 * @return lowest load percentage, or -1 if there are no samples
+	 */
+	public synchronized double getMin(int channel, double window_s){
+		double min = -1;
+		for(int i = windowStart(window_s); i < numSamples; i++){
+			double load = sampleLoads[channel][ringIdx(i)];
+			if(min < 0 || load < min){
+				min = load;
+			}
+		}
+		return min;
+	}
+	
+	/**
+	 * Highest load seen over the last few seconds.
+	 * @param channel CHANNEL_TOTAL or CHANNEL_BUSIEST_CORE
+	 * @param window_s how far back from the newest sample to look, in seconds
+	 * @return highest load percentage, or -1 if there are no samples
+	 */
+	public synchronized double getMax(int channel, double window_s){
+		double max = -1;
+		for(int i = windowStart(window_s); i < numSamples; i++){
+			max = Math.max(max, sampleLoads[channel][ringIdx(i)]);
+		}
+		return max;
+	}
+	
+	/**
+	 * Load percentile over the last few seconds (ex: 50 for the median, 99 for the 99th percentile).
+	 * @param channel CHANNEL_TOTAL or CHANNEL_BUSIEST_CORE
+	 * @param pct percentile to find, from 0 to 100
+	 * @param window_s how far back from the newest sample to look, in seconds
+	 * @return load percentage at that percentile, or -1 if there are no samples
+	 */
+	public synchronized double getPercentile(int channel, double pct, double window_s){
+		int start = windowStart(window_s);
+		int count = numSamples - start;
+		if(count <= 0){
+			return -1;
+		}
+		for(int i = 0; i < count; i++){
+			sortBuf[i] = sampleLoads[channel][ringIdx(start + i)];
+		}
+		Arrays.sort(sortBuf, 0, count);
+		//Nearest-rank percentile
+		int rank = (int)Math.ceil(Math.min(Math.max(pct, 0), 100) / 100.0 * count);
+		return sortBuf[Math.max(rank - 1, 0)];
+	}
+	
+	/**
+	 * Load during the sample which covered the given time.
+	 * @param channel CHANNEL_TOTAL or CHANNEL_BUSIEST_CORE
+	 * @param time_s FPGA timestamp, in seconds
+	 * @return load percentage, or -1 if the time is outside of the stored history
+	 */
+	public synchronized double getLoadAt(int channel, double time_s){
+		if(numSamples == 0 || time_s > sampleTimes[ringIdx(numSamples - 1)]){
+			return -1;
+		}
+		//Each sample covers the time since the one before it, so look for the first sample at or after the time.
+		//The oldest sample has nothing before it, so it only covers its own timestamp.
+		for(int i = 0; i < numSamples; i++){
+			int idx = ringIdx(i);
+			if(sampleTimes[idx] >= time_s){
+				return (i == 0 && sampleTimes[idx] > time_s) ? -1 : sampleLoads[channel][idx];
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Copies out the samples taken around a given time, oldest first. Handy for logging what the CPU
+	 * was doing around a loop overrun.
+	 * @param channel CHANNEL_TOTAL or CHANNEL_BUSIEST_CORE
+	 * @param time_s FPGA timestamp to look around, in seconds
+	 * @param halfWidth_s how far before and after the time to include, in seconds
+	 * @param timesOut filled with the sample timestamps
+	 * @param loadsOut filled with the sample load percentages
+	 * @return number of samples copied out. Limited to the size of the output arrays, keeping the ones closest to the time.
+	 */
+	public synchronized int getHistoryAround(int channel, double time_s, double halfWidth_s, double[] timesOut, double[] loadsOut){
+		int maxOut = Math.min(timesOut.length, loadsOut.length);
+		
+		//Find the range of samples inside the window
+		int first = -1;
+		int last = -1;
+		for(int i = 0; i < numSamples; i++){
+			double sampleTime = sampleTimes[ringIdx(i)];
+			if(sampleTime >= time_s - halfWidth_s && sampleTime <= time_s + halfWidth_s){
+				if(first < 0){
+					first = i;
+				}
+				last = i;
+			}
+		}
+		if(first < 0){
+			return 0;
+		}
+		
+		//Trim from whichever end is farther from the time until it fits
+		while(last - first + 1 > maxOut){
+			if(time_s - sampleTimes[ringIdx(first)] > sampleTimes[ringIdx(last)] - time_s){
+				first++;
+			} else {
+				last--;
+			}
+		}
+		
+		for(int i = first; i <= last; i++){
+			timesOut[i - first] = sampleTimes[ringIdx(i)];
+			loadsOut[i - first] = sampleLoads[channel][ringIdx(i)];
+		}
+		return last - first + 1;
+	}
+	
+}
@@ -20,10 +20,24 @@ package org.usfirst.frc.team1736.lib.LoadMon;
  *   if you would consider donating to our club to help further STEM education.
  */
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.usfirst.frc.team1736.lib.MatchLog.BinaryMatchLog;
+
+import edu.wpi.first.wpilibj.Timer;
 
 /**
  * DESCRIPTION: <br>
@@ -38,6 +52,33 @@ import java.io.IOException;
  * string parsing and math, and we're able to derive the metrics we care about from known-good sources.
  * <br>
  * <br>
+ * Since the whole point is to measure load, the monitor tries hard not to add any. The /proc files are
+ * opened once and re-read from the start each sample into the same buffer, and the numbers are parsed
+ * straight out of the raw bytes. Once running, sampling does not allocate any memory.
+ * <br>
+ * <br>
+ * Besides the overall load, the monitor splits out each core's load (a single saturated core is hidden
+ * behind a 50% overall load on the dual-core RIO), the time spent in user code, system calls, waiting on IO
+ * and servicing interrupts, and how much CPU each of this JVM's own threads is using. The list of threads is
+ * only re-scanned every few seconds, since that does allocate. Linux doesn't always know Java's names for
+ * threads, so threads can call registerCurrentThread() to make sure they show up with a useful name.
+ * <br>
+ * <br>
+ * The JVM's own memory use is tracked too, through the platform management beans: java heap and non-heap
+ * usage, how many garbage collections have run and how long they took, and how fast each registered thread
+ * is allocating memory. Allocation rates are only available for registered threads, since that's the only
+ * way to match a Linux thread up with its Java thread. Non-heap usage is only checked when the thread list is
+ * re-scanned, since reading it allocates a bit. Per-thread allocation reading may allocate a small amount on
+ * some JVMs as well.
+ * <br>
+ * <br>
+ * The CPU loads can be sampled much faster than the default (down to every 10ms) to catch short spikes,
+ * and recent samples are kept in a CPULoadHistory for min/max/percentile queries and for looking up what the
+ * CPU was doing at a particular time. Only the CPU loads are sampled at the fast rate - memory, JVM and
+ * per-thread stats stay at about 250ms, so sampling cost stays bounded. Note the kernel counts CPU time in
+ * 10ms ticks, so very fast samples are coarse individually, but spikes still show up.
+ * <br>
+ * <br>
  * I do suppose this is kinda redundant with the metrics gathered by the driver station, but I would feel very
  * warm and fuzzy just seeing the load metrics in a log along with all the other data. Just a personal preference.
  * <br>
@@ -48,6 +89,10 @@ import java.io.IOException;
  * load metrics in the background./li>
  * <li>Call getters to get the most recent CPU and memory load
  * </li>
+ * <li>Optionally, call registerCurrentThread() from inside threads you want to track by name
+ * </li>
+ * <li>Optionally, call setUpdateRate_ms() to sample faster, and getHistory() to look back at recent samples
+ * </li>
  * </ol>
  * 
  * 
@@ -55,20 +100,129 @@ import java.io.IOException;
 
 public class CasseroleRIOLoadMonitor {
 	
-	/** Rate of update of the load variables in milliseconds. 1s should be enough? */
+	/** Default rate of update of the load variables in milliseconds. 1s should be enough? */
 	public static final int UPDATE_RATE_MS = 250;
 	
+	/** Fastest allowed rate of update of the CPU load, in milliseconds */
+	public static final int MIN_UPDATE_RATE_MS = 10;
+	
+	/** Rate of update of everything other than CPU loads, in milliseconds, no matter how fast CPU load is sampled */
+	static final int SLOW_STATS_UPDATE_RATE_MS = 250;
+	
+	/** How many CPU load samples are kept in the history */
+	public static final int HISTORY_LENGTH = 1024;
+	
+	// Present rate of update of the CPU load, in milliseconds
+	volatile int updateRateMs = UPDATE_RATE_MS;
+	
+	// Recent CPU load samples
+	final CPULoadHistory history = new CPULoadHistory(HISTORY_LENGTH);
+	
+	/** Match log record type used for each CPU load sample */
+	public static final int MATCH_LOG_TYPE_LOAD = 2;
+	// Where to record each sample, if anywhere
+	volatile BinaryMatchLog matchLog = null;
+	
+	/** Most cores we keep track of individually */
+	public static final int MAX_CORES = 16;
+	
+	/** Most threads we keep track of individually */
+	public static final int MAX_THREADS = 64;
+	
+	/** How many memory/JVM/thread samples between re-scans of the list of threads in this JVM */
+	static final int THREAD_RESCAN_SAMPLES = 20;
+	
 	/** Overall (all-cpu) load percentage (non-idle time) */
 	public double totalCPULoadPct = 0;
 	/** Memory used percentage */
 	public double totalMemUsedPct = 0;
 	
+	// Java memory usage, in bytes
+	long heapUsedBytes = 0;
+	long heapMaxBytes = 0;
+	long nonHeapUsedBytes = 0;
+	
+	// Garbage collection totals, added up over all collectors
+	long gcCount = 0;
+	long gcTimeMs = 0;
+	double gcTimePct = 0;
+	
+	// Beans to get memory and garbage collection info from the JVM
+	MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+	List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
+	// Only set if this JVM can report how much each thread has allocated
+	com.sun.management.ThreadMXBean threadAllocBean = null;
+	
+	// Time the previous memory/JVM/thread sample was taken, in nanoseconds, for calculating rates
+	long prevSlowSampleTimeNs = 0;
+	double slowSampleTimeDeltaS = 0;
+	
+	// Overall (all-cpu) percentage of time spent in each state
+	double userCPULoadPct = 0;
+	double systemCPULoadPct = 0;
+	double ioWaitCPULoadPct = 0;
+	double irqCPULoadPct = 0;
+	
+	// Load percentage of each core
+	int numCores = 0;
+	double[] coreCPULoadPct = new double[MAX_CORES];
+	double busiestCoreCPULoadPct = 0;
+	
+	// Order of the time counters on each cpu line of /proc/stat
+	static final int CPU_USER_IDX = 0;
+	static final int CPU_NICE_IDX = 1;
+	static final int CPU_SYSTEM_IDX = 2;
+	static final int CPU_IDLE_IDX = 3;
+	static final int CPU_IOWAIT_IDX = 4;
+	static final int CPU_IRQ_IDX = 5;
+	static final int CPU_SOFTIRQ_IDX = 6;
+	static final int CPU_STEAL_IDX = 7;
+	static final int NUM_CPU_TIMES = 8;
+	
 	//To ensure we only calculate load between the last measurement and this one, we must store the
 	//previous values measured from the kernel, since the kernel reports aggregate time counts
-	double prevUserTime = 0;
-	double prevNicedTime = 0;
-	double prevSystemTime = 0;
-	double prevIdleTime = 0;
+	long[] prevCPUTimes = new long[NUM_CPU_TIMES];
+	long[] prevCoreBusyTime = new long[MAX_CORES];
+	long[] prevCoreTotalTime = new long[MAX_CORES];
+	
+	// Scratch space for the time counters of the cpu line presently being parsed
+	long[] curCPUTimes = new long[NUM_CPU_TIMES];
+	
+	// Total time counted on all cores since boot, as of the latest sample, in kernel time units
+	long cpuTimeTotal = 0;
+	// ...and as of the latest per-thread sample
+	long prevThreadSampleCPUTimeTotal = 0;
+	
+	// Average time that passed on one core since the last per-thread sample, in kernel time units.
+	// Thread CPU times are compared against this.
+	double coreTimeDelta = 0;
+	
+	// Per-thread CPU tracking. Slots 0 through numThreads-1 are in use.
+	int numThreads = 0;
+	int[] threadIDs = new int[MAX_THREADS];
+	String[] threadNames = new String[MAX_THREADS];
+	FileChannel[] threadStatFiles = new FileChannel[MAX_THREADS];
+	long[] prevThreadTime = new long[MAX_THREADS];
+	double[] threadCPULoadPct = new double[MAX_THREADS];
+	long[] threadJavaIDs = new long[MAX_THREADS];
+	long[] prevThreadAllocBytes = new long[MAX_THREADS];
+	double[] threadAllocRateKBps = new double[MAX_THREADS];
+	boolean[] threadSeen = new boolean[MAX_THREADS];
+	int samplesSinceThreadRescan = THREAD_RESCAN_SAMPLES;
+	
+	// Set to false if we can't see the threads (older kernel or something else weird).
+	// The overall loads still work without it.
+	boolean threadTrackingAvailable = true;
+	
+	// Names threads have registered for themselves, by Linux thread ID
+	static final ConcurrentHashMap<Integer, String> registeredThreadNames = new ConcurrentHashMap<Integer, String>();
+	// Java's thread ID for each registered thread, by Linux thread ID
+	static final ConcurrentHashMap<Integer, Long> registeredJavaThreadIDs = new ConcurrentHashMap<Integer, Long>();
+	// Set when a thread registers, so it gets picked up without waiting for the next scheduled rescan
+	static volatile boolean threadRegistered = false;
+	
+	/** How long the most recent sample took to gather and calculate, in microseconds */
+	double sampleCostUs = 0;
 	
 	
 	//Set to true if we can't read the file (wrong os, or something else weird)
@@ -78,25 +232,85 @@ public class CasseroleRIOLoadMonitor {
 	// These "files" contain the load info on a linux system
 	static final String CPU_LOAD_VIRT_FILE = "/proc/stat";
 	static final String MEM_LOAD_VIRT_FILE = "/proc/meminfo";
+	static final String THREAD_LIST_VIRT_DIR = "/proc/self/task";
+	static final String THREAD_SELF_VIRT_LINK = "/proc/thread-self";
+	
+	// Files are kept open between samples, and read from the start each time
+	FileChannel cpuLoadFile = null;
+	FileChannel memLoadFile = null;
+	
+	// The lines we care about are all near the start of the files, so we only read this much of each.
+	static final int READ_BUF_SIZE = 8192;
+	ByteBuffer readBuf = ByteBuffer.allocateDirect(READ_BUF_SIZE);
+	
+	// Where the parsing has gotten to in readBuf
+	int parseIdx = 0;
+	
+	// Line prefixes we look for, pre-converted to bytes
+	static final byte[] CPU_TOTAL_PREFIX = "cpu ".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] CPU_CORE_PREFIX = "cpu".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] MEM_TOTAL_PREFIX = "MemTotal:".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] MEM_FREE_PREFIX = "MemFree:".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] MEM_AVAILABLE_PREFIX = "MemAvailable:".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] MEM_BUFFERS_PREFIX = "Buffers:".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] MEM_CACHED_PREFIX = "Cached:".getBytes(StandardCharsets.US_ASCII);
+	
+	// In a thread's stat file, utime is the 14th field. Fields are counted from the one right after
+	// the ")" closing the thread name, which is the 3rd.
+	static final int THREAD_STAT_FIELDS_BEFORE_UTIME = 14 - 3;
 	
 	/**
 	 * Constructor. Initalizes measurement system and starts a slow
 	 * background thread to gather load info
 	 */
 	public CasseroleRIOLoadMonitor(){
+		this(UPDATE_RATE_MS);
+	}
+	
+	/**
+	 * Constructor (custom rate). Same as the default constructor, but samples CPU load at the given rate.
+	 * @param updateRate_ms time between CPU load samples, in milliseconds
+	 */
+	public CasseroleRIOLoadMonitor(int updateRate_ms){
+		
+		setUpdateRate_ms(updateRate_ms);
 		
 		//Reset give up flag
 		giveUp = false;
 		
+		//Per-thread allocation tracking is a HotSpot extra, and may need turning on
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(threadBean instanceof com.sun.management.ThreadMXBean){
+			com.sun.management.ThreadMXBean allocBean = (com.sun.management.ThreadMXBean) threadBean;
+			try {
+				if(allocBean.isThreadAllocatedMemorySupported()){
+					allocBean.setThreadAllocatedMemoryEnabled(true);
+					threadAllocBean = allocBean;
+				}
+			} catch(Exception e){
+				System.out.println("WARNING: cannot enable per-thread allocation tracking.");
+			}
+		}
+		
 		// Kick off monitor in brand new thread.
 	    // Thanks to Team 254 for an example of how to do this!
 	    Thread monitorThread = new Thread(new Runnable() {
 	        @Override
 	        public void run() {
+	            registerCurrentThread("LoadMonitor");
 	            try {
+	            	//Run on a fixed schedule, so the time spent sampling doesn't stretch out the rate
+	            	long nextSampleTimeNs = System.nanoTime();
 	            	while(giveUp == false){
 	            		periodicUpdate();
-	            		Thread.sleep(UPDATE_RATE_MS);
+	            		nextSampleTimeNs += updateRateMs * 1000000L;
+	            		long sleepTimeNs = nextSampleTimeNs - System.nanoTime();
+	            		if(sleepTimeNs > 0){
+	            			Thread.sleep(sleepTimeNs / 1000000L, (int)(sleepTimeNs % 1000000L));
+	            		} else {
+	            			//Fell behind (or the rate changed), don't try to catch up
+	            			nextSampleTimeNs = System.nanoTime();
+	            		}
 	            	}
 	            } catch (Exception e) {
 	                e.printStackTrace();
@@ -111,143 +325,638 @@ public class CasseroleRIOLoadMonitor {
 	    monitorThread.start();
 	}
 	
+	/**
+	 * Gives the calling thread a name to be reported under in the per-thread loads.
+	 * Java's thread names don't always make it down to Linux, so without this many threads
+	 * just show up as "java". Call this from inside the thread itself.
+	 * @param name name to report the thread as
+	 * @return true if registered, false if the thread's ID couldn't be found
+	 */
+	public static boolean registerCurrentThread(String name){
+		try {
+			//Link points to "<process id>/task/<thread id>"
+			String threadPath = Files.readSymbolicLink(Paths.get(THREAD_SELF_VIRT_LINK)).toString();
+			int threadID = Integer.parseInt(threadPath.substring(threadPath.lastIndexOf('/') + 1));
+			registeredThreadNames.put(threadID, name);
+			registeredJavaThreadIDs.put(threadID, Thread.currentThread().getId());
+			threadRegistered = true;
+			return true;
+		} catch(Exception e){
+			return false;
+		}
+	}
+	
 	/**
 	 * Updates the present loads based on info from the /proc virtual
 	 * filesystem. Should be called in the background. This takes up
-	 * some number of resources (opening and closing files), so it's
+	 * some number of resources (reading and parsing files), so it's
 	 * worthwhile not running it super fast. will be called internally
-	 * by the thread started in the constructor
+	 * by the thread started in the constructor. Synchronized since the
+	 * read buffer is shared between samples.
 	 */
-	private void periodicUpdate(){
-
-		String CPUTotalLoadRawLine = new String();
-		File file;
+	private synchronized void periodicUpdate(){
+		
+		long startTime = System.nanoTime();
 		
 		if(giveUp == false){
+			updateCPULoads();
+			if(giveUp == false){
+				double sampleTime = Timer.getFPGATimestamp();
+				history.add(sampleTime, totalCPULoadPct, busiestCoreCPULoadPct);
+				writeMatchLogRecord(sampleTime);
+			}
+		}
+		
+		//Everything else is only sampled at the slow rate, so sampling CPU load fast stays cheap
+		//(allow a bit of slop so timing jitter doesn't skip a whole sample)
+		boolean slowSampleDue = (prevSlowSampleTimeNs == 0) || 
+		                        (startTime - prevSlowSampleTimeNs >= (SLOW_STATS_UPDATE_RATE_MS - MIN_UPDATE_RATE_MS / 2) * 1000000L);
+		if(slowSampleDue){
+			if(prevSlowSampleTimeNs != 0){
+				slowSampleTimeDeltaS = (startTime - prevSlowSampleTimeNs) / 1.0e9;
+			}
+			prevSlowSampleTimeNs = startTime;
 			
-			//////////////////////////////////////////////////////////////////////////////
-			//// CPU LOAD PARSING & CALCULATION
-			//////////////////////////////////////////////////////////////////////////////
-			//Get meaningful line from CPU load virtual file
-			file = new File(CPU_LOAD_VIRT_FILE);
+			if(giveUp == false){
+				updateMemLoad();
+			}
 			
-			try {
-				BufferedReader br = new BufferedReader(new FileReader(file));
-				CPUTotalLoadRawLine = br.readLine();
-				while(CPUTotalLoadRawLine != null){
-					if(CPUTotalLoadRawLine.startsWith("cpu ")){
-						break;
-					}
-					CPUTotalLoadRawLine = br.readLine();
+			//The JVM stats don't depend on /proc, so keep going even if we gave up on that
+			updateJVMMemory();
+			
+			if(giveUp == false && threadTrackingAvailable == true){
+				if(samplesSinceThreadRescan++ >= THREAD_RESCAN_SAMPLES || threadRegistered){
+					threadRegistered = false;
+					rescanThreads();
+					//Changes slowly, and reading it allocates, so it's only checked along with the rescan
+					nonHeapUsedBytes = memoryBean.getNonHeapMemoryUsage().getUsed();
+					samplesSinceThreadRescan = 0;
 				}
-				br.close();
-			} catch(IOException e){
-				System.out.println("WARNING: cannot get raw CPU load data. Giving up future attempts to read.");
-				e.printStackTrace();
-				giveUp = true;
+				updateThreadLoads();
 			}
-			
-			//line now contains cpu load text info
-			//separated by spaces in the format:
-			// "cpu <user> <nice> <system> <idle> ..."
-			// Time units are system dependent, but we don't care
-			// since we are calculating a percentage.
-			String[] tokens = CPUTotalLoadRawLine.split(" ");
+		}
 
-			double curUserTime = 0;
-			double curNicedTime = 0;
-			double curSystemTime = 0;
-			double curIdleTime = 0;
-			try{
-				curUserTime = Double.parseDouble(tokens[2]); //Start at 2, because RIO parses an extra empty token at 1
-				curNicedTime = Double.parseDouble(tokens[3]);
-				curSystemTime = Double.parseDouble(tokens[4]);
-				curIdleTime = Double.parseDouble(tokens[5]);
-			}catch(Exception e) {
-				System.out.println("WARNING: cannot parse CPU load. Giving up future attempts to read.");
-				e.printStackTrace();
-				giveUp = true;
+		if(giveUp == true){
+			//Indicate we're not getting the load values
+			totalCPULoadPct = -1;
+			totalMemUsedPct = -1;
+			closeVirtFiles();
+		}
+		
+		sampleCostUs = (System.nanoTime() - startTime) / 1000.0;
+		
+	}
+	
+	//////////////////////////////////////////////////////////////////////////////
+	//// CPU LOAD PARSING & CALCULATION
+	//////////////////////////////////////////////////////////////////////////////
+	private void updateCPULoads(){
+		//Get fresh contents of the CPU load virtual file
+		try {
+			if(cpuLoadFile == null){
+				cpuLoadFile = FileChannel.open(Paths.get(CPU_LOAD_VIRT_FILE), StandardOpenOption.READ);
+			}
+			readVirtFile(cpuLoadFile);
+		} catch(IOException e){
+			System.out.println("WARNING: cannot get raw CPU load data. Giving up future attempts to read.");
+			e.printStackTrace();
+			giveUp = true;
+			return;
+		}
+		
+		//First meaningful line contains overall cpu load text info
+		//separated by spaces in the format:
+		// "cpu <user> <nice> <system> <idle> <iowait> <irq> <softirq> <steal> ..."
+		// Time units are system dependent, but we don't care
+		// since we are calculating a percentage.
+		if(!findLine(CPU_TOTAL_PREFIX) || !parseCPUTimes()){
+			System.out.println("WARNING: cannot parse CPU load. Giving up future attempts to read.");
+			giveUp = true;
+			return;
+		}
+		
+		cpuTimeTotal = 0;
+		for(int i = 0; i < NUM_CPU_TIMES; i++){
+			cpuTimeTotal += curCPUTimes[i];
+		}
+		
+		//Calculate change in time counters since last measurement
+		double deltaUserTime = (curCPUTimes[CPU_USER_IDX] - prevCPUTimes[CPU_USER_IDX]) + (curCPUTimes[CPU_NICE_IDX] - prevCPUTimes[CPU_NICE_IDX]);
+		double deltaSystemTime = curCPUTimes[CPU_SYSTEM_IDX] - prevCPUTimes[CPU_SYSTEM_IDX];
+		double deltaIdleTime = curCPUTimes[CPU_IDLE_IDX] - prevCPUTimes[CPU_IDLE_IDX];
+		double deltaIOWaitTime = curCPUTimes[CPU_IOWAIT_IDX] - prevCPUTimes[CPU_IOWAIT_IDX];
+		double deltaIRQTime = (curCPUTimes[CPU_IRQ_IDX] - prevCPUTimes[CPU_IRQ_IDX]) + (curCPUTimes[CPU_SOFTIRQ_IDX] - prevCPUTimes[CPU_SOFTIRQ_IDX]);
+		double deltaStealTime = curCPUTimes[CPU_STEAL_IDX] - prevCPUTimes[CPU_STEAL_IDX];
+		System.arraycopy(curCPUTimes, 0, prevCPUTimes, 0, NUM_CPU_TIMES);
+		
+		//Add up totals. Waiting on IO counts as idle - the CPU was free to do something else.
+		double totalInUseTime = (deltaUserTime + deltaSystemTime + deltaIRQTime + deltaStealTime);
+		double totalTime = totalInUseTime + deltaIdleTime + deltaIOWaitTime;
+		
+		//Calculate CPU loads to nearest tenth of percent
+		//(if no time has passed since the last sample, keep the old values)
+		if(totalTime > 0){
+			totalCPULoadPct = toPct(totalInUseTime, totalTime);
+			userCPULoadPct = toPct(deltaUserTime, totalTime);
+			systemCPULoadPct = toPct(deltaSystemTime, totalTime);
+			ioWaitCPULoadPct = toPct(deltaIOWaitTime, totalTime);
+			irqCPULoadPct = toPct(deltaIRQTime, totalTime);
+		}
+		
+		//Per-core lines follow, in the same format but starting with "cpu0", "cpu1", ...
+		int coreIdx = 0;
+		double busiestLoad = 0;
+		while(coreIdx < MAX_CORES && findLine(CPU_CORE_PREFIX)){
+			if(parseNextLong() != coreIdx || !parseCPUTimes()){
+				break;
 			}
 			
-			//Calculate change in time counters since last measurement
-			double deltaUserTime = curUserTime - prevUserTime;
-			double deltaNicedTime = curNicedTime - prevNicedTime;
-			double deltaSystemTime = curSystemTime - prevSystemTime;
-			double deltaIdleTime = curIdleTime - prevIdleTime;
-			
-			prevUserTime = curUserTime;
-			prevNicedTime = curNicedTime;
-			prevSystemTime = curSystemTime;
-			prevIdleTime = curIdleTime;
-			
-			//Add up totals
-			double totalInUseTime = (deltaUserTime + deltaNicedTime + deltaSystemTime);
-			double totalTime = totalInUseTime + deltaIdleTime;
+			long coreIdleTime = curCPUTimes[CPU_IDLE_IDX] + curCPUTimes[CPU_IOWAIT_IDX];
+			long coreTotalTime = 0;
+			for(int i = 0; i < NUM_CPU_TIMES; i++){
+				coreTotalTime += curCPUTimes[i];
+			}
+			long coreBusyTime = coreTotalTime - coreIdleTime;
 			
-			//Calculate CPU load to nearest tenth of percent
-			totalCPULoadPct = ((double)Math.round(totalInUseTime/totalTime * 1000.0))/10.0;
+			double deltaCoreTotalTime = coreTotalTime - prevCoreTotalTime[coreIdx];
+			if(deltaCoreTotalTime > 0){
+				coreCPULoadPct[coreIdx] = toPct(coreBusyTime - prevCoreBusyTime[coreIdx], deltaCoreTotalTime);
+			}
+			prevCoreBusyTime[coreIdx] = coreBusyTime;
+			prevCoreTotalTime[coreIdx] = coreTotalTime;
+			busiestLoad = Math.max(busiestLoad, coreCPULoadPct[coreIdx]);
+			coreIdx++;
+		}
+		numCores = coreIdx;
+		busiestCoreCPULoadPct = (numCores > 0) ? busiestLoad : totalCPULoadPct;
+	}
+	
+	/**
+	 * Parses the time counters for one cpu line, starting at the parse position, into curCPUTimes.
+	 * Older kernels don't report all of them, and those are left at zero.
+	 * @return true if at least the user, nice, system, and idle times were there
+	 */
+	private boolean parseCPUTimes(){
+		for(int i = 0; i < NUM_CPU_TIMES; i++){
+			curCPUTimes[i] = Math.max(parseNextLong(), 0);
+		}
+		return curCPUTimes[CPU_USER_IDX] + curCPUTimes[CPU_NICE_IDX] + curCPUTimes[CPU_SYSTEM_IDX] + curCPUTimes[CPU_IDLE_IDX] > 0;
+	}
+	
+	/**
+	 * Records the latest sample into the match log, if there is one.
+	 * Memory and heap values are from the most recent slow sample.
+	 */
+	private void writeMatchLogRecord(double sampleTime){
+		BinaryMatchLog log = matchLog;
+		if(log != null){
+			int record = log.startRecord();
+			log.setField(record, 0, totalCPULoadPct);
+			log.setField(record, 1, busiestCoreCPULoadPct);
+			log.setField(record, 2, userCPULoadPct);
+			log.setField(record, 3, systemCPULoadPct);
+			log.setField(record, 4, ioWaitCPULoadPct);
+			log.setField(record, 5, irqCPULoadPct);
+			log.setField(record, 6, totalMemUsedPct);
+			log.setField(record, 7, heapUsedBytes / (1024.0 * 1024.0));
+			log.finishRecord(record, MATCH_LOG_TYPE_LOAD, sampleTime);
+		}
+	}
+	
+	//////////////////////////////////////////////////////////////////////////////
+	//// MEMORY LOAD PARSING & CALCULATION
+	//////////////////////////////////////////////////////////////////////////////
+	private void updateMemLoad(){
+		//Get fresh contents of the memory load virtual file
+		try {
+			if(memLoadFile == null){
+				memLoadFile = FileChannel.open(Paths.get(MEM_LOAD_VIRT_FILE), StandardOpenOption.READ);
+			}
+			readVirtFile(memLoadFile);
+		} catch(IOException e){
+			System.out.println("WARNING: cannot get raw memory load data. Giving up future attempts to read.");
+			e.printStackTrace();
+			giveUp = true;
+			return;
+		}
+		
+		//Lines should be in the format
+		// "<title> <value> <units>" and we only care about value.
+		long curTotalMem = -1;
+		long curFreeMem = -1;
+		long curAvailableMem = -1;
+		if(findLine(MEM_TOTAL_PREFIX)){
+			curTotalMem = parseNextLong();
+		}
+		if(findLine(MEM_FREE_PREFIX)){
+			curFreeMem = parseNextLong();
+		}
+		
+		if(curTotalMem <= 0 || curFreeMem < 0) {
+			System.out.println("WARNING: cannot parse memory load. Giving up future attempts to read.");
+			giveUp = true;
+			return;
+		}
+		
+		//Free memory doesn't count disk cache and buffers, which the kernel gives back when something needs it.
+		//Kernels since 3.14 estimate what's really available, older ones need us to add the cache back in.
+		int afterFreeIdx = parseIdx;
+		if(findLine(MEM_AVAILABLE_PREFIX)){
+			curAvailableMem = parseNextLong();
+		}
+		if(curAvailableMem < 0){
+			parseIdx = afterFreeIdx;
+			curAvailableMem = curFreeMem;
+			if(findLine(MEM_BUFFERS_PREFIX)){
+				curAvailableMem += Math.max(parseNextLong(), 0);
+			}
+			if(findLine(MEM_CACHED_PREFIX)){
+				curAvailableMem += Math.max(parseNextLong(), 0);
+			}
+		}
+		
+		//Mathy math math
+		totalMemUsedPct = ((double)Math.round((1.0 - (double)curAvailableMem/(double)curTotalMem) * 1000.0))/10.0;
+	}
+	
+	//////////////////////////////////////////////////////////////////////////////
+	//// JVM MEMORY & GARBAGE COLLECTION
+	//////////////////////////////////////////////////////////////////////////////
+	private void updateJVMMemory(){
+		//Runtime gives heap numbers without allocating anything, unlike the memory bean
+		Runtime runtime = Runtime.getRuntime();
+		heapUsedBytes = runtime.totalMemory() - runtime.freeMemory();
+		heapMaxBytes = runtime.maxMemory();
+		
+		long curGCCount = 0;
+		long curGCTimeMs = 0;
+		for(int i = 0; i < gcBeans.size(); i++){
+			GarbageCollectorMXBean gcBean = gcBeans.get(i);
+			//Either can be -1 if the collector doesn't keep track
+			curGCCount += Math.max(gcBean.getCollectionCount(), 0);
+			curGCTimeMs += Math.max(gcBean.getCollectionTime(), 0);
+		}
+		
+		//Share of the time since the last sample spent collecting garbage
+		if(slowSampleTimeDeltaS > 0){
+			gcTimePct = toPct((curGCTimeMs - gcTimeMs) / 1000.0, slowSampleTimeDeltaS);
+		}
+		gcCount = curGCCount;
+		gcTimeMs = curGCTimeMs;
+	}
+	
+	//////////////////////////////////////////////////////////////////////////////
+	//// PER-THREAD LOAD PARSING & CALCULATION
+	//////////////////////////////////////////////////////////////////////////////
+	private void updateThreadLoads(){
+		//Time which passed on one core, for comparing thread times against
+		coreTimeDelta = (double)(cpuTimeTotal - prevThreadSampleCPUTimeTotal) / Math.max(numCores, 1);
+		prevThreadSampleCPUTimeTotal = cpuTimeTotal;
+		
+		for(int slot = 0; slot < numThreads; slot++){
+			long threadTime = readThreadTime(slot);
+			if(threadTime < 0){
+				//Thread probably ended. It'll get cleaned out on the next rescan.
+				threadCPULoadPct[slot] = 0;
+				continue;
+			}
 			
+			//Percent of one core's time
+			if(coreTimeDelta > 0){
+				threadCPULoadPct[slot] = toPct(threadTime - prevThreadTime[slot], coreTimeDelta);
+			}
+			prevThreadTime[slot] = threadTime;
 			
+			//Memory allocation rate, for threads we know the Java ID of
+			long allocBytes = readThreadAllocBytes(slot);
+			if(allocBytes >= 0 && prevThreadAllocBytes[slot] >= 0 && slowSampleTimeDeltaS > 0){
+				threadAllocRateKBps[slot] = (allocBytes - prevThreadAllocBytes[slot]) / 1024.0 / slowSampleTimeDeltaS;
+			}
+			prevThreadAllocBytes[slot] = allocBytes;
+		}
+	}
+	
+	/**
+	 * Reads how many bytes a thread has allocated so far.
+	 * @param slot thread slot to read
+	 * @return bytes allocated, or -1 if not available for this thread
+	 */
+	private long readThreadAllocBytes(int slot){
+		if(threadAllocBean == null || threadJavaIDs[slot] < 0){
+			return -1;
+		}
+		return threadAllocBean.getThreadAllocatedBytes(threadJavaIDs[slot]);
+	}
+	
+	/**
+	 * Looks up the Java thread ID for a Linux thread, if the thread registered itself.
+	 * @return Java thread ID, or -1 if not known
+	 */
+	private static long lookupJavaThreadID(int threadID){
+		Long javaID = registeredJavaThreadIDs.get(threadID);
+		return (javaID != null) ? javaID : -1;
+	}
+	
+	/**
+	 * Reads the total user plus system CPU time a thread has used so far.
+	 * Leaves the whole stat file in readBuf.
+	 * @param slot thread slot to read
+	 * @return CPU time in kernel time units, or -1 if the thread couldn't be read
+	 */
+	private long readThreadTime(int slot){
+		FileChannel file = threadStatFiles[slot];
+		if(file == null){
+			return -1;
+		}
+		
+		try {
+			readVirtFile(file);
+		} catch(IOException e){
+			closeThreadSlot(slot);
+			return -1;
+		}
+		
+		//Format is "<id> (<name>) <state> <parent id> ... <utime> <stime> ..."
+		//The name can have spaces and brackets in it, so count fields from the last ")"
+		int nameEnd = lastIndexOf((byte)')');
+		if(nameEnd < 0){
+			closeThreadSlot(slot);
+			return -1;
+		}
+		parseIdx = nameEnd + 1;
+		skipFields(THREAD_STAT_FIELDS_BEFORE_UTIME);
+		long utime = parseNextLong();
+		long stime = parseNextLong();
+		if(utime < 0 || stime < 0){
+			closeThreadSlot(slot);
+			return -1;
+		}
+		return utime + stime;
+	}
+	
+	/**
+	 * Refreshes the list of threads in this JVM - forgets ones which have ended, and starts tracking new ones.
+	 * This does allocate, so it should only be done occasionally.
+	 */
+	private void rescanThreads(){
+		String[] taskDirs = new File(THREAD_LIST_VIRT_DIR).list();
+		if(taskDirs == null){
+			System.out.println("WARNING: cannot list JVM threads. Giving up per-thread load tracking.");
+			threadTrackingAvailable = false;
+			return;
+		}
+		
+		//Figure out which threads we already know about are still around
+		for(int slot = 0; slot < numThreads; slot++){
+			threadSeen[slot] = false;
+		}
+		for(String taskDir : taskDirs){
+			int threadID = Integer.parseInt(taskDir);
+			for(int slot = 0; slot < numThreads; slot++){
+				if(threadIDs[slot] == threadID){
+					threadSeen[slot] = true;
+					break;
+				}
+			}
+		}
+		
+		//Pack the remaining ones down to the start of the list
+		int keptThreads = 0;
+		for(int slot = 0; slot < numThreads; slot++){
+			if(threadSeen[slot] && threadStatFiles[slot] != null){
+				threadIDs[keptThreads] = threadIDs[slot];
+				threadStatFiles[keptThreads] = threadStatFiles[slot];
+				prevThreadTime[keptThreads] = prevThreadTime[slot];
+				threadCPULoadPct[keptThreads] = threadCPULoadPct[slot];
+				prevThreadAllocBytes[keptThreads] = prevThreadAllocBytes[slot];
+				threadAllocRateKBps[keptThreads] = threadAllocRateKBps[slot];
+				threadJavaIDs[keptThreads] = lookupJavaThreadID(threadIDs[slot]);
+				if(threadJavaIDs[keptThreads] != threadJavaIDs[slot]){
+					//Just registered, so there's no earlier allocation count to compare against
+					prevThreadAllocBytes[keptThreads] = -1;
+				}
+				//Pick up a registration which happened after the thread was first found
+				String registeredName = registeredThreadNames.get(threadIDs[slot]);
+				threadNames[keptThreads] = (registeredName != null) ? registeredName : threadNames[slot];
+				keptThreads++;
+			} else {
+				closeThreadSlot(slot);
+			}
+		}
+		for(int slot = keptThreads; slot < numThreads; slot++){
+			threadStatFiles[slot] = null;
+			threadNames[slot] = null;
+		}
+		numThreads = keptThreads;
+		
+		//Add on any new ones
+		for(String taskDir : taskDirs){
+			if(numThreads >= MAX_THREADS){
+				break;
+			}
 			
-			//////////////////////////////////////////////////////////////////////////////
-			//// MEMORY LOAD PARSING & CALCULATION
-			//////////////////////////////////////////////////////////////////////////////
-			String memTotalStr = new String();
-			String memFreeStr =  new String();
-			String line = new String();
+			int threadID = Integer.parseInt(taskDir);
+			boolean known = false;
+			for(int slot = 0; slot < numThreads; slot++){
+				if(threadIDs[slot] == threadID){
+					known = true;
+					break;
+				}
+			}
+			if(known){
+				continue;
+			}
 			
-			//Get meaningful line from CPU load virtual file
-			file = new File(MEM_LOAD_VIRT_FILE);
+			int slot = numThreads;
 			try {
-				BufferedReader br = new BufferedReader(new FileReader(file));
-				line = br.readLine();
-				while(line != null){
-					if(line.startsWith("MemTotal: ")){
-						memTotalStr = line;
-					} else if(line.startsWith("MemFree:")){
-						memFreeStr = line;
-						break;
-					}
-					line = br.readLine();
-				}
-				br.close();
+				threadStatFiles[slot] = FileChannel.open(Paths.get(THREAD_LIST_VIRT_DIR, taskDir, "stat"), StandardOpenOption.READ);
 			} catch(IOException e){
-				System.out.println("WARNING: cannot get raw memory load data. Giving up future attempts to read.");
-				e.printStackTrace();
-				giveUp = true;
+				//Thread ended before we got to it
+				continue;
+			}
+			threadIDs[slot] = threadID;
+			threadCPULoadPct[slot] = 0;
+			threadJavaIDs[slot] = lookupJavaThreadID(threadID);
+			threadAllocRateKBps[slot] = 0;
+			prevThreadAllocBytes[slot] = readThreadAllocBytes(slot);
+			prevThreadTime[slot] = readThreadTime(slot);
+			if(prevThreadTime[slot] < 0){
+				continue;
 			}
 			
-			//Split up the string which should be in the format
-			// "<title> <value> <units>" and we only care about value.
-			String[] memTotalTokens = memTotalStr.split("\\s+");
-			String[] memFreeTokens = memFreeStr.split("\\s+");
-			
-			//Parse values from proper tokens
-			double curTotalMem = 0;
-			double curFreeMem = 0;
-			try{
-				curTotalMem = Double.parseDouble(memTotalTokens[1]);
-				curFreeMem = Double.parseDouble(memFreeTokens[1]);
-			}catch(Exception e) {
-				System.out.println("WARNING: cannot parse memory load. Giving up future attempts to read.");
+			//Name the kernel knows the thread by is in the stat file, between the first "(" and last ")"
+			String registeredName = registeredThreadNames.get(threadID);
+			if(registeredName != null){
+				threadNames[slot] = registeredName;
+			} else {
+				int nameStart = indexOf((byte)'(') + 1;
+				int nameEnd = lastIndexOf((byte)')');
+				byte[] nameBytes = new byte[Math.max(nameEnd - nameStart, 0)];
+				for(int i = 0; i < nameBytes.length; i++){
+					nameBytes[i] = readBuf.get(nameStart + i);
+				}
+				threadNames[slot] = new String(nameBytes, StandardCharsets.US_ASCII);
+			}
+			numThreads++;
+		}
+	}
+	
+	/**
+	 * Stops tracking the thread in the given slot, closing its stat file.
+	 */
+	private void closeThreadSlot(int slot){
+		if(threadStatFiles[slot] != null){
+			try {
+				threadStatFiles[slot].close();
+			} catch(IOException e){
 				e.printStackTrace();
-				giveUp = true;
 			}
-			
-			//Mathy math math
-			totalMemUsedPct = ((double)Math.round((1.0 - curFreeMem/curTotalMem) * 1000.0))/10.0;
-			
-			
-		} 
-		
-
-		if(giveUp == true){
-			//Indicate we're not getting the load values
-			totalCPULoadPct = -1;
-			totalMemUsedPct = -1;
+			threadStatFiles[slot] = null;
 		}
-		
-		
+	}
+	
+	//////////////////////////////////////////////////////////////////////////////
+	//// RAW FILE READING & PARSING
+	//////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Re-reads a /proc file from the start into readBuf. Only the first READ_BUF_SIZE bytes
+	 * are read, which covers everything we parse. Resets the parse position to the start.
+	 * @param file open channel to read
+	 * @throws IOException if the file can't be read
+	 */
+	private void readVirtFile(FileChannel file) throws IOException {
+		readBuf.clear();
+		file.position(0);
+		//The kernel may hand the contents over in pieces, keep going till it's done or we're full
+		while(readBuf.hasRemaining()){
+			if(file.read(readBuf) <= 0){
+				break;
+			}
+		}
+		readBuf.flip();
+		parseIdx = 0;
+	}
+	
+	/**
+	 * Moves the parse position to just after the given prefix, at the start of some line in readBuf.
+	 * Searches forward from the current parse position.
+	 * @param prefix bytes the line should start with
+	 * @return true if the line was found, false if not
+	 */
+	private boolean findLine(byte[] prefix){
+		int limit = readBuf.limit();
+		int lineStart = parseIdx;
+		while(lineStart + prefix.length <= limit){
+			int i = 0;
+			while(i < prefix.length && readBuf.get(lineStart + i) == prefix[i]){
+				i++;
+			}
+			if(i == prefix.length){
+				parseIdx = lineStart + prefix.length;
+				return true;
+			}
+			//Not this line, skip to the next one
+			while(lineStart < limit && readBuf.get(lineStart) != '\n'){
+				lineStart++;
+			}
+			lineStart++;
+		}
+		return false;
+	}
+	
+	/**
+	 * Parses the next non-negative whole number in the current line of readBuf, starting at the parse
+	 * position, and moves the parse position past it.
+	 * @return the parsed number, or -1 if the line has no more numbers
+	 */
+	private long parseNextLong(){
+		int limit = readBuf.limit();
+		//Skip over the spaces between values
+		while(parseIdx < limit && readBuf.get(parseIdx) == ' '){
+			parseIdx++;
+		}
+		long value = 0;
+		int numDigits = 0;
+		while(parseIdx < limit){
+			byte b = readBuf.get(parseIdx);
+			if(b < '0' || b > '9'){
+				break;
+			}
+			value = value * 10 + (b - '0');
+			numDigits++;
+			parseIdx++;
+		}
+		return (numDigits > 0) ? value : -1;
+	}
+	
+	/**
+	 * Moves the parse position past the next few space-separated fields, whatever they contain.
+	 * @param numFields number of fields to skip
+	 */
+	private void skipFields(int numFields){
+		int limit = readBuf.limit();
+		for(int i = 0; i < numFields; i++){
+			while(parseIdx < limit && readBuf.get(parseIdx) == ' '){
+				parseIdx++;
+			}
+			while(parseIdx < limit && readBuf.get(parseIdx) != ' '){
+				parseIdx++;
+			}
+		}
+	}
+	
+	/**
+	 * @return index of the first occurrence of the character in readBuf, or -1 if not there
+	 */
+	private int indexOf(byte c){
+		for(int i = 0; i < readBuf.limit(); i++){
+			if(readBuf.get(i) == c){
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return index of the last occurrence of the character in readBuf, or -1 if not there
+	 */
+	private int lastIndexOf(byte c){
+		for(int i = readBuf.limit() - 1; i >= 0; i--){
+			if(readBuf.get(i) == c){
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Closes the /proc files, if open.
+	 */
+	private void closeVirtFiles(){
+		try {
+			if(cpuLoadFile != null){
+				cpuLoadFile.close();
+			}
+			if(memLoadFile != null){
+				memLoadFile.close();
+			}
+		} catch(IOException e){
+			e.printStackTrace();
+		}
+		cpuLoadFile = null;
+		memLoadFile = null;
+		for(int slot = 0; slot < numThreads; slot++){
+			closeThreadSlot(slot);
+		}
+		numThreads = 0;
+	}
+	
+	/**
+	 * @return part as a percentage of whole, to the nearest tenth of a percent
+	 */
+	private static double toPct(double part, double whole){
+		return ((double)Math.round(part/whole * 1000.0))/10.0;
 	}
 	
 	/**
@@ -260,12 +969,268 @@ public class CasseroleRIOLoadMonitor {
 	}
 	
 	/**
-	 * Getter for the load percentage on memory. 
+	 * Getter for load percentage of whichever core is the busiest right now.
+	 * @return percentage of non-idle time on the busiest core
+	 */
+	public double getBusiestCoreCPULoadPct(){
+		return busiestCoreCPULoadPct;
+	}
+	
+	/**
+	 * Getter for the history of recent CPU load samples.
+	 */
+	public CPULoadHistory getHistory(){
+		return history;
+	}
+	
+	/**
+	 * Set how often CPU load is sampled. Faster rates catch shorter load spikes.
+	 * Memory, JVM, and per-thread stats are still only updated about every 250ms.
+	 * @param updateRate_ms time between samples in milliseconds, no less than MIN_UPDATE_RATE_MS
+	 */
+	public void setUpdateRate_ms(int updateRate_ms){
+		updateRateMs = Math.max(updateRate_ms, MIN_UPDATE_RATE_MS);
+	}
+	
+	/**
+	 * Getter for how often CPU load is sampled.
+	 * @return time between samples in milliseconds
+	 */
+	public int getUpdateRate_ms(){
+		return updateRateMs;
+	}
+	
+	/**
+	 * Record every CPU load sample from now on into the given match log, timestamped with when it
+	 * was taken. Pass null to stop. Recording happens on the monitor's background thread.
+	 */
+	public void setMatchLog(BinaryMatchLog log){
+		if(log != null){
+			log.defineRecordType(MATCH_LOG_TYPE_LOAD, "rioLoad", "cpu_pct", "busiest_core_pct", "cpu_user_pct", "cpu_system_pct", 
+			                     "cpu_iowait_pct", "cpu_irq_pct", "mem_pct", "heap_used_MB");
+		}
+		matchLog = log;
+	}
+	
+	/**
+	 * Getter for the percentage of CPU time spent running user code (including niced processes). 
+	 * Aggregate of all cores on the system.
+	 * @return percentage of all time
+	 */
+	public double getCPUUserPct(){
+		return userCPULoadPct;
+	}
+	
+	/**
+	 * Getter for the percentage of CPU time spent running kernel code on behalf of processes.
+	 * Aggregate of all cores on the system.
+	 * @return percentage of all time
+	 */
+	public double getCPUSystemPct(){
+		return systemCPULoadPct;
+	}
+	
+	/**
+	 * Getter for the percentage of CPU time spent idle while waiting on disk or other IO.
+	 * This is not included in getCPULoadPct(). Aggregate of all cores on the system.
+	 * @return percentage of all time
+	 */
+	public double getCPUIOWaitPct(){
+		return ioWaitCPULoadPct;
+	}
+	
+	/**
+	 * Getter for the percentage of CPU time spent servicing hardware and software interrupts.
+	 * Aggregate of all cores on the system.
+	 * @return percentage of all time
+	 */
+	public double getCPUIRQPct(){
+		return irqCPULoadPct;
+	}
+	
+	/**
+	 * Getter for the number of cores with their own load measurement.
+	 * @return number of cores, or 0 if not known yet
+	 */
+	public int getNumCores(){
+		return numCores;
+	}
+	
+	/**
+	 * Getter for load percentage of a single core.
+	 * @param core core number, starting at 0
+	 * @return percentage of non-idle time on that core, or -1 if that core isn't being measured
+	 */
+	public double getCoreCPULoadPct(int core){
+		if(core < 0 || core >= numCores){
+			return -1;
+		}
+		return coreCPULoadPct[core];
+	}
+	
+	/**
+	 * Getter for the number of this JVM's threads whose load is being measured.
+	 * The list of threads is re-scanned every few seconds, so thread index numbers can change then.
+	 */
+	public synchronized int getNumThreads(){
+		return numThreads;
+	}
+	
+	/**
+	 * Getter for the name of one of this JVM's threads.
+	 * @param idx thread index, from 0 to getNumThreads()-1
+	 * @return thread name, or null if there is no such thread
+	 */
+	public synchronized String getThreadName(int idx){
+		if(idx < 0 || idx >= numThreads){
+			return null;
+		}
+		return threadNames[idx];
+	}
+	
+	/**
+	 * Getter for the Linux thread ID of one of this JVM's threads.
+	 * @param idx thread index, from 0 to getNumThreads()-1
+	 * @return thread ID, or -1 if there is no such thread
+	 */
+	public synchronized int getThreadID(int idx){
+		if(idx < 0 || idx >= numThreads){
+			return -1;
+		}
+		return threadIDs[idx];
+	}
+	
+	/**
+	 * Getter for the CPU load of one of this JVM's threads.
+	 * @param idx thread index, from 0 to getNumThreads()-1
+	 * @return percentage of one core's time the thread spent running, or -1 if there is no such thread
+	 */
+	public synchronized double getThreadCPULoadPct(int idx){
+		if(idx < 0 || idx >= numThreads){
+			return -1;
+		}
+		return threadCPULoadPct[idx];
+	}
+	
+	/**
+	 * Getter for the CPU load of this JVM's threads with the given name.
+	 * @param name thread name, as registered or as known by Linux
+	 * @return percentage of one core's time the threads spent running (added up, if several
+	 *  have the name), or -1 if there are no threads with that name
+	 */
+	public synchronized double getThreadCPULoadPct(String name){
+		double loadPct = -1;
+		for(int slot = 0; slot < numThreads; slot++){
+			if(name.equals(threadNames[slot])){
+				loadPct = Math.max(loadPct, 0) + threadCPULoadPct[slot];
+			}
+		}
+		return loadPct;
+	}
+	
+	/**
+	 * Getter for how fast one of this JVM's threads is allocating memory.
+	 * Only available for threads which called registerCurrentThread().
+	 * @param idx thread index, from 0 to getNumThreads()-1
+	 * @return allocation rate in kilobytes per second, or -1 if not available for this thread
+	 */
+	public synchronized double getThreadAllocRate_kBps(int idx){
+		if(idx < 0 || idx >= numThreads || threadJavaIDs[idx] < 0 || threadAllocBean == null){
+			return -1;
+		}
+		return threadAllocRateKBps[idx];
+	}
+	
+	/**
+	 * Getter for how fast this JVM's threads with the given name are allocating memory.
+	 * Only available for threads which called registerCurrentThread().
+	 * @param name thread name, as registered
+	 * @return allocation rate in kilobytes per second (added up, if several have the name), 
+	 *  or -1 if not available for any threads with that name
+	 */
+	public synchronized double getThreadAllocRate_kBps(String name){
+		double rate = -1;
+		for(int slot = 0; slot < numThreads; slot++){
+			if(name.equals(threadNames[slot]) && threadJavaIDs[slot] >= 0 && threadAllocBean != null){
+				rate = Math.max(rate, 0) + threadAllocRateKBps[slot];
+			}
+		}
+		return rate;
+	}
+	
+	/**
+	 * Getter for the load percentage on memory. Memory the kernel is only using for disk
+	 * caching counts as available, since it's given back as soon as something needs it.
 	 * @return percentage of available system RAM, or -1 if percentage unavailable.
 	 */
 	public double getMemLoadPct(){
 		return totalMemUsedPct;
 	}
+	
+	/**
+	 * Getter for how much of the java heap is in use, including garbage not yet collected.
+	 * @return heap usage in megabytes
+	 */
+	public double getHeapUsed_MB(){
+		return heapUsedBytes / (1024.0 * 1024.0);
+	}
+	
+	/**
+	 * Getter for the most the java heap is allowed to grow to.
+	 * @return max heap size in megabytes
+	 */
+	public double getHeapMax_MB(){
+		return heapMaxBytes / (1024.0 * 1024.0);
+	}
+	
+	/**
+	 * Getter for how much of the maximum java heap is in use.
+	 * @return percentage of max heap size
+	 */
+	public double getHeapUsedPct(){
+		return (heapMaxBytes > 0) ? toPct(heapUsedBytes, heapMaxBytes) : 0;
+	}
+	
+	/**
+	 * Getter for JVM memory used outside the heap (loaded classes, compiled code, etc).
+	 * Updated every few seconds.
+	 * @return non-heap usage in megabytes
+	 */
+	public double getNonHeapUsed_MB(){
+		return nonHeapUsedBytes / (1024.0 * 1024.0);
+	}
+	
+	/**
+	 * Getter for how many garbage collections have run since the JVM started, all collectors added up.
+	 */
+	public long getGCCount(){
+		return gcCount;
+	}
+	
+	/**
+	 * Getter for how long garbage collection has taken since the JVM started, all collectors added up.
+	 * Depending on the collector, not all of this time necessarily paused the program.
+	 * @return total collection time in milliseconds
+	 */
+	public long getGCTime_ms(){
+		return gcTimeMs;
+	}
+	
+	/**
+	 * Getter for how much of the time since the previous sample was spent collecting garbage.
+	 * @return percentage of wall-clock time
+	 */
+	public double getGCTimePct(){
+		return gcTimePct;
+	}
+	
+	/**
+	 * Getter for how much time the monitor itself spent on the most recent sample.
+	 * @return time spent reading and calculating the loads, in microseconds
+	 */
+	public double getSampleCost_us(){
+		return sampleCostUs;
+	}
     
 
 }
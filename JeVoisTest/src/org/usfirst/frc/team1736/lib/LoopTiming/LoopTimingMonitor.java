@@ -0,0 +1,288 @@
+package org.usfirst.frc.team1736.lib.LoopTiming;
+
+/*
+ *******************************************************************************************
+ * Copyright (C) 2018 FRC Team 1736 Robot Casserole - www.robotcasserole.org
+ *******************************************************************************************
+ *
+ * This software is released under the MIT Licence - see the license.txt
+ *  file in the root of this repo.
+ *
+ * Non-legally-binding statement from Team 1736:
+ *  Thank you for taking the time to read through our software! We hope you
+ *   find it educational and informative! 
+ *  Please feel free to snag our software for your own use in whatever project
+ *   you have going on right now! We'd love to be able to help out! Shoot us 
+ *   any questions you may have, all our contact info should be on our website
+ *   (listed above).
+ *  If you happen to end up using our software to make money, that is wonderful!
+ *   Robot Casserole is always looking for more sponsors, so we'd be very appreciative
+ *   if you would consider donating to our club to help further STEM education.
+ */
+
+import org.usfirst.frc.team1736.lib.Stats.WindowedHistogram;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * DESCRIPTION: <br>
+ * Measures how long each run of a periodic loop (ex: teleopPeriodic) takes, split up into named phases
+ * (ex: "vision read", "output"), and flags loops which run over their time budget. Durations go into
+ * sliding-window histograms, so the typical, worst-case and 99th percentile times are all available.
+ * <br>
+ * <br>
+ * Everything is allocated up front, so timing a loop doesn't allocate anything. The only exception is the
+ * warning printed when a loop overruns, which is limited to once a second.
+ * <br>
+ * <br>
+ * The time of the most recent overrun is kept as an FPGA timestamp, so it can be looked up in
+ * CasseroleRIOLoadMonitor's CPU load history to see what else the processor was doing.
+ * <br>
+ * <br>
+ * USAGE:
+ * <ol>
+ * <li>Instantiate with the loop time budget and the names of the phases.</li>
+ * <li>At the start of each loop, call startLoop().</li>
+ * <li>At the start of each phase, call startPhase() with the phase's index (the order the names were given in).
+ * This also ends the previous phase.</li>
+ * <li>At the end of the loop, call endLoop().</li>
+ * <li>Call the getters from any thread to see the results.</li>
+ * </ol>
+ * Only call startLoop()/startPhase()/endLoop() from one thread.
+ * 
+ */
+public class LoopTimingMonitor {
+
+    // Length of time over which the statistics are kept
+    private static final double STATS_WINDOW_S = 5.0;
+    private static final int STATS_WINDOW_SLICES = 5;
+    
+    // Least time between overrun warnings
+    private static final double OVERRUN_WARNING_PERIOD_S = 1.0;
+    
+    private final long budgetNs;
+    private final String[] phaseNames;
+    
+    // Durations, in microseconds
+    private final WindowedHistogram loopTimeStats = new WindowedHistogram(STATS_WINDOW_S, STATS_WINDOW_SLICES);
+    private final WindowedHistogram loopPeriodStats = new WindowedHistogram(STATS_WINDOW_S, STATS_WINDOW_SLICES);
+    private final WindowedHistogram[] phaseTimeStats;
+    
+    // Timing of the loop in progress, in nanoseconds
+    private long loopStartTimeNs = 0;
+    private long prevLoopStartTimeNs = 0;
+    private long phaseStartTimeNs = 0;
+    private int curPhase = -1;
+    private final long[] curPhaseTimeNs;
+    
+    // Results of the most recently finished loop
+    private volatile double lastLoopTimeMs = 0;
+    private final double[] lastPhaseTimeMs;
+    
+    // Overrun tracking
+    private volatile long overrunCount = 0;
+    private volatile long loopCount = 0;
+    private volatile double lastOverrunTime = -1;
+    private volatile double lastOverrunDurationMs = 0;
+    private volatile int lastOverrunSlowestPhase = -1;
+    private double lastOverrunWarningTime = -OVERRUN_WARNING_PERIOD_S;
+    
+    /**
+     * Constructor
+     * @param budget_s time each loop is allowed to take, in seconds (ex: 0.02 for the usual 20ms robot loop)
+     * @param phaseNames names of the phases of each loop, in order
+     */
+    public LoopTimingMonitor(double budget_s, String... phaseNames){
+        this.budgetNs = Math.round(budget_s * 1.0e9);
+        this.phaseNames = phaseNames.clone();
+        phaseTimeStats = new WindowedHistogram[phaseNames.length];
+        for(int i = 0; i < phaseNames.length; i++){
+            phaseTimeStats[i] = new WindowedHistogram(STATS_WINDOW_S, STATS_WINDOW_SLICES);
+        }
+        curPhaseTimeNs = new long[phaseNames.length];
+        lastPhaseTimeMs = new double[phaseNames.length];
+    }
+    
+    /**
+     * Call at the start of each loop.
+     */
+    public void startLoop(){
+        long now = System.nanoTime();
+        prevLoopStartTimeNs = loopStartTimeNs;
+        loopStartTimeNs = now;
+        phaseStartTimeNs = now;
+        curPhase = -1;
+        for(int i = 0; i < curPhaseTimeNs.length; i++){
+            curPhaseTimeNs[i] = 0;
+        }
+        
+        //Start-to-start time shows how regularly the loop is being called
+        if(prevLoopStartTimeNs != 0){
+            loopPeriodStats.record((now - prevLoopStartTimeNs) / 1000, now / 1.0e9);
+        }
+    }
+    
+    /**
+     * Call at the start of each phase of the loop. Ends whichever phase was running.
+     * A phase can be started more than once per loop, its times are added up.
+     * @param phase index of the phase, in the order the names were given to the constructor
+     */
+    public void startPhase(int phase){
+        long now = System.nanoTime();
+        endPhase(now);
+        curPhase = phase;
+        phaseStartTimeNs = now;
+    }
+    
+    /**
+     * Call at the end of each loop. Records all the times, and checks whether the loop overran its budget.
+     */
+    public void endLoop(){
+        long now = System.nanoTime();
+        endPhase(now);
+        curPhase = -1;
+        
+        long loopTimeNs = now - loopStartTimeNs;
+        double statsTime = now / 1.0e9;
+        loopTimeStats.record(loopTimeNs / 1000, statsTime);
+        lastLoopTimeMs = loopTimeNs / 1.0e6;
+        
+        int slowestPhase = -1;
+        for(int i = 0; i < curPhaseTimeNs.length; i++){
+            phaseTimeStats[i].record(curPhaseTimeNs[i] / 1000, statsTime);
+            lastPhaseTimeMs[i] = curPhaseTimeNs[i] / 1.0e6;
+            if(slowestPhase < 0 || curPhaseTimeNs[i] > curPhaseTimeNs[slowestPhase]){
+                slowestPhase = i;
+            }
+        }
+        
+        loopCount++;
+        if(loopTimeNs > budgetNs){
+            overrunCount++;
+            double overrunTime = Timer.getFPGATimestamp();
+            lastOverrunTime = overrunTime;
+            lastOverrunDurationMs = lastLoopTimeMs;
+            lastOverrunSlowestPhase = slowestPhase;
+            
+            if(overrunTime - lastOverrunWarningTime >= OVERRUN_WARNING_PERIOD_S){
+                lastOverrunWarningTime = overrunTime;
+                DriverStation.reportWarning("Loop overrun: took " + String.format("%.1f", lastLoopTimeMs) + "ms" + 
+                                            ((slowestPhase >= 0) ? (", mostly in " + phaseNames[slowestPhase]) : "") + 
+                                            " (" + overrunCount + " overruns so far)", false);
+            }
+        }
+    }
+    
+    /**
+     * Adds the time since the phase started onto the running phase, if there is one.
+     */
+    private void endPhase(long now){
+        if(curPhase >= 0 && curPhase < curPhaseTimeNs.length){
+            curPhaseTimeNs[curPhase] += now - phaseStartTimeNs;
+        }
+    }
+    
+    /**
+     * @return number of phases each loop is split into
+     */
+    public int getNumPhases(){
+        return phaseNames.length;
+    }
+    
+    /**
+     * @param phase index of the phase
+     * @return name of the phase
+     */
+    public String getPhaseName(int phase){
+        return phaseNames[phase];
+    }
+    
+    /**
+     * @return how long the most recent loop took, start to end, in milliseconds
+     */
+    public double getLoopTime_ms(){
+        return lastLoopTimeMs;
+    }
+    
+    /**
+     * @param phase index of the phase
+     * @return how long the phase took in the most recent loop, in milliseconds
+     */
+    public double getPhaseTime_ms(int phase){
+        return lastPhaseTimeMs[phase];
+    }
+    
+    /**
+     * @return statistics on how long each loop took over the last few seconds, start to end, in microseconds
+     */
+    public WindowedHistogram getLoopTimeStats(){
+        return loopTimeStats;
+    }
+    
+    /**
+     * @return statistics on time from the start of one loop to the start of the next over the last few seconds,
+     *  in microseconds. Shows how regularly the loop is actually being run.
+     */
+    public WindowedHistogram getLoopPeriodStats(){
+        return loopPeriodStats;
+    }
+    
+    /**
+     * @param phase index of the phase
+     * @return statistics on how long the phase took each loop over the last few seconds, in microseconds
+     */
+    public WindowedHistogram getPhaseTimeStats(int phase){
+        return phaseTimeStats[phase];
+    }
+    
+    /**
+     * @return time each loop is allowed to take, in milliseconds
+     */
+    public double getBudget_ms(){
+        return budgetNs / 1.0e6;
+    }
+    
+    /**
+     * @return how many loops have been timed
+     */
+    public long getLoopCount(){
+        return loopCount;
+    }
+    
+    /**
+     * @return how many loops have gone over their time budget
+     */
+    public long getOverrunCount(){
+        return overrunCount;
+    }
+    
+    /**
+     * @return percentage of all timed loops which went over their time budget
+     */
+    public double getOverrunPct(){
+        long loops = loopCount;
+        return (loops > 0) ? (100.0 * overrunCount / loops) : 0;
+    }
+    
+    /**
+     * @return FPGA timestamp at the end of the most recent loop which overran, or -1 if none have
+     */
+    public double getLastOverrunTime_s(){
+        return lastOverrunTime;
+    }
+    
+    /**
+     * @return how long the most recent loop which overran took, in milliseconds
+     */
+    public double getLastOverrunDuration_ms(){
+        return lastOverrunDurationMs;
+    }
+    
+    /**
+     * @return index of the phase which took the longest in the most recent loop which overran, or -1 if none have
+     */
+    public int getLastOverrunSlowestPhase(){
+        return lastOverrunSlowestPhase;
+    }
+}
@@ -0,0 +1,292 @@
+package org.usfirst.frc.team1736.lib.MatchLog;
+
+/*
+ *******************************************************************************************
+ * Copyright (C) 2018 FRC Team 1736 Robot Casserole - www.robotcasserole.org
+ *******************************************************************************************
+ *
+ * This software is released under the MIT Licence - see the license.txt
+ *  file in the root of this repo.
+ *
+ * Non-legally-binding statement from Team 1736:
+ *  Thank you for taking the time to read through our software! We hope you
+ *   find it educational and informative! 
+ *  Please feel free to snag our software for your own use in whatever project
+ *   you have going on right now! We'd love to be able to help out! Shoot us 
+ *   any questions you may have, all our contact info should be on our website
+ *   (listed above).
+ *  If you happen to end up using our software to make money, that is wonderful!
+ *   Robot Casserole is always looking for more sponsors, so we'd be very appreciative
+ *   if you would consider donating to our club to help further STEM education.
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.usfirst.frc.team1736.lib.LoadMon.CasseroleRIOLoadMonitor;
+
+/**
+ * DESCRIPTION: <br>
+ * Compact binary log of what happened during a match - vision packets, load samples, or anything else
+ * which fits in a handful of numbers. Every record is the same size: a record type, an FPGA timestamp,
+ * and up to 8 values. Use MatchLogExporter to turn the file into CSV afterward.
+ * <br>
+ * <br>
+ * The whole file is allocated on disk when the log is created, and then memory-mapped. Writing a record
+ * is just claiming the next slot with one atomic add and copying the numbers into memory - no locks, no
+ * system calls, no allocation. A background thread asks the kernel to push the written pages out to disk
+ * every second, so the threads writing records never wait on the disk. Once the file is full, further
+ * records are dropped and counted.
+ * <br>
+ * <br>
+ * The file starts with a header describing each record type's name and field names, so the exporter
+ * doesn't need to know anything about who wrote it. Each record's type is written last, and records are padded
+ * so none straddles a page of the file, so a record which was half-written when power was lost reads back as an
+ * empty slot, and is skipped, rather than as garbage.
+ * <br>
+ * <br>
+ * USAGE:
+ * <ol>
+ * <li>Call create() with the file path and how many records it should hold. It writes out the whole file
+ * before returning, which can take a second or more for a big log on the roboRIO, so call it from a
+ * background thread if startup time matters.</li>
+ * <li>Call defineRecordType() for each kind of record, before writing any of that kind.</li>
+ * <li>For each record: call startRecord(), setField() for each value, then finishRecord(). Any thread can do
+ * this, at any time.</li>
+ * <li>Call close() at the end, if there is an end.</li>
+ * </ol>
+ * 
+ */
+public class BinaryMatchLog {
+
+    /** Most values in a single record */
+    public static final int MAX_FIELDS = 8;
+    
+    // File layout. All numbers little-endian.
+    static final int MAGIC = 0x474C4D43; // "CMLG"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4096;
+    // Type, time, and fields only need 80, but a power of two divides the 4096 byte page evenly, so the kernel
+    // always writes a record out to disk in one piece
+    static final int RECORD_SIZE = 128;
+    // Header fields
+    static final int HDR_MAGIC_OFFSET = 0;
+    static final int HDR_VERSION_OFFSET = 4;
+    static final int HDR_HEADER_SIZE_OFFSET = 8;
+    static final int HDR_RECORD_SIZE_OFFSET = 12;
+    static final int HDR_CREATED_TIME_OFFSET = 16;
+    static final int HDR_RECORD_COUNT_OFFSET = 24;
+    static final int HDR_TYPE_DEFS_LEN_OFFSET = 32;
+    static final int HDR_TYPE_DEFS_OFFSET = 36;
+    // Record fields
+    static final int REC_TYPE_OFFSET = 0;
+    static final int REC_TIME_OFFSET = 8;
+    static final int REC_FIELDS_OFFSET = 16;
+    
+    // How often the background thread pushes written records out to disk
+    private static final int FLUSH_PERIOD_MS = 1000;
+    
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int maxRecords;
+    
+    // Index of the next record to hand out
+    private final AtomicLong nextRecord = new AtomicLong(0);
+    private final AtomicLong droppedRecords = new AtomicLong(0);
+    
+    // Text of the record type definitions in the header
+    private final StringBuilder typeDefs = new StringBuilder();
+    
+    private final Thread flushThread;
+    private volatile boolean closed = false;
+    
+    /**
+     * Creates a new log file, overwriting any which is already there.
+     * @param path file to write
+     * @param maxRecords how many records the file can hold. Each takes 128 bytes.
+     * @return the log, or null if the file couldn't be created
+     */
+    public static BinaryMatchLog create(String path, int maxRecords){
+        try {
+            return new BinaryMatchLog(path, maxRecords);
+        } catch(IOException e){
+            System.out.println("WARNING: cannot create match log " + path + ". Not logging.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    private BinaryMatchLog(String path, int maxRecords) throws IOException {
+        this.maxRecords = Math.max(Math.min(maxRecords, (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE), 1);
+        int fileSize = HEADER_SIZE + this.maxRecords * RECORD_SIZE;
+        
+        file = new RandomAccessFile(path, "rw");
+        FileChannel channel = file.getChannel();
+        
+        //Write the whole file out with zeros now, so the disk space is really allocated
+        //and writing a record later never has to wait on the filesystem
+        channel.truncate(0);
+        ByteBuffer zeros = ByteBuffer.allocateDirect(65536);
+        long written = 0;
+        while(written < fileSize){
+            zeros.clear();
+            zeros.limit((int)Math.min(zeros.capacity(), fileSize - written));
+            written += channel.write(zeros, written);
+        }
+        channel.force(true);
+        
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        map.putInt(HDR_MAGIC_OFFSET, MAGIC);
+        map.putInt(HDR_VERSION_OFFSET, VERSION);
+        map.putInt(HDR_HEADER_SIZE_OFFSET, HEADER_SIZE);
+        map.putInt(HDR_RECORD_SIZE_OFFSET, RECORD_SIZE);
+        map.putLong(HDR_CREATED_TIME_OFFSET, System.currentTimeMillis());
+        map.putLong(HDR_RECORD_COUNT_OFFSET, 0);
+        map.putInt(HDR_TYPE_DEFS_LEN_OFFSET, 0);
+        
+        flushThread = new Thread(new Runnable(){
+            public void run(){
+                CasseroleRIOLoadMonitor.registerCurrentThread("MatchLogFlusher");
+                while(!closed){
+                    try {
+                        Thread.sleep(FLUSH_PERIOD_MS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    flush();
+                }
+            }
+        });
+        flushThread.setName("MatchLogFlusher");
+        flushThread.setDaemon(true);
+        flushThread.setPriority(Thread.MIN_PRIORITY);
+        flushThread.start();
+    }
+    
+    /**
+     * Describes a kind of record, so the exporter knows what to call it and its fields.
+     * Call at startup, before writing records of the type.
+     * @param type record type number. Must be more than 0.
+     * @param name short name for the type (ex: "vision"). Used in the exported file names.
+     * @param fieldNames names of the values in each record, up to MAX_FIELDS
+     * @return true if defined, false if the header is full or the type is bad
+     */
+    public synchronized boolean defineRecordType(int type, String name, String... fieldNames){
+        if(type <= 0 || fieldNames.length > MAX_FIELDS){
+            return false;
+        }
+        
+        //One line per type: "<type>,<name>,<field>,<field>..."
+        StringBuilder line = new StringBuilder();
+        line.append(type).append(',').append(name);
+        for(String fieldName : fieldNames){
+            line.append(',').append(fieldName);
+        }
+        line.append('\n');
+        
+        byte[] newDefs = typeDefs.toString().concat(line.toString()).getBytes(StandardCharsets.UTF_8);
+        if(HDR_TYPE_DEFS_OFFSET + newDefs.length > HEADER_SIZE){
+            System.out.println("WARNING: match log header full, cannot define record type " + name);
+            return false;
+        }
+        typeDefs.append(line);
+        
+        for(int i = 0; i < newDefs.length; i++){
+            map.put(HDR_TYPE_DEFS_OFFSET + i, newDefs[i]);
+        }
+        map.putInt(HDR_TYPE_DEFS_LEN_OFFSET, newDefs.length);
+        return true;
+    }
+    
+    /**
+     * Claims space for a new record. Never blocks or allocates.
+     * @return handle to pass to setField() and finishRecord(), or -1 if the log is full (the record is dropped)
+     */
+    public int startRecord(){
+        long recordIdx = nextRecord.getAndIncrement();
+        if(recordIdx >= maxRecords || closed){
+            droppedRecords.incrementAndGet();
+            return -1;
+        }
+        return HEADER_SIZE + (int)recordIdx * RECORD_SIZE;
+    }
+    
+    /**
+     * Sets one value in a record being written. Values not set are left as zero.
+     * @param record handle from startRecord(). Ignored if -1.
+     * @param field which value, from 0 to MAX_FIELDS-1
+     * @param value the value
+     */
+    public void setField(int record, int field, double value){
+        if(record >= 0 && field >= 0 && field < MAX_FIELDS){
+            map.putDouble(record + REC_FIELDS_OFFSET + field * 8, value);
+        }
+    }
+    
+    /**
+     * Finishes writing a record. Until this is called the record reads back as an empty slot.
+     * @param record handle from startRecord(). Ignored if -1.
+     * @param type record type number, as given to defineRecordType()
+     * @param time_s FPGA timestamp for the record, in seconds
+     */
+    public void finishRecord(int record, int type, double time_s){
+        if(record >= 0){
+            map.putDouble(record + REC_TIME_OFFSET, time_s);
+            map.putInt(record + REC_TYPE_OFFSET, type);
+        }
+    }
+    
+    /**
+     * Asks the kernel to write everything so far out to disk. Blocks until done, so
+     * leave this to the background thread unless you really need it now.
+     */
+    public synchronized void flush(){
+        map.putLong(HDR_RECORD_COUNT_OFFSET, getRecordCount());
+        map.force();
+    }
+    
+    /**
+     * Stops logging, pushes everything out to disk and closes the file.
+     */
+    public void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        flushThread.interrupt();
+        flush();
+        try {
+            file.close();
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * @return how many records have been written (or are being written right now)
+     */
+    public long getRecordCount(){
+        return Math.min(nextRecord.get(), maxRecords);
+    }
+    
+    /**
+     * @return how many records the file can hold
+     */
+    public int getMaxRecords(){
+        return maxRecords;
+    }
+    
+    /**
+     * @return how many records were dropped because the log was full or closed
+     */
+    public long getDroppedRecordCount(){
+        return droppedRecords.get();
+    }
+}
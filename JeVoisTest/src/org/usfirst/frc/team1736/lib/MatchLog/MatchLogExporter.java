@@ -0,0 +1,168 @@
+package org.usfirst.frc.team1736.lib.MatchLog;
+
+/*
+ *******************************************************************************************
+ * Copyright (C) 2018 FRC Team 1736 Robot Casserole - www.robotcasserole.org
+ *******************************************************************************************
+ *
+ * This software is released under the MIT Licence - see the license.txt
+ *  file in the root of this repo.
+ *
+ * Non-legally-binding statement from Team 1736:
+ *  Thank you for taking the time to read through our software! We hope you
+ *   find it educational and informative! 
+ *  Please feel free to snag our software for your own use in whatever project
+ *   you have going on right now! We'd love to be able to help out! Shoot us 
+ *   any questions you may have, all our contact info should be on our website
+ *   (listed above).
+ *  If you happen to end up using our software to make money, that is wonderful!
+ *   Robot Casserole is always looking for more sponsors, so we'd be very appreciative
+ *   if you would consider donating to our club to help further STEM education.
+ */
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DESCRIPTION: <br>
+ * Offline tool to turn a BinaryMatchLog file into CSV files, one per record type, for looking at in
+ * a spreadsheet or plotting tool. Runs on any computer with Java, no robot needed.
+ * <br>
+ * <br>
+ * USAGE:
+ * <pre>
+ * java -cp &lt;classes&gt; org.usfirst.frc.team1736.lib.MatchLog.MatchLogExporter match.bin [outputPrefix]
+ * </pre>
+ * Writes "outputPrefix_&lt;type name&gt;.csv" for each record type found. The prefix defaults to the log
+ * file name without its extension.
+ * 
+ */
+public class MatchLogExporter {
+
+    // Past the record count in the header, this many empty slots in a row is taken as the end of the log.
+    // Several threads write records at once, so a slot can be left unfinished with finished ones after it.
+    private static final int END_EMPTY_RUN = 64;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1){
+            System.out.println("Usage: MatchLogExporter <match log file> [output prefix]");
+            System.exit(1);
+        }
+        
+        String logPath = args[0];
+        String outPrefix = (args.length > 1) ? args[1] : logPath.replaceFirst("\\.[^./\\\\]*$", "");
+        
+        long numRecords = export(logPath, outPrefix);
+        System.out.println("Exported " + numRecords + " records from " + logPath);
+    }
+    
+    /**
+     * Converts a log file to CSV files.
+     * @param logPath BinaryMatchLog file to read
+     * @param outPrefix start of the output file names
+     * @return number of records exported
+     * @throws IOException if the log can't be read or isn't a match log, or the output can't be written
+     */
+    public static long export(String logPath, String outPrefix) throws IOException {
+        Map<Integer, PrintWriter> outputs = new HashMap<Integer, PrintWriter>();
+        long numRecords = 0;
+        
+        try(RandomAccessFile file = new RandomAccessFile(logPath, "r")){
+            MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            
+            if(map.limit() < BinaryMatchLog.HDR_TYPE_DEFS_OFFSET || map.getInt(BinaryMatchLog.HDR_MAGIC_OFFSET) != BinaryMatchLog.MAGIC){
+                throw new IOException(logPath + " is not a match log");
+            }
+            if(map.getInt(BinaryMatchLog.HDR_VERSION_OFFSET) != BinaryMatchLog.VERSION){
+                throw new IOException(logPath + " is match log version " + map.getInt(BinaryMatchLog.HDR_VERSION_OFFSET) + 
+                                      ", this exporter reads version " + BinaryMatchLog.VERSION);
+            }
+            int headerSize = map.getInt(BinaryMatchLog.HDR_HEADER_SIZE_OFFSET);
+            int recordSize = map.getInt(BinaryMatchLog.HDR_RECORD_SIZE_OFFSET);
+            long headerRecordCount = map.getLong(BinaryMatchLog.HDR_RECORD_COUNT_OFFSET);
+            
+            //Record type definitions, one per line: "<type>,<name>,<field>,<field>..."
+            byte[] typeDefBytes = new byte[map.getInt(BinaryMatchLog.HDR_TYPE_DEFS_LEN_OFFSET)];
+            for(int i = 0; i < typeDefBytes.length; i++){
+                typeDefBytes[i] = map.get(BinaryMatchLog.HDR_TYPE_DEFS_OFFSET + i);
+            }
+            Map<Integer, String[]> typeDefs = new HashMap<Integer, String[]>();
+            for(String line : new String(typeDefBytes, StandardCharsets.UTF_8).split("\n")){
+                String[] tokens = line.split(",");
+                if(tokens.length >= 2){
+                    typeDefs.put(Integer.parseInt(tokens[0]), tokens);
+                }
+            }
+            
+            //Records run until the end of the file, or a run of empty slots past the count last flushed to the header.
+            //Slots which were claimed but never finished (power lost mid-write) are skipped.
+            int emptyRun = 0;
+            long slot = 0;
+            for(long offset = headerSize; offset + recordSize <= map.limit(); offset += recordSize, slot++){
+                int record = (int)offset;
+                int type = map.getInt(record + BinaryMatchLog.REC_TYPE_OFFSET);
+                if(type == 0){
+                    emptyRun++;
+                    if(slot >= headerRecordCount && emptyRun >= END_EMPTY_RUN){
+                        break;
+                    }
+                    continue;
+                }
+                emptyRun = 0;
+                
+                PrintWriter out = outputs.get(type);
+                if(out == null){
+                    out = openOutput(outPrefix, type, typeDefs.get(type));
+                    outputs.put(type, out);
+                }
+                
+                String[] typeDef = typeDefs.get(type);
+                int numFields = (typeDef != null) ? typeDef.length - 2 : BinaryMatchLog.MAX_FIELDS;
+                out.print(map.getDouble(record + BinaryMatchLog.REC_TIME_OFFSET));
+                for(int i = 0; i < numFields; i++){
+                    out.print(',');
+                    out.print(map.getDouble(record + BinaryMatchLog.REC_FIELDS_OFFSET + i * 8));
+                }
+                out.println();
+                numRecords++;
+            }
+        } finally {
+            for(PrintWriter out : outputs.values()){
+                out.close();
+            }
+        }
+        
+        return numRecords;
+    }
+    
+    /**
+     * Opens the CSV file for one record type and writes its column headers.
+     */
+    private static PrintWriter openOutput(String outPrefix, int type, String[] typeDef) throws IOException {
+        String name = (typeDef != null) ? typeDef[1] : ("type" + type);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outPrefix + "_" + name + ".csv"), StandardCharsets.UTF_8));
+        out.print("time_s");
+        if(typeDef != null){
+            for(int i = 2; i < typeDef.length; i++){
+                out.print(',');
+                out.print(typeDef[i]);
+            }
+        } else {
+            for(int i = 0; i < BinaryMatchLog.MAX_FIELDS; i++){
+                out.print(",field" + i);
+            }
+        }
+        out.println();
+        return out;
+    }
+}
@@ -0,0 +1,343 @@
+package org.usfirst.frc.team1736.lib.Stats;
+
+/*
+ *******************************************************************************************
+ * Copyright (C) 2018 FRC Team 1736 Robot Casserole - www.robotcasserole.org
+ *******************************************************************************************
+ *
+ * This software is released under the MIT Licence - see the license.txt
+ *  file in the root of this repo.
+ *
+ * Non-legally-binding statement from Team 1736:
+ *  Thank you for taking the time to read through our software! We hope you
+ *   find it educational and informative! 
+ *  Please feel free to snag our software for your own use in whatever project
+ *   you have going on right now! We'd love to be able to help out! Shoot us 
+ *   any questions you may have, all our contact info should be on our website
+ *   (listed above).
+ *  If you happen to end up using our software to make money, that is wonderful!
+ *   Robot Casserole is always looking for more sponsors, so we'd be very appreciative
+ *   if you would consider donating to our club to help further STEM education.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * DESCRIPTION: <br>
+ * Constant-memory streaming statistics over a sliding time window. Tracks count, mean, standard deviation,
+ * max, and any percentile (p50, p99, ...) of a stream of integer samples (ex: microseconds between packets).
+ * <br>
+ * <br>
+ * Samples are sorted into fixed log-linear buckets (the same idea as an HDR histogram): each power-of-two
+ * range of values is split into 16 equal buckets, so percentiles are accurate to a few percent of the value
+ * no matter how large it is, while the whole histogram stays a few kilobytes.
+ * <br>
+ * <br>
+ * The window is split into a handful of time slices, each with its own set of buckets. When time moves
+ * on to a new slice, the oldest slice is cleared and reused, so old samples age out without any per-sample
+ * bookkeeping.
+ * <br>
+ * <br>
+ * USAGE:
+ * <ol>
+ * <li>Instantiate with the desired window length. Everything is allocated here.</li>
+ * <li>Call {@link #record(long, double)} from ONE thread with each new sample and the current time.</li>
+ * <li>Call the getters from any thread, with the current time on the same clock given to record(). They never
+ * lock or allocate. Since they don't lock, a getter which runs at the same time as record() may be off by that
+ * one sample.</li>
+ * </ol>
+ * The window only moves forward inside record(). The getters without a time argument report the window as of
+ * the newest sample, so if samples stop coming, they keep reporting the last few seconds before that forever.
+ * Pass in the current time instead to have old samples age out whether or not new ones arrive.
+ * 
+ * 
+ */
+public class WindowedHistogram {
+
+    // Sub-buckets per power of two
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    // Largest power of two we bother tracking. Anything bigger lands in the top bucket.
+    private static final int MAX_VALUE_BITS = 32;
+    private static final long MAX_TRACKED_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int NUM_BUCKETS = bucketIndex(MAX_TRACKED_VALUE) + 1;
+
+    // Per-slice summary values, stored after the buckets of each slice. Sum of squares is stored as double bits.
+    private static final int COUNT_IDX = NUM_BUCKETS;
+    private static final int SUM_IDX = NUM_BUCKETS + 1;
+    private static final int SUM_SQ_IDX = NUM_BUCKETS + 2;
+    private static final int MAX_IDX = NUM_BUCKETS + 3;
+    // Absolute number of the time slice this one holds, so readers can tell when it has fallen out of the window
+    private static final int SLICE_NUM_IDX = NUM_BUCKETS + 4;
+    private static final int SLICE_STRIDE = NUM_BUCKETS + 5;
+
+    private final int numSlices;
+    private final double sliceLength_s;
+    private final AtomicLongArray data;
+
+    // Absolute number of the time slice currently being filled
+    private long curSlice = Long.MIN_VALUE;
+
+    /**
+     * Constructor.
+     * @param window_s length of the sliding window in seconds
+     * @param numSlices number of pieces to split the window into. More pieces make samples age out more smoothly.
+     */
+    public WindowedHistogram(double window_s, int numSlices){
+        this.numSlices = numSlices;
+        this.sliceLength_s = window_s / numSlices;
+        this.data = new AtomicLongArray(SLICE_STRIDE * numSlices);
+    }
+
+    /**
+     * Adds a sample. Must only ever be called from one thread.
+     * @param value sample value. Negative values are counted as zero.
+     * @param time_s current time in seconds, used to age out old samples
+     */
+    public void record(long value, double time_s){
+        long slice = (long) Math.floor(time_s / sliceLength_s);
+
+        if(slice > curSlice){
+            // Moved on to a new time slice. Clear out any slices which have fallen out of the window.
+            long slicesToClear = (curSlice == Long.MIN_VALUE) ? numSlices : Math.min(numSlices, Math.max(0, slice - curSlice));
+            for(long s = 0; s < slicesToClear; s++){
+                clearSlice(sliceOffset(slice - s));
+            }
+            data.lazySet(sliceOffset(slice) + SLICE_NUM_IDX, slice);
+            curSlice = slice;
+        }
+
+        if(value < 0){
+            value = 0;
+        }
+        int base = sliceOffset(curSlice);
+        int bucket = bucketIndex(Math.min(value, MAX_TRACKED_VALUE));
+        data.lazySet(base + bucket, data.get(base + bucket) + 1);
+        data.lazySet(base + SUM_IDX, data.get(base + SUM_IDX) + value);
+        data.lazySet(base + SUM_SQ_IDX, Double.doubleToRawLongBits(getDouble(base + SUM_SQ_IDX) + (double) value * value));
+        if(value > data.get(base + MAX_IDX)){
+            data.lazySet(base + MAX_IDX, value);
+        }
+        data.lazySet(base + COUNT_IDX, data.get(base + COUNT_IDX) + 1);
+    }
+
+    /**
+     * Returns the number of samples in the window, as of the newest sample
+     */
+    public long getCount(){
+        return getCount(Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns the number of samples in the window ending now
+     * @param now_s current time in seconds, on the same clock given to record()
+     */
+    public long getCount(double now_s){
+        return getCount(firstLiveSlice(now_s));
+    }
+
+    /**
+     * Returns the average sample value over the window as of the newest sample, or 0 if there are no samples
+     */
+    public double getMean(){
+        return getMean(Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns the average sample value over the window ending now, or 0 if there are no samples
+     * @param now_s current time in seconds, on the same clock given to record()
+     */
+    public double getMean(double now_s){
+        return getMean(firstLiveSlice(now_s));
+    }
+
+    /**
+     * Returns the standard deviation of the samples in the window as of the newest sample,
+     * or 0 if there are fewer than two
+     */
+    public double getStdDev(){
+        return getStdDev(Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns the standard deviation of the samples in the window ending now, or 0 if there are fewer than two
+     * @param now_s current time in seconds, on the same clock given to record()
+     */
+    public double getStdDev(double now_s){
+        return getStdDev(firstLiveSlice(now_s));
+    }
+
+    /**
+     * Returns the largest sample in the window as of the newest sample, or 0 if there are no samples
+     */
+    public long getMax(){
+        return getMax(Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns the largest sample in the window ending now, or 0 if there are no samples
+     * @param now_s current time in seconds, on the same clock given to record()
+     */
+    public long getMax(double now_s){
+        return getMax(firstLiveSlice(now_s));
+    }
+
+    /**
+     * Returns the given percentile of the samples in the window as of the newest sample, accurate to the
+     * bucket size (a few percent of the value).
+     * @param percentile percentile to get, 0-100. Ex: 50 for the median, 99 for the 99th percentile.
+     * @return the percentile, or 0 if there are no samples
+     */
+    public double getPercentile(double percentile){
+        return getPercentile(percentile, Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns the given percentile of the samples in the window ending now, accurate to the bucket size
+     * (a few percent of the value).
+     * @param percentile percentile to get, 0-100. Ex: 50 for the median, 99 for the 99th percentile.
+     * @param now_s current time in seconds, on the same clock given to record()
+     * @return the percentile, or 0 if there are no samples
+     */
+    public double getPercentile(double percentile, double now_s){
+        return getPercentile(percentile, firstLiveSlice(now_s));
+    }
+
+    private long getCount(long firstSlice){
+        return sumOverSlices(COUNT_IDX, firstSlice);
+    }
+
+    private double getMean(long firstSlice){
+        long count = getCount(firstSlice);
+        return (count == 0) ? 0 : (double) sumOverSlices(SUM_IDX, firstSlice) / count;
+    }
+
+    private double getStdDev(long firstSlice){
+        long count = getCount(firstSlice);
+        if(count < 2){
+            return 0;
+        }
+        double mean = (double) sumOverSlices(SUM_IDX, firstSlice) / count;
+        double sumSq = 0;
+        for(int s = 0; s < numSlices; s++){
+            if(isLive(s, firstSlice)){
+                sumSq += getDouble(s * SLICE_STRIDE + SUM_SQ_IDX);
+            }
+        }
+        double variance = sumSq / count - mean * mean;
+        return Math.sqrt(Math.max(variance, 0));
+    }
+
+    private long getMax(long firstSlice){
+        long max = 0;
+        for(int s = 0; s < numSlices; s++){
+            if(isLive(s, firstSlice)){
+                max = Math.max(max, data.get(s * SLICE_STRIDE + MAX_IDX));
+            }
+        }
+        return max;
+    }
+
+    private double getPercentile(double percentile, long firstSlice){
+        long count = getCount(firstSlice);
+        if(count == 0){
+            return 0;
+        }
+
+        long target = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100.0);
+        target = Math.max(target, 1);
+
+        long max = getMax(firstSlice);
+        long seen = 0;
+        for(int bucket = 0; bucket < NUM_BUCKETS; bucket++){
+            for(int s = 0; s < numSlices; s++){
+                if(isLive(s, firstSlice)){
+                    seen += data.get(s * SLICE_STRIDE + bucket);
+                }
+            }
+            if(seen >= target){
+                // Never report more than the true max
+                return Math.min(bucketMidpoint(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Throws away all samples.  Must only be called from the thread which calls record().
+     */
+    public void reset(){
+        for(int s = 0; s < numSlices; s++){
+            clearSlice(s * SLICE_STRIDE);
+        }
+        curSlice = Long.MIN_VALUE;
+    }
+
+    private int sliceOffset(long slice){
+        return (int) Math.floorMod(slice, (long) numSlices) * SLICE_STRIDE;
+    }
+
+    private void clearSlice(int base){
+        // Zero the count first, so readers see an empty slice rather than a half-cleared one
+        data.lazySet(base + COUNT_IDX, 0);
+        for(int i = 0; i < SLICE_STRIDE; i++){
+            data.lazySet(base + i, 0);
+        }
+    }
+
+    private double getDouble(int idx){
+        return Double.longBitsToDouble(data.get(idx));
+    }
+
+    private long sumOverSlices(int idx, long firstSlice){
+        long sum = 0;
+        for(int s = 0; s < numSlices; s++){
+            if(isLive(s, firstSlice)){
+                sum += data.get(s * SLICE_STRIDE + idx);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the absolute number of the oldest time slice still inside the window ending at the given time
+     */
+    private long firstLiveSlice(double now_s){
+        return (long) Math.floor(now_s / sliceLength_s) - numSlices + 1;
+    }
+
+    /**
+     * Returns true if the slice stored at the given index is no older than firstSlice
+     */
+    private boolean isLive(int s, long firstSlice){
+        return data.get(s * SLICE_STRIDE + SLICE_NUM_IDX) >= firstSlice;
+    }
+
+    /**
+     * Returns which bucket a value falls into. Values below SUB_BUCKET_COUNT get one bucket each,
+     * above that each power of two is split into HALF_SUB_BUCKET_COUNT buckets.
+     */
+    private static int bucketIndex(long value){
+        if(value < SUB_BUCKET_COUNT){
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift); // Always in [HALF_SUB_BUCKET_COUNT, SUB_BUCKET_COUNT)
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + (subBucket - HALF_SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * Returns the value in the middle of a bucket's range
+     */
+    private static double bucketMidpoint(int bucket){
+        if(bucket < SUB_BUCKET_COUNT){
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+        long subBucket = (bucket - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+        long low = subBucket << shift;
+        return low + ((1L << shift) - 1) / 2.0;
+    }
+}
@@ -0,0 +1,363 @@
+package org.usfirst.frc.team1736.lib.Telemetry;
+
+/*
+ *******************************************************************************************
+ * Copyright (C) 2018 FRC Team 1736 Robot Casserole - www.robotcasserole.org
+ *******************************************************************************************
+ *
+ * This software is released under the MIT Licence - see the license.txt
+ *  file in the root of this repo.
+ *
+ * Non-legally-binding statement from Team 1736:
+ *  Thank you for taking the time to read through our software! We hope you
+ *   find it educational and informative! 
+ *  Please feel free to snag our software for your own use in whatever project
+ *   you have going on right now! We'd love to be able to help out! Shoot us 
+ *   any questions you may have, all our contact info should be on our website
+ *   (listed above).
+ *  If you happen to end up using our software to make money, that is wonderful!
+ *   Robot Casserole is always looking for more sponsors, so we'd be very appreciative
+ *   if you would consider donating to our club to help further STEM education.
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.usfirst.frc.team1736.lib.LoadMon.CasseroleRIOLoadMonitor;
+
+/**
+ * DESCRIPTION: <br>
+ * Gets console output off of time-critical threads. Values are dropped into a preallocated queue
+ * as raw numbers (plus references to existing strings), and a low priority background thread turns them
+ * into text and writes them out in batches. Logging a value never blocks, never allocates, and never
+ * touches System.out on the calling thread.
+ * <br>
+ * <br>
+ * If the queue fills up (the writer can't keep up), new values are dropped and counted rather than making
+ * the caller wait. The writer also limits how many lines it writes per second, so a burst of logging can't
+ * swamp the console and the CPU. Lines over the limit are dropped and counted too.
+ * <br>
+ * <br>
+ * Any number of threads can log at the same time.
+ * <br>
+ * <br>
+ * USAGE:
+ * <ol>
+ * <li>Use getConsole() for the shared sink writing to System.out, or instantiate your own.</li>
+ * <li>Call addChannel() once for each thing you'll log, at startup. This gives a channel number.</li>
+ * <li>Call log() with the channel number and value, or logMessage() for a line of fixed text.</li>
+ * </ol>
+ * 
+ */
+public class TelemetrySink {
+
+    /** Default number of values which can be waiting to be written */
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+    /** Default time between batches of output, in milliseconds */
+    public static final int DEFAULT_FLUSH_PERIOD_MS = 100;
+    /** Default most lines written per second */
+    public static final int DEFAULT_MAX_LINES_PER_SEC = 2000;
+    
+    // Channel number for lines which are just a message, no name
+    private static final int MESSAGE_CHANNEL = -1;
+    
+    // What sort of value each queued entry holds
+    private static final byte KIND_TEXT_ONLY = 0;
+    private static final byte KIND_DOUBLE = 1;
+    private static final byte KIND_LONG = 2;
+    
+    // Shared sink for System.out
+    private static TelemetrySink console = null;
+    
+    // Queued values, as a ring of parallel arrays. Each slot's sequence number says whether it's
+    // ready to be written into (sequence == position) or ready to be read out (sequence == position + 1).
+    private final int capacity;
+    private final int indexMask;
+    private final AtomicLongArray slotSequence;
+    private final int[] slotChannel;
+    private final byte[] slotKind;
+    private final long[] slotValue;
+    private final String[] slotText;
+    // Next position to be written into by loggers, and read out by the writer thread
+    private final AtomicLong writePos = new AtomicLong(0);
+    private volatile long readPos = 0;
+    
+    // Channel names. Only added to at startup.
+    private final ArrayList<String> channelNames = new ArrayList<String>();
+    
+    // Output
+    private final PrintStream out;
+    private final int flushPeriodMs;
+    private final int maxLinesPerFlush;
+    private final StringBuilder batchText = new StringBuilder(16384);
+    
+    // Counters
+    private final AtomicLong droppedQueueFull = new AtomicLong(0);
+    private volatile long droppedRateLimited = 0;
+    private volatile long linesWritten = 0;
+    private volatile long batchesWritten = 0;
+    
+    private final Thread writerThread;
+    
+    /**
+     * Returns the shared sink which writes to System.out, starting it if needed.
+     */
+    public static synchronized TelemetrySink getConsole(){
+        if(console == null){
+            console = new TelemetrySink(System.out, DEFAULT_QUEUE_SIZE, DEFAULT_FLUSH_PERIOD_MS, DEFAULT_MAX_LINES_PER_SEC);
+        }
+        return console;
+    }
+    
+    /**
+     * Constructor. Allocates the queue and starts the background writer.
+     * @param out where to write the text
+     * @param queueSize most values which can be waiting to be written. Rounded up to a power of two.
+     * @param flushPeriod_ms time between batches of output
+     * @param maxLinesPerSec most lines written per second. Lines beyond this are dropped.
+     */
+    public TelemetrySink(PrintStream out, int queueSize, int flushPeriod_ms, int maxLinesPerSec){
+        int size = 1;
+        while(size < queueSize){
+            size <<= 1;
+        }
+        capacity = size;
+        indexMask = size - 1;
+        slotSequence = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++){
+            slotSequence.set(i, i);
+        }
+        slotChannel = new int[capacity];
+        slotKind = new byte[capacity];
+        slotValue = new long[capacity];
+        slotText = new String[capacity];
+        
+        this.out = out;
+        this.flushPeriodMs = Math.max(flushPeriod_ms, 1);
+        this.maxLinesPerFlush = Math.max((int)((long)maxLinesPerSec * this.flushPeriodMs / 1000), 1);
+        
+        writerThread = new Thread(new Runnable(){
+            public void run(){
+                CasseroleRIOLoadMonitor.registerCurrentThread("TelemetryWriter");
+                while(!Thread.interrupted()){
+                    writeBatch();
+                    try {
+                        Thread.sleep(flushPeriodMs);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                //Get out whatever's left
+                writeBatch();
+            }
+        });
+        writerThread.setName("TelemetryWriter");
+        writerThread.setDaemon(true);
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+    
+    /**
+     * Sets up a named channel to log values to. Do this at startup, not in time-critical code.
+     * @param name printed before each value
+     * @return channel number to pass to log()
+     */
+    public synchronized int addChannel(String name){
+        channelNames.add(name);
+        return channelNames.size() - 1;
+    }
+    
+    /**
+     * Queue a value to be written as "name: value". Never blocks or allocates.
+     * @return true if queued, false if dropped because the queue was full
+     */
+    public boolean log(int channel, double value){
+        return enqueue(channel, KIND_DOUBLE, Double.doubleToRawLongBits(value), null);
+    }
+    
+    /**
+     * Queue a value to be written as "name: value". Never blocks or allocates.
+     * @return true if queued, false if dropped because the queue was full
+     */
+    public boolean log(int channel, long value){
+        return enqueue(channel, KIND_LONG, value, null);
+    }
+    
+    /**
+     * Queue a value to be written as "name: true" or "name: false". Never blocks or allocates.
+     * @return true if queued, false if dropped because the queue was full
+     */
+    public boolean log(int channel, boolean value){
+        return enqueue(channel, KIND_TEXT_ONLY, 0, value ? "true" : "false");
+    }
+    
+    /**
+     * Queue a string to be written as "name: text". Never blocks or allocates, but the string has
+     * to already exist - building one up to log here would allocate anyway.
+     * @return true if queued, false if dropped because the queue was full
+     */
+    public boolean log(int channel, String text){
+        return enqueue(channel, KIND_TEXT_ONLY, 0, text);
+    }
+    
+    /**
+     * Queue a string and a number to be written as "name: text value". Never blocks or allocates.
+     * @return true if queued, false if dropped because the queue was full
+     */
+    public boolean log(int channel, String text, long value){
+        return enqueue(channel, KIND_LONG, value, text);
+    }
+    
+    /**
+     * Queue a line of text to be written as-is. Never blocks or allocates.
+     * @return true if queued, false if dropped because the queue was full
+     */
+    public boolean logMessage(String message){
+        return enqueue(MESSAGE_CHANNEL, KIND_TEXT_ONLY, 0, message);
+    }
+    
+    /**
+     * Claims the next slot in the queue and fills it in.
+     */
+    private boolean enqueue(int channel, byte kind, long value, String text){
+        long pos;
+        int idx;
+        while(true){
+            pos = writePos.get();
+            idx = (int)(pos & indexMask);
+            long seq = slotSequence.get(idx);
+            if(seq == pos){
+                //Slot is free, try to claim it
+                if(writePos.compareAndSet(pos, pos + 1)){
+                    break;
+                }
+            } else if(seq < pos){
+                //Writer hasn't emptied this slot from last time around yet - we're full
+                droppedQueueFull.incrementAndGet();
+                return false;
+            }
+            //Otherwise another thread claimed it first, try again with the next one
+        }
+        
+        slotChannel[idx] = channel;
+        slotKind[idx] = kind;
+        slotValue[idx] = value;
+        slotText[idx] = text;
+        //Publish to the writer
+        slotSequence.lazySet(idx, pos + 1);
+        return true;
+    }
+    
+    /**
+     * Takes everything out of the queue, formats it, and writes it out in one go.
+     * Only called from the writer thread.
+     */
+    private void writeBatch(){
+        int numLines = 0;
+        long numRateLimited = 0;
+        batchText.setLength(0);
+        
+        while(true){
+            int idx = (int)(readPos & indexMask);
+            if(slotSequence.get(idx) != readPos + 1){
+                //Nothing more ready
+                break;
+            }
+            
+            if(numLines < maxLinesPerFlush){
+                formatEntry(idx);
+                numLines++;
+            } else {
+                numRateLimited++;
+            }
+            
+            //Hand the slot back for the next time around the ring
+            slotText[idx] = null;
+            slotSequence.lazySet(idx, readPos + capacity);
+            readPos++;
+        }
+        
+        if(numLines > 0){
+            out.print(batchText);
+            out.flush();
+            linesWritten += numLines;
+            batchesWritten++;
+        }
+        if(numRateLimited > 0){
+            droppedRateLimited += numRateLimited;
+        }
+    }
+    
+    /**
+     * Adds one queued entry onto the batch text as a line.
+     */
+    private void formatEntry(int idx){
+        int channel = slotChannel[idx];
+        String text = slotText[idx];
+        byte kind = slotKind[idx];
+        
+        if(channel != MESSAGE_CHANNEL){
+            batchText.append(getChannelName(channel)).append(": ");
+        }
+        if(text != null){
+            batchText.append(text);
+            if(kind != KIND_TEXT_ONLY){
+                batchText.append(' ');
+            }
+        }
+        if(kind == KIND_DOUBLE){
+            batchText.append(Double.longBitsToDouble(slotValue[idx]));
+        } else if(kind == KIND_LONG){
+            batchText.append(slotValue[idx]);
+        }
+        batchText.append('\n');
+    }
+    
+    private synchronized String getChannelName(int channel){
+        return (channel >= 0 && channel < channelNames.size()) ? channelNames.get(channel) : "?";
+    }
+    
+    /**
+     * Stops the background writer after it writes out whatever is queued.
+     */
+    public void stop(){
+        writerThread.interrupt();
+    }
+    
+    /**
+     * @return how many values were dropped because the queue was full
+     */
+    public long getDroppedQueueFullCount(){
+        return droppedQueueFull.get();
+    }
+    
+    /**
+     * @return how many lines were dropped because they went over the lines-per-second limit
+     */
+    public long getDroppedRateLimitedCount(){
+        return droppedRateLimited;
+    }
+    
+    /**
+     * @return how many lines have been written
+     */
+    public long getLinesWritten(){
+        return linesWritten;
+    }
+    
+    /**
+     * @return how many batches of lines have been written
+     */
+    public long getBatchesWritten(){
+        return batchesWritten;
+    }
+    
+    /**
+     * @return how many values are waiting to be written
+     */
+    public long getQueuedCount(){
+        return Math.max(writePos.get() - readPos, 0);
+    }
+}
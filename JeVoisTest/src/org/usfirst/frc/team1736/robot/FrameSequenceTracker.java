@@ -0,0 +1,121 @@
+package org.usfirst.frc.team1736.robot;
+
+/**
+ * Watches the frame counter the JeVois sends as the first field of every packet, to find packets
+ * which were lost, repeated, or arrived out of order between the camera and the roboRIO.
+ * <br>
+ * <br>
+ * The JeVois bumps its counter once per processed frame and sends one packet per frame, so:
+ * <ul>
+ * <li>A jump forward by more than one means packets were lost after the camera made them - on the serial link,
+ *     in our buffers, or to corruption. Frames the camera never processed (camera-side drops) do not show
+ *     up here at all - they show up as the JeVois reported framerate falling below what it should be.</li>
+ * <li>A repeat of the previous counter is a duplicate packet.</li>
+ * <li>A small step backward is a stale packet which arrived late. It must not replace newer data.</li>
+ * <li>A large step backward means the JeVois restarted its counter (ex: module reload or camera reboot).</li>
+ * </ul>
+ * Only the packet listener thread calls {@link #check(long)}. Counters may be read from any thread.
+ */
+public class FrameSequenceTracker {
+
+    /** check() result - frame is newer than anything seen so far, use it */
+    public static final int FRAME_NEW = 0;
+    /** check() result - frame counter is the same as the last one, discard it */
+    public static final int FRAME_DUPLICATE = -1;
+    /** check() result - frame is older than one already used, discard it */
+    public static final int FRAME_STALE = -2;
+
+    // How far backward the counter can jump before we assume the camera restarted, rather than a late packet
+    private static final long RESTART_THRESHOLD_FRAMES = 120;
+
+    private long lastFrame = -1;
+
+    private volatile long framesReceived = 0;
+    private volatile long framesMissed = 0;
+    private volatile long duplicateFrames = 0;
+    private volatile long staleFrames = 0;
+    private volatile long counterRestarts = 0;
+
+    /**
+     * Classify a newly received frame counter and update the statistics.
+     * @param frame frame counter from the packet
+     * @return FRAME_NEW, FRAME_DUPLICATE or FRAME_STALE
+     */
+    public int check(long frame) {
+        if(lastFrame >= 0){
+            if(frame == lastFrame){
+                duplicateFrames++;
+                return FRAME_DUPLICATE;
+            } else if(frame < lastFrame){
+                if(lastFrame - frame <= RESTART_THRESHOLD_FRAMES){
+                    staleFrames++;
+                    return FRAME_STALE;
+                }
+                // Counter started over. Don't count the jump as lost frames.
+                counterRestarts++;
+            } else {
+                framesMissed += frame - lastFrame - 1;
+            }
+        }
+
+        lastFrame = frame;
+        framesReceived++;
+        return FRAME_NEW;
+    }
+
+    /**
+     * Forget the last frame counter seen, so the next one is taken as new whatever it is. Used when the camera
+     * is known to have restarted, since a counter which started over but is still below the last one would
+     * otherwise look like a run of stale packets. Only the packet listener thread calls this.
+     */
+    public void reset() {
+        lastFrame = -1;
+    }
+
+    /**
+     * Returns the number of in-order frames received and used
+     */
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Returns the number of frames the JeVois sent which never made it to us (gaps in the counter)
+     */
+    public long getFramesMissed() {
+        return framesMissed;
+    }
+
+    /**
+     * Returns the number of packets thrown away for repeating the previous frame counter
+     */
+    public long getDuplicateFrames() {
+        return duplicateFrames;
+    }
+
+    /**
+     * Returns the number of packets thrown away for arriving after a newer frame
+     */
+    public long getStaleFrames() {
+        return staleFrames;
+    }
+
+    /**
+     * Returns the number of times the JeVois frame counter started over
+     */
+    public long getCounterRestarts() {
+        return counterRestarts;
+    }
+
+    /**
+     * Returns the percentage of frames sent by the JeVois which were lost before reaching us
+     */
+    public double getFrameLossPct() {
+        long received = framesReceived;
+        long missed = framesMissed;
+        if(received + missed == 0){
+            return 0;
+        }
+        return 100.0 * missed / (received + missed);
+    }
+}
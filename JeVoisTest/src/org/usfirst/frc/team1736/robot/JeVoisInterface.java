@@ -1,5 +1,21 @@
 package org.usfirst.frc.team1736.robot;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.usfirst.frc.team1736.lib.LoadMon.CasseroleRIOLoadMonitor;
+import org.usfirst.frc.team1736.lib.MatchLog.BinaryMatchLog;
+import org.usfirst.frc.team1736.lib.Stats.WindowedHistogram;
+import org.usfirst.frc.team1736.lib.Telemetry.TelemetrySink;
+
 import edu.wpi.cscore.MjpegServer;
 import edu.wpi.cscore.UsbCamera;
 import edu.wpi.cscore.VideoMode.PixelFormat;
@@ -11,20 +27,87 @@ public class JeVoisInterface {
     
     // Serial Port Constants 
     private static final int BAUD_RATE = 115200;
-    
+
+    // Name used in messages for a camera which wasn't given one
+    private static final String DEFAULT_CAMERA_NAME = "JeVois";
+
+    // Longest single blocking read we will sit in, so the overall packet and command timeouts are still checked regularly
+    private static final double BLOCKING_READ_SLICE_S = 0.1;
+
+    // How long to wait for the JeVois to answer a command
+    private static final double CMD_TIMEOUT_S = 1.0;
+
+    // How long to wait for the whole batch of startup configuration commands to be answered
+    private static final double STARTUP_CMD_TIMEOUT_S = 2.0;
+
+    // Extra time a caller waits past a command's timeout before giving up on the listener ever answering it
+    private static final double CMD_WAIT_MARGIN_S = 0.5;
+
+    // How long past its timeout a command keeps its place in line, so a late answer isn't taken as the answer
+    // to the next command. Past this, the answer is assumed lost.
+    private static final double CMD_LATE_ANSWER_LIMIT_S = 5.0;
+
+    // Serial port open retry strategy. Delay starts short and doubles each try, up to the max.
+    private static final int PORT_OPEN_MAX_TRIES = 10;
+    private static final int PORT_OPEN_INITIAL_RETRY_DELAY_MS = 50;
+    private static final int PORT_OPEN_MAX_RETRY_DELAY_MS = 1000;
+
     // MJPG Streaming Constants 
     private static final int MJPG_STREAM_PORT = 1180;
+
+    /** Link supervisor state: packets are flowing normally */
+    public static final int LINK_CONNECTED = 0;
+    /** Link supervisor state: packets stopped, checking if the camera still answers a ping */
+    public static final int LINK_CHECKING = 1;
+    /** Link supervisor state: camera is gone, trying to reopen the port */
+    public static final int LINK_LOST = 2;
+    /** Link supervisor state: port reopened, waiting for the camera to answer a ping */
+    public static final int LINK_REOPENED = 3;
+    /** Link supervisor state: camera answered, sending it the settings it had before */
+    public static final int LINK_RESTORING = 4;
+
+    // How long the data stream can go quiet before we check on the camera. It normally sends every frame.
+    private static final double LINK_SILENCE_TIMEOUT_S = 0.5;
+    // Same, right after the stream is started. Loading the vision module takes the JeVois a second or two.
+    private static final double STREAM_START_TIMEOUT_S = 3.0;
+    // How long without any packet before the vision data is considered stale
+    private static final double VISION_OFFLINE_TIMEOUT_S = 2.0;
+    // How often to look at the link while it's lost
+    private static final int LINK_LOST_POLL_MS = 10;
+
+    // How often to time an echo round trip to the JeVois. Quickly at first, until the link delay estimate settles.
+    private static final double ECHO_FAST_PERIOD_S = 0.1;
+    private static final double ECHO_PERIOD_S = 1.0;
+    private static final int ECHO_FAST_SAMPLES = 8;
+
+    // Exposure settings, remembered so they can be sent again after the camera restarts
+    private static final int EXPOSURE_DEFAULT = 0;
+    private static final int EXPOSURE_VISION_PROC = 1;
+    private static final int EXPOSURE_HUMAN_DRIVER = 2;
+    private static final String[] VISION_PROC_EXPOSURE_CMDS = {"setcam autoexp 1",  //Disable auto exposure
+                                                               "setcam absexp 75"}; //Force exposure to a low value for vision processing
+    private static final String[] HUMAN_DRIVER_EXPOSURE_CMDS = {"setcam autoexp 0"}; //Enable AutoExposure
     
-    // Packet format constants 
-    private static final String PACKET_START_CHAR = "{";
-    private static final String PACKET_END_CHAR = "}";
-    private static final String PACKET_DILEM_CHAR = ",";
-    private static final int PACKET_NUM_EXPECTED_FIELDS = 3;
+    // Packet format constants. These must be aligned with JeVois code.
+    private static final int FRAME_CTR_TOKEN_IDX = 0;
+    private static final int TGT_VISIBLE_TOKEN_IDX = 1;
+    private static final int TGT_ANGLE_TOKEN_IDX = 2;
+    private static final int TGT_RANGE_TOKEN_IDX = 3;
+    private static final int JV_FRMRT_TOKEN_IDX = 4;
+    private static final int JV_CPULOAD_TOKEN_IDX = 5;
+    private static final int JV_CPUTEMP_TOKEN_IDX = 6;
+    private static final int JV_PIPLINE_DELAY_TOKEN_IDX = 7;
+    private static final int NUM_TARGETS_TOKEN_IDX = JeVoisPacketFramer.TARGET_COUNT_FIELD_IDX;
+    private static final int FIRST_TARGET_TOKEN_IDX = NUM_TARGETS_TOKEN_IDX + 1;
     
     
     // Confgure the camera to stream debug images or not.
     private boolean broadcastUSBCam = false;
     
+    // Ask the JeVois for compact binary packets at startup. Text packets are still understood either way,
+    // so a camera running older code which doesn't know the command keeps working.
+    private static final boolean USE_BINARY_PROTOCOL = true;
+    
     // When not streaming, use this mapping
     private static final int NO_STREAM_MAPPING = 2;
     
@@ -33,8 +116,8 @@ public class JeVoisInterface {
     private static final int STREAM_HEIGHT_PX = 288;
     private static final int STREAM_RATE_FPS = 15;
     
-    // Serial port used for getting target data from JeVois 
-    private SerialPort visionPort = null;
+    // Byte stream (normally the USB serial port) used for getting target data from JeVois 
+    private JeVoisTransport visionPort = null;
     
     // USBCam and server used for broadcasting a webstream of what is seen 
     private UsbCamera visionCam = null;
@@ -43,24 +126,135 @@ public class JeVoisInterface {
     // Status variables 
     private boolean dataStreamRunning = false;
     private boolean camStreamRunning = false;
-    private boolean visionOnline = false;
+    private volatile boolean visionOnline = false;
+
+    // What the user asked for, so it can be put back after the camera restarts
+    private volatile boolean streamWanted = false;
+    private volatile double streamStartTime = 0;
+    private volatile int exposureMode = EXPOSURE_DEFAULT;
+
+    // Link supervisor. Everything but the published results is only touched by the listener thread.
+    private volatile int linkState = LINK_CONNECTED;
+    private double linkStateTime = 0;
+    private boolean linkBroken = false;
+    private double lastPacketTime = 0;
+    private CompletableFuture<Integer> linkCheck = null;
+    private CompletableFuture<Integer>[] restoreResults = null;
+    private int reopenDelay_ms = PORT_OPEN_INITIAL_RETRY_DELAY_MS;
+    private double nextReopenTime = 0;
+    private boolean recovering = false;
+    private double linkLostTime = 0;
+    private double outageStartTime = 0;
+    private volatile long linkLossCount = 0;
+    private volatile long linkRecoveryCount = 0;
+    private volatile double lastRecoveryDuration = -1;
+    private volatile double lastOutageDuration = -1;
+    private volatile double maxRecoveryDuration = 0;
+
+    // Link delay and clock offset estimation, from echo round trips sent by the listener
+    private final LinkDelayEstimator linkDelay = new LinkDelayEstimator(BAUD_RATE);
+    private boolean echoSupported = true;
+    private CompletableFuture<Integer> echoResult = null;
+    private long echoId = 0;
+    private int echoCmdLength = 0;
+    private double echoSendTime = 0;
+    private double nextEchoTime = 0;
+
+    // Serial read strategy. True to block inside the serial driver until bytes arrive,
+    // false to use the older poll-and-sleep loop.
+    private volatile boolean useBlockingRead = true;
 
     // Packet rate performace tracking
     private double packetRxTime = 0;
     private double prevPacketRxTime = 0;
-    private double packetRate_PPS = 0;
 
-    // Most recently seen target information
-    private boolean tgtVisible = false;
-    private double  tgtAngleDeg = 0;
-    private double  tgtRange = 0;
-    private double  tgtTime = 0;
+    // Startup timing, in seconds. Each is measured from when construction started.
+    private double startupBeginTime = 0;
+    private double startupPortOpenDuration = 0;
+    private double startupPingDuration = 0;
+    private double startupConfigDuration = 0;
+    private double startupTotalDuration = 0;
+    private volatile double startupFirstPacketDuration = -1;
+
+    // Sliding-window statistics of packet timing, in microseconds
+    private static final double PACKET_STATS_WINDOW_S = 5.0;
+    private static final int PACKET_STATS_WINDOW_SLICES = 5;
+    private final WindowedHistogram packetInterArrivalStats = new WindowedHistogram(PACKET_STATS_WINDOW_S, PACKET_STATS_WINDOW_SLICES);
+    private final WindowedHistogram packetLatencyStats = new WindowedHistogram(PACKET_STATS_WINDOW_S, PACKET_STATS_WINDOW_SLICES);
+
+    // Per-stage latency of each packet, from capture to being read by robot code. Off unless turned on.
+    private final PacketLatencyTracer latencyTracer = new PacketLatencyTracer();
+    private long publishTime_ns = 0;
+
+    // Most recently seen target information.
+    // Written only by the listener thread, inside a sequence lock: publishSeq is odd while an update is in
+    // progress, and changes every update, so readers can tell if they got a mixed set of values and retry.
+    private volatile long publishSeq = 0;
+    private volatile long frameCounter = -1;
+    private volatile boolean tgtVisible = false;
+    private volatile double  tgtAngleDeg = 0;
+    private volatile double  tgtRange = 0;
+    private volatile double  tgtTime = 0;
+    private volatile double  tgtRxTime = 0;
     
     // Info about the JeVois performace & status
-    private double jeVoisCpuTempC = 0;
-    private double jeVoisCpuLoadPct = 0;
-    private double jeVoisFramerateFPS = 0;
-    private double packetRxRatePPS = 0;
+    private volatile double jeVoisCpuTempC = 0;
+    private volatile double jeVoisCpuLoadPct = 0;
+    private volatile double jeVoisFramerateFPS = 0;
+
+    // Every target seen in the most recent frame, published under the same sequence lock. Stored as raw double
+    // bits, FIELDS_PER_TARGET values per target in packet order, so each element read is a volatile read.
+    private volatile int publishedTargetCount = 0;
+    private final AtomicLongArray publishedTargets = new AtomicLongArray(JeVoisPacketFramer.MAX_TARGETS * JeVoisPacketFramer.FIELDS_PER_TARGET);
+
+    // Number of targets per frame the JeVois has been asked to send, 0 for none.
+    private volatile int maxTargetsRequested = 0;
+
+    // Recent target observations, for looking up where the target was at some past time.
+    // 64 entries is about a second of history at 60 FPS.
+    private static final int TGT_HISTORY_LEN = 64;
+    private final TargetHistory tgtHistory = new TargetHistory(TGT_HISTORY_LEN);
+
+    // Optional tracking filter, for predicting where the target is now rather than when the frame was taken
+    private final TargetPredictor tgtPredictor = new TargetPredictor();
+    private volatile boolean predictionEnabled = false;
+
+    // Tracks the JeVois frame counter to find lost, duplicate and out of order packets
+    private final FrameSequenceTracker frameTracker = new FrameSequenceTracker();
+    // Set when start() opens the USB stream, which restarts the vision module, so the listener forgets the old
+    // frame counter and target track
+    private volatile boolean streamRestarted = false;
+
+    // Console output goes through the telemetry sink, so neither the listener nor the caller waits on it
+    private final TelemetrySink telemetry = TelemetrySink.getConsole();
+    private final int cmdSentChannel;
+    private final int cmdShortWriteChannel;
+    private final int cmdErrorChannel;
+    private final int cmdTimeoutChannel;
+    private final int linkLostChannel;
+    private final int linkRecoveredChannel;
+
+    // Name of this camera in messages, so several can be told apart
+    private final String cameraName;
+
+    // Thread which reads from the JeVois. Either our own packetListenerThread, or the shared thread of a JeVoisManager.
+    private volatile Thread listenerThread = null;
+    private final JeVoisManager manager;
+
+    /** Match log record type used for each received target packet */
+    public static final int MATCH_LOG_TYPE_VISION = 1;
+    // Where to record each received target packet, if anywhere
+    private volatile BinaryMatchLog matchLog = null;
+
+    // Commands sent to the JeVois which haven't been answered yet, oldest first.
+    // The JeVois answers commands in order, so each OK or ERR belongs to the oldest one.
+    private final ArrayDeque<PendingCommand> pendingCmds = new ArrayDeque<PendingCommand>();
+    // Held while queueing a command and writing it out, so the queue order always matches the order commands went
+    // out. Separate from the queue's own lock, so the listener never waits on a slow write to match an answer.
+    // The listener only ever tries this lock. If another thread is writing, its commands wait in deferredCmds.
+    private final ReentrantLock cmdWriteLock = new ReentrantLock();
+    // Commands from the listener itself, waiting for another thread to finish writing. Listener only.
+    private final ArrayDeque<PendingCommand> deferredCmds = new ArrayDeque<PendingCommand>();
     
     
     //=======================================================
@@ -81,50 +275,138 @@ public class JeVoisInterface {
      * Pass TRUE to additionaly enable a USB camera stream of what the vision camera is seeing.
      */
     public JeVoisInterface(boolean useUSBStream) {
-        int retry_counter = 0;
-        
-        //Retry strategy to get this serial port open.
-        //I have yet to see a single retry used assuming the camera is plugged in
-        // but you never know.
-        while(visionPort == null && retry_counter++ < 10){
-            try {
-                System.out.print("Creating JeVois SerialPort...");
-                visionPort = new SerialPort(BAUD_RATE,SerialPort.Port.kUSB);
-                System.out.println("SUCCESS!!");
-            } catch (Exception e) {
-                System.out.println("FAILED!!");
-                e.printStackTrace();
-                sleep(500);
-                System.out.println("Retry " + Integer.toString(retry_counter));
-            }
-        }
+        // Arguments are evaluated in order, so the start time is grabbed before the port is opened
+        this(DEFAULT_CAMERA_NAME, useUSBStream, Timer.getFPGATimestamp(), openSerialPort(), null);
+    }
+
+    /**
+     * Constructor (custom transport). Same as the other constructors, but talks to the JeVois over the given
+     * byte stream instead of the USB serial port. Use this with a SocketTransport or SimulatedJeVoisTransport
+     * to run without a camera plugged in.
+     * Pass TRUE to additionaly enable a USB camera stream of what the vision camera is seeing.
+     */
+    public JeVoisInterface(boolean useUSBStream, JeVoisTransport transport) {
+        this(DEFAULT_CAMERA_NAME, useUSBStream, Timer.getFPGATimestamp(), transport, null);
+    }
 
+    /**
+     * Constructor (shared listener). Used by JeVoisManager.addCamera(), so the manager's one thread
+     * listens to this camera instead of it getting its own.
+     */
+    JeVoisInterface(String name, boolean useUSBStream, double beginTime, JeVoisTransport transport, JeVoisManager manager) {
+        double stepStartTime;
+        
+        cameraName = name;
+        this.manager = manager;
+        cmdSentChannel = telemetry.addChannel(name + " cmd sent");
+        cmdShortWriteChannel = telemetry.addChannel(name + " cmd partially written, bytes");
+        cmdErrorChannel = telemetry.addChannel(name + " cmd produced an error");
+        cmdTimeoutChannel = telemetry.addChannel(name + " cmd timed out");
+        linkLostChannel = telemetry.addChannel(name + " link lost");
+        linkRecoveredChannel = telemetry.addChannel(name + " link recovered, ms");
+        
+        visionPort = transport;
+        startupBeginTime = beginTime;
+        startupPortOpenDuration = Timer.getFPGATimestamp() - startupBeginTime;
         
         //Report an error if we didn't get to open the serial port
         if(visionPort == null){
-            DriverStation.reportError("Cannot open serial port to JeVois. Not starting vision system.", false);
+            DriverStation.reportError("Cannot open serial port to " + name + ". Not starting vision system.", false);
             return;
         }
+
+        //Start listening for packets and command responses
+        linkStateTime = Timer.getFPGATimestamp();
+        if(manager != null){
+            listenerThread = manager.register(this);
+        } else {
+            listenerThread = packetListenerThread;
+            packetListenerThread.setName("JeVoisListener");
+            packetListenerThread.setDaemon(true);
+            packetListenerThread.start();
+        }
         
         //Test to make sure we are actually talking to the JeVois
+        stepStartTime = Timer.getFPGATimestamp();
+        setCameraStreamActive(useUSBStream);
         if(sendPing() != 0){
-            DriverStation.reportError("JeVois ping test failed. Not starting vision system.", false);
+            //Maybe it's still booting. The link supervisor will keep trying, and set it up once it answers.
+            DriverStation.reportError(cameraName + " ping test failed. Will keep trying to connect in the background.", false);
+            streamStartTime = Timer.getFPGATimestamp();
+            streamWanted = true;
             return;
         }
+        startupPingDuration = Timer.getFPGATimestamp() - stepStartTime;
         
-        //Ensure the JeVois is starting with the stream off.
-        stopDataOnlyStream();
-
-        setCameraStreamActive(useUSBStream);
-        start();
+        //Ensure the JeVois is starting with the stream off, then start it back up in the requested mode.
+        //The serial commands all go out back-to-back and are checked together, rather than waiting on each in turn.
+        stepStartTime = Timer.getFPGATimestamp();
+        streamStartTime = stepStartTime;
+        streamWanted = true;
+        if(broadcastUSBCam){
+            sendCmdBatch(new String[]{"streamoff"}, STARTUP_CMD_TIMEOUT_S);
+            startCameraStream();
+        } else {
+            int[] results = sendCmdBatch(new String[]{"streamoff", 
+                                                      "setmapping " + Integer.toString(NO_STREAM_MAPPING), 
+                                                      USE_BINARY_PROTOCOL ? "binmode on" : "binmode off",
+                                                      "streamon"}, STARTUP_CMD_TIMEOUT_S);
+            if(USE_BINARY_PROTOCOL && results[2] != 0){
+                telemetry.logMessage("JeVois did not accept binmode, staying with text packets");
+            }
+            dataStreamRunning = (results[3] == 0);
+        }
+        startupConfigDuration = Timer.getFPGATimestamp() - stepStartTime;
+        
+        startupTotalDuration = Timer.getFPGATimestamp() - startupBeginTime;
+        printStartupTimes();
+    } 
 
-        //Start listening for packets
-        packetListenerThread.setDaemon(true);
-        packetListenerThread.start();
+    /**
+     * Open the USB serial port to the JeVois. Public so the port can be wrapped (for example in a RecordingTransport)
+     * before being handed to the custom transport constructor.
+     * @return the opened port, or null if it could not be opened
+     */
+    public static JeVoisTransport openSerialPort(){
+        return openSerialPort(SerialPort.Port.kUSB);
+    }
 
-    } 
+    /**
+     * Open a serial port to a JeVois. With more than one camera plugged in, they show up as kUSB, kUSB1 and kUSB2
+     * in the order they enumerated.
+     * @return the opened port, or null if it could not be opened
+     */
+    public static JeVoisTransport openSerialPort(SerialPort.Port portId){
+        JeVoisTransport port = null;
+        int retry_counter = 0;
+        int retry_delay_ms = PORT_OPEN_INITIAL_RETRY_DELAY_MS;
+        
+        //Retry strategy to get this serial port open.
+        //I have yet to see a single retry used assuming the camera is plugged in
+        // but you never know. After a brownout the JeVois may still be enumerating,
+        // so retry quickly at first and back off if it's taking a while.
+        while(port == null && retry_counter++ < PORT_OPEN_MAX_TRIES){
+            try {
+                System.out.print("Creating JeVois SerialPort...");
+                port = new SerialPortTransport(BAUD_RATE,portId);
+                System.out.println("SUCCESS!!");
+            } catch (Exception e) {
+                System.out.println("FAILED!!");
+                e.printStackTrace();
+                sleep(retry_delay_ms);
+                retry_delay_ms = Math.min(retry_delay_ms * 2, PORT_OPEN_MAX_RETRY_DELAY_MS);
+                System.out.println("Retry " + Integer.toString(retry_counter));
+            }
+        }
+        return port;
+    }
 
+    /**
+     * Start the JeVois sending target data again after stop(). The link supervisor keeps it running from then on.
+     */
     public void start(){
+        streamStartTime = Timer.getFPGATimestamp();
+        streamWanted = true;
         if(broadcastUSBCam){
             //Start streaming the JeVois via webcam
             //This auto-starts the serial stream
@@ -134,7 +416,11 @@ public class JeVoisInterface {
         }
     }
 
+    /**
+     * Stop the JeVois sending target data. The link supervisor leaves it stopped.
+     */
     public void stop(){
+        streamWanted = false;
         if(broadcastUSBCam){
             //Start streaming the JeVois via webcam
             //This auto-starts the serial stream
@@ -145,21 +431,28 @@ public class JeVoisInterface {
     }
     
     /**
-     * Send commands to the JeVois to configure it for image-processing friendly parameters
+     * Send commands to the JeVois to configure it for image-processing friendly parameters.
+     * Returns right away - the commands are checked in the background, and errors are reported to the driver station.
      */
     public void setCamVisionProcMode() {
+        exposureMode = EXPOSURE_VISION_PROC;
         if (visionPort != null){
-            sendCmdAndCheck("setcam autoexp 1"); //Disable auto exposure
-            sendCmdAndCheck("setcam absexp 75"); //Force exposure to a low value for vision processing
+            for(String cmd : VISION_PROC_EXPOSURE_CMDS){
+                sendCmdAsync(cmd, CMD_TIMEOUT_S);
+            }
         }
     }
     
     /**
-     * Send parameters to the camera to configure it for a human-readable image
+     * Send parameters to the camera to configure it for a human-readable image.
+     * Returns right away - the command is checked in the background, and errors are reported to the driver station.
      */
     public void setCamHumanDriverMode() {
+        exposureMode = EXPOSURE_HUMAN_DRIVER;
         if (visionPort != null){
-            sendCmdAndCheck("setcam autoexp 0"); //Enable AutoExposure
+            for(String cmd : HUMAN_DRIVER_EXPOSURE_CMDS){
+                sendCmdAsync(cmd, CMD_TIMEOUT_S);
+            }
         }
     }
 
@@ -182,11 +475,123 @@ public class JeVoisInterface {
 
     }
 
+    /**
+     * Select how the background listener waits for serial data.
+     * True (default) blocks in the serial driver until bytes arrive, so a packet is handed over as soon as its
+     * end character is read. False uses the original poll-and-sleep loop, which adds 0-5ms (about 2.5ms on
+     * average) of latency to each packet. The readMode benchmark in JeVoisBench compares the two against the
+     * simulated camera. Kept around so they can be compared on a real robot too.
+     */
+    public void setBlockingReadMode(boolean blocking){
+        useBlockingRead = blocking;
+    }
+
+    /**
+     * Switch the JeVois between compact binary packets with a checksum, and the original text packets.
+     * Only works once the vision module is running, since it's the module which handles the command.
+     * Either kind of packet is accepted no matter what this is set to.
+     * @return 0 on success, -1 on error, -2 on timeout
+     */
+    public int setBinaryProtocol(boolean enable){
+        if(visionPort == null){
+            return -1;
+        }
+        return sendCmdAndCheck(enable ? "binmode on" : "binmode off");
+    }
+
+    /**
+     * Ask the JeVois to send a list of the targets it found in each frame, in addition to the one it picked.
+     * The lists can be read with getTargets(). Only works once the vision module is running, since it's
+     * the module which handles the command. Remembered, and sent again if the data stream is restarted.
+     * @param maxTargets most targets to send per frame, largest first. 0 turns the lists off.
+     *                   Limited to TargetList.MAX_TARGETS.
+     * @return 0 on success, -1 on error, -2 on timeout
+     */
+    public int setMaxTargets(int maxTargets){
+        if(visionPort == null){
+            return -1;
+        }
+        int count = Math.max(0, Math.min(maxTargets, TargetList.MAX_TARGETS));
+        int retval = sendCmdAndCheck("multitgt " + Integer.toString(count));
+        if(retval == 0){
+            maxTargetsRequested = count;
+        }
+        return retval;
+    }
+
+    /**
+     * Record every target packet received from now on into the given match log, timestamped with when it
+     * was received. Pass null to stop. Recording happens on the background listener thread, and doesn't
+     * block or allocate.
+     */
+    public void setMatchLog(BinaryMatchLog log){
+        if(log != null){
+            log.defineRecordType(MATCH_LOG_TYPE_VISION, "vision", "frame", "tgt_visible", "tgt_angle_deg", "tgt_range_in", 
+                                 "tgt_time_s", "jv_cpu_temp_C", "jv_cpu_load_pct", "jv_framerate_fps");
+        }
+        matchLog = log;
+    }
+
+    /**
+     * Returns a snapshot of everything reported in the most recently received packet.
+     * All values are guaranteed to come from the same frame. Never blocks the listener thread.
+     * Allocates a new object each call - use getLatestObservation(TargetObservation) in periodic code.
+     */
+    public TargetObservation getLatestObservation() {
+        TargetObservation obs = new TargetObservation();
+        getLatestObservation(obs);
+        return obs;
+    }
+
+    /**
+     * Fills in dest with everything reported in the most recently received packet.
+     * All values are guaranteed to come from the same frame. Never blocks the listener thread,
+     * and does not allocate anything.
+     * @param dest snapshot to overwrite
+     */
+    public void getLatestObservation(TargetObservation dest) {
+        long seqStart;
+        do {
+            seqStart = publishSeq;
+            dest.set(frameCounter, tgtVisible, tgtAngleDeg, tgtRange, tgtTime, tgtRxTime, 
+                     jeVoisCpuTempC, jeVoisCpuLoadPct, jeVoisFramerateFPS);
+            // Retry if the listener was part way through an update, or finished one while we were copying.
+        } while((seqStart & 1) != 0 || seqStart != publishSeq);
+        latencyTracer.noteRead();
+    }
+
+    /**
+     * Fills in a list of every target seen in the most recently received frame. The list is empty unless
+     * setMaxTargets() has been used to turn target lists on. Everything copied comes from the same frame.
+     * Doesn't allocate, and never blocks the listener thread.
+     */
+    public void getTargets(TargetList dest) {
+        long seqStart;
+        do {
+            seqStart = publishSeq;
+            int count = Math.min(publishedTargetCount, TargetList.MAX_TARGETS);
+            dest.set(frameCounter, tgtTime, tgtRxTime, count);
+            for(int i = 0; i < count; i++){
+                int base = i * JeVoisPacketFramer.FIELDS_PER_TARGET;
+                dest.setTarget(i, getPublishedTarget(base), getPublishedTarget(base + 1), getPublishedTarget(base + 2), 
+                               getPublishedTarget(base + 3), getPublishedTarget(base + 4), getPublishedTarget(base + 5), 
+                               getPublishedTarget(base + 6));
+            }
+            // Retry if the listener was part way through an update, or finished one while we were copying.
+        } while((seqStart & 1) != 0 || seqStart != publishSeq);
+        latencyTracer.noteRead();
+    }
+
+    private double getPublishedTarget(int idx) {
+        return Double.longBitsToDouble(publishedTargets.get(idx));
+    }
+
     /**
      * Returns the most recently seen target's angle relative to the camera in degrees
      * Positive means to the Right of center, negative means to the left
      */
     public double getTgtAngle_Deg() {
+        latencyTracer.noteRead();
         return tgtAngleDeg;
     }
 
@@ -196,17 +601,129 @@ public class JeVoisInterface {
      * Return values should only be positive
      */
     public double getTgtRange_in() {
+        latencyTracer.noteRead();
         return tgtRange;
     }
     
+    /**
+     * Returns the target's angle relative to the camera in degrees at some recent time, interpolated
+     * between the observations just before and just after it. Use this to line up vision with gyro
+     * or odometry samples taken at a different time. Never blocks or allocates.
+     * @param time FPGA timestamp, on the same clock as getTgtTime()
+     * @return angle in degrees, or NaN if time is outside the stored history (about the last second)
+     *         or the target was not visible on both sides of it
+     */
+    public double getTgtAngleAtTime_Deg(double time) {
+        return tgtHistory.getAngleAt(time);
+    }
+
+    /**
+     * Returns the target's range from the camera in inches at some recent time, interpolated
+     * between the observations just before and just after it. Never blocks or allocates.
+     * @param time FPGA timestamp, on the same clock as getTgtTime()
+     * @return range in inches, or NaN if time is outside the stored history (about the last second)
+     *         or the target was not visible on both sides of it
+     */
+    public double getTgtRangeAtTime_in(double time) {
+        return tgtHistory.getRangeAt(time);
+    }
+
+    /**
+     * Turns the target predictor on or off. While on, every packet updates a tracking filter over the target's
+     * angle and range, which skips one-frame glitches and estimates how fast the target is moving. It starts
+     * tracking from the next packet.
+     */
+    public void setTargetPrediction(boolean enable) {
+        predictionEnabled = enable;
+    }
+
+    /**
+     * Returns where the target is estimated to be right now, in degrees relative to the camera. Unlike
+     * getTgtAngle_Deg(), this makes up for the time taken to capture, process and send the frame.
+     * Never blocks or allocates.
+     * @return predicted angle, or NaN if prediction is off, or the target hasn't been seen in the last half second
+     */
+    public double getPredictedTgtAngle_Deg() {
+        return getPredictedTgtAngleAtTime_Deg(Timer.getFPGATimestamp());
+    }
+
+    /**
+     * Returns where the target is estimated to be right now, in inches of range from the camera. Unlike
+     * getTgtRange_in(), this makes up for the time taken to capture, process and send the frame.
+     * Never blocks or allocates.
+     * @return predicted range, or NaN if prediction is off, or the target hasn't been seen in the last half second
+     */
+    public double getPredictedTgtRange_in() {
+        return getPredictedTgtRangeAtTime_in(Timer.getFPGATimestamp());
+    }
+
+    /**
+     * Returns the target's estimated angle relative to the camera at any time, in degrees. Extrapolates past
+     * the latest packet by up to a quarter second, so it can also look a little ahead to allow for how long
+     * a mechanism takes to respond. Never blocks or allocates.
+     * @param time FPGA timestamp, on the same clock as getTgtTime()
+     * @return predicted angle, or NaN if prediction is off, or the target hasn't been seen in the last half second
+     */
+    public double getPredictedTgtAngleAtTime_Deg(double time) {
+        return predictionEnabled ? tgtPredictor.getAngleAt(time) : Double.NaN;
+    }
+
+    /**
+     * Returns the target's estimated range from the camera at any time, in inches. Extrapolates past the
+     * latest packet by up to a quarter second. Never blocks or allocates.
+     * @param time FPGA timestamp, on the same clock as getTgtTime()
+     * @return predicted range, or NaN if prediction is off, or the target hasn't been seen in the last half second
+     */
+    public double getPredictedTgtRangeAtTime_in(double time) {
+        return predictionEnabled ? tgtPredictor.getRangeAt(time) : Double.NaN;
+    }
+
+    /**
+     * Returns the target predictor, for its rate estimates and outlier counts
+     */
+    public TargetPredictor getTargetPredictor() {
+        return tgtPredictor;
+    }
+
+    /**
+     * Returns the full history of recent target observations, for more involved lookups
+     */
+    public TargetHistory getTgtHistory() {
+        return tgtHistory;
+    }
+    
     /**
      * Get the estimated timestamp of the most recent target observation.
-     * This is calculated based on the FPGA timestamp at packet RX time, minus the reportetd vision pipeline delay.
-     * It will not currently account for serial hardware or other delays.
+     * This is calculated based on the FPGA timestamp at packet RX time, minus the time to send the packet at the
+     * serial baud rate, minus the measured link delay (see getLinkDelay_s()), minus the reported vision pipeline delay.
      */
     public double getTgtTime() {
         return tgtTime;
     }
+
+    /**
+     * Returns the estimated one way delay through the serial hardware and drivers between the JeVois and us,
+     * not counting the time to send the bytes at the baud rate, in seconds. Measured from echo round trips,
+     * and zero until the first one is answered.
+     */
+    public double getLinkDelay_s() {
+        return linkDelay.getLinkDelay_s();
+    }
+
+    /**
+     * Returns how much the link delay typically varies from getLinkDelay_s(), from the spread of recent echo
+     * round trips, in seconds. Target timestamps share this uncertainty.
+     */
+    public double getLinkDelayUncertainty_s() {
+        return linkDelay.getLinkDelayUncertainty_s();
+    }
+
+    /**
+     * Returns the link delay and JeVois clock offset estimator, for more detail
+     */
+    public LinkDelayEstimator getLinkDelayEstimator() {
+        return linkDelay;
+    }
     
     /**
      * Returns true when the roboRIO is recieving packets from the JeVois, false if no packets have been recieved.
@@ -220,6 +737,7 @@ public class JeVoisInterface {
      * Returns true when the JeVois sees a target and is tracking it, false otherwise.
      */
     public boolean isTgtVisible() {
+        latencyTracer.noteRead();
         return tgtVisible;
     }
     
@@ -245,277 +763,1006 @@ public class JeVoisInterface {
     }
 
     /**
-     * Returns the roboRIO measured serial packet recieve rate in packets per second
+     * Returns the roboRIO measured serial packet recieve rate in packets per second,
+     * averaged over the last few seconds.
      */
     public int getPacketRxRate_PPS(){
-    	if(visionOnline){
-    		return (int)Math.round(packetRxRatePPS);
+        double meanInterArrival_us = packetInterArrivalStats.getMean(getStatsTime_s());
+    	if(visionOnline && meanInterArrival_us > 0){
+    		return (int)Math.round(1000000.0 / meanInterArrival_us);
     	} else {
     		return 0;
     	}
     }
 
-    //=======================================================
-    //== END PUBLIC INTERFACE
-    //=======================================================
-
-    
     /**
-     * This is the main perodic update function for the Listener. It is intended
-     * to be run in a background task, as it will block until it gets packets. 
+     * Returns the current time on the clock the packet and latency statistics are recorded against.
+     * Pass it to their getters so samples age out even after packets stop coming.
      */
-    private void backgroundUpdate(){
-        
-        // Grab packets and parse them.
-        String packet;
-        
-        prevPacketRxTime = packetRxTime;
-        packet = blockAndGetPacket(2.0);
-        
-        
-        if(packet != null){
-            packetRxTime = Timer.getFPGATimestamp();
-            if( parsePacket(packet, packetRxTime) == 0){
-                visionOnline = true;
-                packetRxRatePPS = 1.0/(packetRxTime - prevPacketRxTime);
-            } else {
-                visionOnline = false;
-            }
-            
-        } else {
-            visionOnline = false;
-            DriverStation.reportWarning("Cannot get packet from JeVois Vision Processor", false);
-        }
-        
+    public double getStatsTime_s(){
+        JeVoisTransport port = visionPort;
+        return (port != null) ? port.getTime_s() : Timer.getFPGATimestamp();
     }
 
     /**
-     * Send the ping command to the JeVois to verify it is connected
-     * @return 0 on success, -1 on unexpected response, -2 on timeout
+     * Returns sliding-window statistics (mean, p50, p99, max, std dev) of the time between received
+     * packets, in microseconds. Jitter in this number is what hurts target tracking the most.
+     * Safe to read from any thread, never locks. Pass getStatsTime_s() to the getters.
      */
-    private int sendPing() {
-        int retval = -1;
-        if (visionPort != null){
-            retval = sendCmdAndCheck("ping");
-        }
-        return retval;
+    public WindowedHistogram getPacketInterArrivalStats(){
+        return packetInterArrivalStats;
     }
 
-    private void startDataOnlyStream(){
-        //Send serial commands to start the streaming of target info
-        sendCmdAndCheck("setmapping " + Integer.toString(NO_STREAM_MAPPING));
-        sendCmdAndCheck("streamon");
-        dataStreamRunning = true;
+    /**
+     * Returns sliding-window statistics (mean, p50, p99, max, std dev) of the latency from
+     * frame capture to packet reception, in microseconds. Safe to read from any thread, never locks.
+     * Pass getStatsTime_s() to the getters.
+     */
+    public WindowedHistogram getPacketLatencyStats(){
+        return packetLatencyStats;
     }
 
-    private void stopDataOnlyStream(){
-        //Send serial commands to stop the streaming of target info
-        sendCmdAndCheck("streamoff");
-        dataStreamRunning = false;
+    /**
+     * Turns per-stage packet latency tracing on or off. Costs next to nothing while off.
+     * See getLatencyTracer() for the results.
+     */
+    public void setLatencyTracing(boolean enable){
+        latencyTracer.setEnabled(enable);
+        packetFramer.setTracing(enable);
     }
-    
 
     /**
-     * Open an Mjpeg streamer from the JeVois camera
+     * Returns the per-stage packet latency statistics, from frame capture to the first time robot code reads
+     * the target with getLatestObservation(), getTargets(), getTgtAngle_Deg(), getTgtRange_in() or isTgtVisible().
+     * Only filled in while setLatencyTracing() is on.
      */
-    private void startCameraStream(){
-        try{
-            System.out.print("Starting JeVois Cam Stream...");
-            visionCam = new UsbCamera("VisionProcCam", 0);
-            visionCam.setVideoMode(PixelFormat.kBGR, STREAM_WIDTH_PX, STREAM_HEIGHT_PX, STREAM_RATE_FPS);
-            camServer = new MjpegServer("VisionCamServer", MJPG_STREAM_PORT);
-            camServer.setSource(visionCam);
-            camStreamRunning = true;
-            dataStreamRunning = true;
-            System.out.println("SUCCESS!!");
-        } catch (Exception e) {
-            DriverStation.reportError("Cannot start camera stream from JeVois", false);
-            e.printStackTrace();
-        }
+    public PacketLatencyTracer getLatencyTracer(){
+        return latencyTracer;
     }
-    
+
     /**
-     * Cease the operation of the camera stream. Unknown if needed.
+     * Returns the frame counter tracker, with counts of frames lost between the JeVois and the roboRIO,
+     * and duplicate or out-of-order packets which were thrown away.
      */
-    private void stopCameraStream(){
-        if(camStreamRunning){
-            camServer.free();
-            visionCam.free();
-            camStreamRunning = false;
-            dataStreamRunning = false;
-        }
+    public FrameSequenceTracker getFrameStats(){
+        return frameTracker;
     }
-    
+
     /**
-     * Sends a command over serial to JeVois and returns immediately.
-     * @param cmd String of the command to send (ex: "ping")
-     * @return number of bytes written
+     * Returns the percentage of frames processed by the JeVois whose packets never made it to us
      */
-    private int sendCmd(String cmd){
-        int bytes;
-        bytes = visionPort.writeString(cmd + "\n");
-        System.out.println("wrote " +  bytes + "/" + (cmd.length()+1) + " bytes, cmd: " + cmd);
+    public double getFrameLoss_pct(){
+        return frameTracker.getFrameLossPct();
+    }
+
+    /**
+     * Returns the number of packets which were received but could not be parsed
+     */
+    public long getMalformedPacketCount(){
+        return packetFramer.getMalformedCount() + stringPacketParser.getMalformedCount();
+    }
+
+    /**
+     * Returns the number of binary packets thrown away because their checksum didn't match.
+     * These are included in getMalformedPacketCount().
+     */
+    public long getChecksumErrorCount(){
+        return packetFramer.getCrcErrorCount();
+    }
+
+    /**
+     * Returns the number of good binary packets received. Stays at zero while the JeVois is sending text packets.
+     */
+    public long getBinaryPacketCount(){
+        return packetFramer.getBinaryPacketCount();
+    }
+
+    /**
+     * Returns how long startup took from construction until the serial port was open, in seconds.
+     */
+    public double getStartupPortOpenTime_s(){
+        return startupPortOpenDuration;
+    }
+
+    /**
+     * Returns how long the startup ping took to be answered, in seconds.
+     */
+    public double getStartupPingTime_s(){
+        return startupPingDuration;
+    }
+
+    /**
+     * Returns how long it took to send and confirm the startup configuration commands, in seconds.
+     */
+    public double getStartupConfigTime_s(){
+        return startupConfigDuration;
+    }
+
+    /**
+     * Returns how long the constructor took in total, in seconds.
+     */
+    public double getStartupTotalTime_s(){
+        return startupTotalDuration;
+    }
+
+    /**
+     * Returns how long it took from construction until the first target packet was received, in seconds.
+     * This is when the vision system really came online. Returns -1 if no packet has been received yet.
+     */
+    public double getStartupFirstPacketTime_s(){
+        return startupFirstPacketDuration;
+    }
+
+    /**
+     * Returns the name this camera goes by in messages. "JeVois" unless it was added to a JeVoisManager with another name.
+     */
+    public String getCameraName(){
+        return cameraName;
+    }
+
+    /**
+     * Returns what the link supervisor is doing: LINK_CONNECTED, LINK_CHECKING, LINK_LOST, LINK_REOPENED or LINK_RESTORING.
+     */
+    public int getLinkState(){
+        return linkState;
+    }
+
+    /**
+     * Returns how many times the link to the JeVois has been lost (cable pulled, camera restarted or stopped answering).
+     */
+    public long getLinkLossCount(){
+        return linkLossCount;
+    }
+
+    /**
+     * Returns how many times the link has come back after being lost.
+     */
+    public long getLinkRecoveryCount(){
+        return linkRecoveryCount;
+    }
+
+    /**
+     * Returns how long the last recovery took, from noticing the link was lost until the first packet afterward,
+     * in seconds. Returns -1 if the link has never had to recover.
+     */
+    public double getLastLinkRecoveryTime_s(){
+        return lastRecoveryDuration;
+    }
+
+    /**
+     * Returns the longest recovery so far, measured like getLastLinkRecoveryTime_s(), in seconds.
+     */
+    public double getMaxLinkRecoveryTime_s(){
+        return maxRecoveryDuration;
+    }
+
+    /**
+     * Returns how long vision was out during the last recovery, from the last packet before the link was lost
+     * until the first packet afterward, in seconds. This includes the time taken to notice. Returns -1 if the
+     * link has never had to recover.
+     */
+    public double getLastLinkOutageTime_s(){
+        return lastOutageDuration;
+    }
+
+    //=======================================================
+    //== END PUBLIC INTERFACE
+    //=======================================================
+
+    
+    /**
+     * This is the main perodic update function for the Listener. It is intended
+     * to be run in a background task, as it will block until it gets packets. 
+     */
+    private void backgroundUpdate(){
+        
+        // Grab packets and parse them.
+        int result;
+        
+        handleStreamRestart();
+        sendDeferredCmds();
+        superviseLink();
+        if(linkState == LINK_LOST){
+            // Nothing to read until the port is reopened
+            sleep(LINK_LOST_POLL_MS);
+            return;
+        }
+        updateLinkDelay();
+        
+        prevPacketRxTime = packetRxTime;
+        result = blockAndGetPacket(BLOCKING_READ_SLICE_S);
+        handlePacketResult(result);
+    }
+
+    /**
+     * One pass of the listener's work which never waits. Checks on the link, reads whatever bytes have already
+     * arrived, and handles every complete packet. A JeVoisManager's thread calls this on each of its cameras in turn.
+     * @return the number of bytes read, so the manager knows if it should wait before the next pass
+     */
+    int pollOnce(){
+        int result;
+        int bytesRead;
+        
+        handleStreamRestart();
+        sendDeferredCmds();
+        superviseLink();
+        if(linkState == LINK_LOST){
+            return 0;
+        }
+        updateLinkDelay();
+        
+        bytesRead = visionPort.read(rxBuffer, 0, rxBuffer.length, 0);
+        if(bytesRead > 0){
+            packetFramer.feed(rxBuffer, 0, bytesRead);
+        } else if(bytesRead < 0){
+            linkBroken = true;
+            bytesRead = 0;
+        }
+        
+        do {
+            prevPacketRxTime = packetRxTime;
+            result = blockAndGetPacket(0);
+            handlePacketResult(result);
+        } while(result != -2);
+        return bytesRead;
+    }
+
+    /**
+     * Returns true if more bytes should be along any moment: part of a packet has arrived, or a command
+     * is waiting for its answer. A JeVoisManager keeps polling quickly while this is true.
+     */
+    boolean isAwaitingBytes(){
+        if(packetFramer.hasPartialData()){
+            return true;
+        }
+        synchronized(pendingCmds){
+            for(PendingCommand pending : pendingCmds){
+                if(!pending.result.isDone()){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Acts on the result of blockAndGetPacket(): publishes the packet, or updates the link status.
+     */
+    private void handlePacketResult(int result){
+        if(result == 0){
+            long parsed_ns = latencyTracer.isEnabled() ? System.nanoTime() : 0;
+            lastPacketTime = Timer.getFPGATimestamp();
+            packetRxTime = visionPort.getTime_s();
+            result = updateTargetInfo(packetFramer, packetRxTime);
+            if(result == 0){
+                if(parsed_ns != 0){
+                    latencyTracer.packetPublished(packetFramer.getPacketStartTime_ns(), packetFramer.getPacketEndTime_ns(), 
+                                                  parsed_ns, publishTime_ns, packetFramer.getField(JV_PIPLINE_DELAY_TOKEN_IDX), 
+                                                  packetRxTime - tgtTime, packetRxTime);
+                }
+                if(startupFirstPacketDuration < 0){
+                    startupFirstPacketDuration = lastPacketTime - startupBeginTime;
+                }
+                if(recovering && linkState == LINK_CONNECTED){
+                    linkRecovered(lastPacketTime);
+                }
+                visionOnline = true;
+                if(prevPacketRxTime > 0){
+                    packetInterArrivalStats.record(Math.round((packetRxTime - prevPacketRxTime) * 1000000.0), packetRxTime);
+                }
+                packetLatencyStats.record(Math.round((packetRxTime - tgtTime) * 1000000.0), packetRxTime);
+            } else if(result == -2){
+                // Repeated or late frame. The link is fine, we just don't want this packet.
+                packetRxTime = prevPacketRxTime;
+            } else {
+                visionOnline = false;
+            }
+            
+        } else if(result == -1){
+            lastPacketTime = Timer.getFPGATimestamp();
+            visionOnline = false;
+            DriverStation.reportError("Got malformed vision packet. " + Long.toString(packetFramer.getMalformedCount()) + " malformed packets so far.", false);
+        } else if(Timer.getFPGATimestamp() - lastPacketTime > VISION_OFFLINE_TIMEOUT_S){
+            // Nothing for a while. If the camera is gone, the link supervisor reports it.
+            visionOnline = false;
+        }
+    }
+
+    /**
+     * Link supervisor, run by the listener before each read. Notices when the camera goes away, reopens the
+     * port until it comes back, then puts it back in the mode it was in. Commands are sent with sendCmdAsync
+     * and their results checked on later passes, so packets are still read the whole time.
+     * <br>
+     * <br>
+     * A broken transport (cable pulled) means the link is lost right away. If the stream just goes quiet, the
+     * camera is pinged. If it answers, it must have restarted, so it's set up again. If not, it's lost.
+     * Reopen attempts back off from 50ms to 1s apart.
+     */
+    private void superviseLink(){
+        double now = Timer.getFPGATimestamp();
+        
+        switch(linkState){
+        case LINK_CONNECTED:
+            if(linkBroken){
+                linkLost(now, "serial link broken");
+            } else if(streamWanted){
+                double quietTime = now - Math.max(Math.max(lastPacketTime, linkStateTime), streamStartTime);
+                double allowedTime = (lastPacketTime < streamStartTime) ? STREAM_START_TIMEOUT_S : LINK_SILENCE_TIMEOUT_S;
+                if(quietTime > allowedTime){
+                    visionOnline = false;
+                    linkCheck = sendCmdAsync("ping", CMD_TIMEOUT_S);
+                    setLinkState(LINK_CHECKING, now);
+                }
+            }
+            break;
+            
+        case LINK_CHECKING:
+            if(linkBroken){
+                linkLost(now, "serial link broken");
+            } else if(lastPacketTime > linkStateTime){
+                // Packets started up again on their own
+                setLinkState(LINK_CONNECTED, now);
+            } else if(linkCheck.isDone()){
+                if(linkCheck.getNow(-2) != 0){
+                    linkLost(now, "camera stopped answering");
+                } else if(broadcastUSBCam && camStreamRunning){
+                    // Camera's fine. Packets only flow while someone is watching the stream.
+                    setLinkState(LINK_CONNECTED, now);
+                } else {
+                    // Camera's fine but not sending, so it probably restarted. Set it up again.
+                    noteLinkLoss(now, "camera stopped streaming");
+                    startRestore(now);
+                }
+            }
+            break;
+            
+        case LINK_LOST:
+            if(now >= nextReopenTime){
+                // A port which still works (the camera just stopped answering) is reopened too,
+                // in case the device behind it went away and came back.
+                boolean reopened = visionPort.reopen();
+                if(reopened || !linkBroken){
+                    linkBroken = false;
+                    packetFramer.clear();
+                    linkCheck = sendCmdAsync("ping", CMD_TIMEOUT_S);
+                    setLinkState(LINK_REOPENED, now);
+                } else {
+                    scheduleReopen(now);
+                }
+            }
+            break;
+            
+        case LINK_REOPENED:
+            if(linkBroken){
+                linkLost(now, "serial link broken");
+            } else if(linkCheck.isDone()){
+                if(linkCheck.getNow(-2) == 0){
+                    startRestore(now);
+                } else {
+                    linkLost(now, "camera not answering");
+                }
+            }
+            break;
+            
+        case LINK_RESTORING:
+            if(linkBroken){
+                linkLost(now, "serial link broken");
+            } else {
+                boolean done = true;
+                boolean timedOut = false;
+                for(CompletableFuture<Integer> result : restoreResults){
+                    done &= result.isDone();
+                    timedOut |= (result.getNow(0) == -2);
+                }
+                if(timedOut){
+                    linkLost(now, "camera stopped answering");
+                } else if(done){
+                    // An ERR still means the camera is there, and it's already been reported
+                    if(streamWanted && !broadcastUSBCam){
+                        dataStreamRunning = true;
+                    }
+                    setLinkState(LINK_CONNECTED, now);
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * Forgets the last frame counter and the target track if start() opened the USB stream since the last pass.
+     * Run by the listener, since it owns both.
+     */
+    private void handleStreamRestart(){
+        if(streamRestarted){
+            streamRestarted = false;
+            resetFrameTracking();
+        }
+    }
+
+    /**
+     * Forgets the last frame counter and the target track, for when the vision module has restarted. Otherwise
+     * a new counter which is still behind the old one would have every packet rejected as stale for up to
+     * a couple of seconds. Only the listener calls this.
+     */
+    private void resetFrameTracking(){
+        frameTracker.reset();
+        tgtPredictor.reset();
+    }
+
+    /**
+     * Sends the next echo command to time the link, if one is due. Run by the listener after the link supervisor.
+     * Only one echo is out at a time, and only while the link is up and the stream is wanted. The answer is
+     * picked up in blockAndGetPacket(). Echoes stop for good if the JeVois doesn't know the command.
+     */
+    private void updateLinkDelay(){
+        if(!echoSupported || linkState != LINK_CONNECTED || !streamWanted){
+            return;
+        }
+        if(echoResult != null){
+            if(!echoResult.isDone()){
+                return;
+            }
+            if(echoResult.getNow(-2) == -1){
+                echoSupported = false;
+                telemetry.logMessage(cameraName + " does not support echo. Serial link delay will not be measured.");
+                return;
+            }
+            echoResult = null;
+        }
+        
+        double now = visionPort.getTime_s();
+        if(now < nextEchoTime || cmdWriteLock.isLocked() || !deferredCmds.isEmpty()){
+            // A late send would spoil the round trip time, so don't send one while another thread is writing
+            return;
+        }
+        nextEchoTime = now + ((linkDelay.getUsedSampleCount() < ECHO_FAST_SAMPLES) ? ECHO_FAST_PERIOD_S : ECHO_PERIOD_S);
+        echoId++;
+        String cmd = "echo " + Long.toString(echoId);
+        echoCmdLength = cmd.length() + 1;
+        echoSendTime = visionPort.getTime_s();
+        echoResult = sendCmdAsync(cmd, CMD_TIMEOUT_S, false);
+    }
+
+    /**
+     * Feeds the round trip time of the echo just answered to the link delay estimator, unless it's a late
+     * answer to an echo which already timed out.
+     */
+    private void handleEchoResponse(){
+        double rxTime = visionPort.getTime_s();
+        if(echoResult != null && !echoResult.isDone() && packetFramer.getEchoId() == echoId){
+            linkDelay.addSample(echoSendTime, rxTime, packetFramer.getEchoTime_us() / 1000000.0,
+                                echoCmdLength, packetFramer.getLastLineLength() + 1);
+        }
+    }
+
+    private void setLinkState(int state, double now){
+        linkState = state;
+        linkStateTime = now;
+    }
+
+    /**
+     * Gives up on the link, and starts trying to reopen it.
+     */
+    private void linkLost(double now, String reason){
+        noteLinkLoss(now, reason);
+        failPendingCmds();
+        scheduleReopen(now);
+        setLinkState(LINK_LOST, now);
+    }
+
+    /**
+     * Counts and reports a lost link, unless we're already recovering from one.
+     */
+    private void noteLinkLoss(double now, String reason){
+        visionOnline = false;
+        if(!recovering){
+            recovering = true;
+            linkLostTime = now;
+            outageStartTime = (lastPacketTime > 0) ? lastPacketTime : now;
+            reopenDelay_ms = PORT_OPEN_INITIAL_RETRY_DELAY_MS;
+            nextReopenTime = now;
+            linkLossCount++;
+            telemetry.log(linkLostChannel, reason);
+            DriverStation.reportWarning("Lost " + cameraName + " link (" + reason + "). Reconnecting in the background.", false);
+        }
+    }
+
+    /**
+     * Picks when to try reopening the port next. The delay doubles each time, up to the max.
+     */
+    private void scheduleReopen(double now){
+        if(nextReopenTime <= now){
+            nextReopenTime = now + reopenDelay_ms / 1000.0;
+            reopenDelay_ms = Math.min(reopenDelay_ms * 2, PORT_OPEN_MAX_RETRY_DELAY_MS);
+        }
+    }
+
+    /**
+     * Sends the camera everything it needs to get back to the mode it was in before the link was lost.
+     */
+    private void startRestore(double now){
+        ArrayList<String> cmds = new ArrayList<String>();
+        if(streamWanted && !broadcastUSBCam){
+            cmds.add("streamoff");
+            cmds.add("setmapping " + Integer.toString(NO_STREAM_MAPPING));
+            cmds.add(USE_BINARY_PROTOCOL ? "binmode on" : "binmode off");
+            if(maxTargetsRequested > 0){
+                cmds.add("multitgt " + Integer.toString(maxTargetsRequested));
+            }
+            cmds.add("streamon");
+            streamStartTime = now;
+        } else if(streamWanted && !camStreamRunning){
+            // Never got going at startup. Once it's running, cscore reconnects the camera by itself.
+            startCameraStream();
+            streamStartTime = now;
+        }
+        if(exposureMode == EXPOSURE_VISION_PROC){
+            cmds.addAll(Arrays.asList(VISION_PROC_EXPOSURE_CMDS));
+        } else if(exposureMode == EXPOSURE_HUMAN_DRIVER){
+            cmds.addAll(Arrays.asList(HUMAN_DRIVER_EXPOSURE_CMDS));
+        }
+        
+        // The camera may have rebooted, starting its frame counter and clock over
+        resetFrameTracking();
+        linkDelay.reset();
+        nextEchoTime = 0;
+        
+        String[] restoreCmds = cmds.toArray(new String[cmds.size()]);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<Integer>[] results = new CompletableFuture[restoreCmds.length];
+        for(int i = 0; i < restoreCmds.length; i++){
+            results[i] = sendCmdAsync(restoreCmds[i], CMD_TIMEOUT_S);
+        }
+        restoreResults = results;
+        setLinkState(LINK_RESTORING, now);
+    }
+
+    /**
+     * Records how long the link took to come back, once the first packet arrives after a loss.
+     */
+    private void linkRecovered(double now){
+        recovering = false;
+        double recoveryDuration = now - linkLostTime;
+        lastOutageDuration = now - outageStartTime;
+        lastRecoveryDuration = recoveryDuration;
+        maxRecoveryDuration = Math.max(maxRecoveryDuration, recoveryDuration);
+        linkRecoveryCount++;
+        telemetry.log(linkRecoveredChannel, Math.round(recoveryDuration * 1000.0));
+        telemetry.logMessage(cameraName + " link back after " + String.format("%.3f", recoveryDuration) + "s" +
+                             " (" + String.format("%.3f", lastOutageDuration) + "s without packets)");
+    }
+
+    /**
+     * Send the ping command to the JeVois to verify it is connected
+     * @return 0 on success, -1 on unexpected response, -2 on timeout
+     */
+    private int sendPing() {
+        int retval = -1;
+        if (visionPort != null){
+            retval = sendCmdAndCheck("ping");
+        }
+        return retval;
+    }
+
+    private void startDataOnlyStream(){
+        //Send serial commands to start the streaming of target info
+        //Loading the mapping restarts the module, so the packet format has to be picked again
+        String[] cmds = {"setmapping " + Integer.toString(NO_STREAM_MAPPING), 
+                         USE_BINARY_PROTOCOL ? "binmode on" : "binmode off", 
+                         "multitgt " + Integer.toString(maxTargetsRequested),
+                         "streamon"};
+        if(maxTargetsRequested == 0){
+            // Target lists are off by default, and older vision code doesn't know the command
+            cmds = new String[]{cmds[0], cmds[1], cmds[3]};
+        }
+        sendCmdBatch(cmds, CMD_TIMEOUT_S);
+        dataStreamRunning = true;
+    }
+
+    private void stopDataOnlyStream(){
+        //Send serial commands to stop the streaming of target info
+        sendCmdAndCheck("streamoff");
+        dataStreamRunning = false;
+    }
+    
+
+    /**
+     * Open an Mjpeg streamer from the JeVois camera
+     */
+    private void startCameraStream(){
+        try{
+            System.out.print("Starting JeVois Cam Stream...");
+            //Opening the stream loads its mapping, restarting the module and its frame counter
+            streamRestarted = true;
+            visionCam = new UsbCamera("VisionProcCam", 0);
+            visionCam.setVideoMode(PixelFormat.kBGR, STREAM_WIDTH_PX, STREAM_HEIGHT_PX, STREAM_RATE_FPS);
+            camServer = new MjpegServer("VisionCamServer", MJPG_STREAM_PORT);
+            camServer.setSource(visionCam);
+            camStreamRunning = true;
+            dataStreamRunning = true;
+            System.out.println("SUCCESS!!");
+        } catch (Exception e) {
+            DriverStation.reportError("Cannot start camera stream from JeVois", false);
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Cease the operation of the camera stream. Unknown if needed.
+     */
+    private void stopCameraStream(){
+        if(camStreamRunning){
+            camServer.free();
+            visionCam.free();
+            camStreamRunning = false;
+            dataStreamRunning = false;
+        }
+    }
+    
+    /**
+     * Sends a command over serial to JeVois and returns immediately.
+     * @param cmd String of the command to send (ex: "ping")
+     * @param logSent false to leave it out of the command log, for commands sent routinely in the background
+     * @return number of bytes written
+     */
+    private int sendCmd(String cmd, boolean logSent){
+        int bytes;
+        byte[] cmdBytes = (cmd + "\n").getBytes(StandardCharsets.US_ASCII);
+        bytes = visionPort.write(cmdBytes, 0, cmdBytes.length);
+        if(bytes == cmdBytes.length){
+            if(logSent){
+                telemetry.log(cmdSentChannel, cmd);
+            }
+        } else {
+            telemetry.log(cmdShortWriteChannel, cmd, bytes);
+        }
         return bytes;
     };
     
+    /**
+     * Sends a command over serial to the JeVois and returns right away, without waiting for the response.
+     * The background listener matches the JeVois's OK or ERR response to the command and completes
+     * the returned future, so packets keep flowing the whole time.
+     * Automatically ends the line termination character.
+     * Note any callbacks chained on the future run in the listener thread, so they must be quick
+     * and must not call sendCmdAndCheck().
+     * @param cmd String of the command to send (ex: "ping")
+     * @param timeout_s how long to wait for a response
+     * @return future completing with 0 if OK detected, -1 if ERR detected, -2 if timeout waiting for response
+     */
+    public CompletableFuture<Integer> sendCmdAsync(String cmd, double timeout_s){
+        return sendCmdAsync(cmd, timeout_s, true);
+    }
+    
+    private CompletableFuture<Integer> sendCmdAsync(String cmd, double timeout_s, boolean logSent){
+        PendingCommand pending = new PendingCommand(cmd, Timer.getFPGATimestamp() + timeout_s, logSent);
+        
+        Thread listener = listenerThread;
+        if(visionPort == null || listener == null || !listener.isAlive()){
+            pending.result.complete(-2);
+            return pending.result;
+        }
+        
+        if(Thread.currentThread() == listener){
+            // Never wait on another thread's write. Send it on a later pass instead, after any sent that way already.
+            if(!deferredCmds.isEmpty() || !cmdWriteLock.tryLock()){
+                deferredCmds.add(pending);
+                return pending.result;
+            }
+        } else {
+            cmdWriteLock.lock();
+        }
+        try {
+            writeCmd(pending);
+        } finally {
+            cmdWriteLock.unlock();
+        }
+        if(manager != null){
+            // The shared thread may be asleep until the next packet is due. Have it watch for the answer.
+            manager.wakeUp();
+        }
+        return pending.result;
+    }
+    
+    /**
+     * Queues a command for its answer, then writes it out. Queued first, since the answer can come back before
+     * the write returns. Only call with cmdWriteLock held.
+     */
+    private void writeCmd(PendingCommand pending){
+        synchronized(pendingCmds){
+            pendingCmds.add(pending);
+        }
+        if(sendCmd(pending.cmd, pending.logSent) <= 0){
+            // Never went out, so no answer is coming
+            synchronized(pendingCmds){
+                pendingCmds.remove(pending);
+            }
+            pending.result.complete(-2);
+        }
+    }
+
+    /**
+     * Writes out commands the listener couldn't send earlier because another thread was writing, if it's done.
+     * Ones which waited past their timeout are failed without being sent. Run by the listener at the start of each pass.
+     */
+    private void sendDeferredCmds(){
+        if(deferredCmds.isEmpty()){
+            return;
+        }
+        if(!cmdWriteLock.tryLock()){
+            double now = Timer.getFPGATimestamp();
+            while(!deferredCmds.isEmpty() && deferredCmds.peek().deadline <= now){
+                deferredCmds.poll().result.complete(-2);
+            }
+            return;
+        }
+        try {
+            while(!deferredCmds.isEmpty()){
+                writeCmd(deferredCmds.poll());
+            }
+        } finally {
+            cmdWriteLock.unlock();
+        }
+    }
+    
     /**
      * Sends a command over serial to the JeVois, waits for a response, and checks that response
      * Automatically ends the line termination character.
+     * Blocks the caller for up to a second, but unlike before does not stop packets from being received.
+     * Still returns, with a timeout, if the listener has stopped.
      * @param cmd String of the command to send (ex: "ping")
      * @return 0 if OK detected, -1 if ERR detected, -2 if timeout waiting for response
      */
     public int sendCmdAndCheck(String cmd){
         int retval = 0;
-        sendCmd(cmd);
-        retval = blockAndCheckForOK(1.0);
-        if(retval == -1){
-            System.out.println(cmd + " Produced an error");
-        } else if (retval == -2) {
-            System.out.println(cmd + " timed out");
+        if(Thread.currentThread() == listenerThread){
+            // The listener is the one who would see the response, so it can't wait for it.
+            DriverStation.reportError("sendCmdAndCheck(" + cmd + ") called from the JeVois listener thread. Use sendCmdAsync instead.", false);
+            return -2;
         }
+        retval = waitForResult(sendCmdAsync(cmd, CMD_TIMEOUT_S), CMD_TIMEOUT_S + CMD_WAIT_MARGIN_S);
+        printCmdResult(cmd, retval);
         return retval;
     };
-
-    //Persistent but "local" variables for getBytesPeriodic()
-    private String getBytesWork = "";
-    private int loopCount = 0;
+    
     /**
-     * Read bytes from the serial port in a non-blocking fashion
-     * Will return the whole thing once the first "OK" or "ERR" is seen in the stream.
-     * Returns null if no string read back yet.
+     * Sends a batch of commands to the JeVois back-to-back, then waits for all their responses.
+     * Much faster than calling sendCmdAndCheck() for each, since the commands don't each wait for
+     * the previous one to be answered. The JeVois still runs them in order.
+     * @param cmds Commands to send, in order (ex: {"streamoff", "streamon"})
+     * @param timeout_s how long to wait for the entire batch to be answered
+     * @return Result of each command - 0 if OK detected, -1 if ERR detected, -2 if timeout waiting for response
      */
-    private String getCmdResponseNonBlock() {
-        String retval =  null;
-        if (visionPort != null){
-            if (visionPort.getBytesReceived() > 0) {
-                String rxString = visionPort.readString();
-                System.out.println("Waited: " + loopCount + " loops, Rcv'd: " + rxString);
-                getBytesWork += rxString;
-                if(getBytesWork.contains("OK") || getBytesWork.contains("ERR")){
-                    retval = getBytesWork;
-                    getBytesWork = "";
-                    System.out.println(retval);
-                }
-                loopCount = 0;
-            } else {
-                ++loopCount;
-            }
+    public int[] sendCmdBatch(String[] cmds, double timeout_s){
+        int[] retvals = new int[cmds.length];
+        if(Thread.currentThread() == listenerThread){
+            DriverStation.reportError("sendCmdBatch() called from the JeVois listener thread. Use sendCmdAsync instead.", false);
+            Arrays.fill(retvals, -2);
+            return retvals;
         }
-        return retval;
+        
+        // Everything shares one deadline, so the batch as a whole is bounded by the timeout
+        double deadline = Timer.getFPGATimestamp() + timeout_s;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<Integer>[] results = new CompletableFuture[cmds.length];
+        for(int i = 0; i < cmds.length; i++){
+            results[i] = sendCmdAsync(cmds[i], deadline - Timer.getFPGATimestamp());
+        }
+        
+        for(int i = 0; i < cmds.length; i++){
+            retvals[i] = waitForResult(results[i], deadline + CMD_WAIT_MARGIN_S - Timer.getFPGATimestamp());
+            printCmdResult(cmds[i], retvals[i]);
+        }
+        return retvals;
     }
     
+    /**
+     * Waits for a command's result. The listener normally completes it by the command's own timeout, but if the
+     * listener has died or been stopped nobody will, so the wait is bounded too.
+     * @param result future from sendCmdAsync()
+     * @param timeout_s longest to wait
+     * @return the command's result, or -2 if it didn't complete in time
+     */
+    private static int waitForResult(CompletableFuture<Integer> result, double timeout_s){
+        try {
+            return result.get(Math.max(Math.round(timeout_s * 1000.0), 0), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return -2;
+        } catch (ExecutionException e) {
+            return -2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -2;
+        }
+    }
+    
+    /**
+     * Print a message if a command didn't succeed
+     */
+    private void printCmdResult(String cmd, int retval){
+        if(retval == -1){
+            telemetry.log(cmdErrorChannel, cmd);
+        } else if (retval == -2) {
+            telemetry.log(cmdTimeoutChannel, cmd);
+        }
+    }
+
+    // Frames and parses packets straight out of the raw serial bytes
+    private JeVoisPacketFramer packetFramer = new JeVoisPacketFramer();
+    // Scratch space the listener reads raw bytes into
+    private final byte[] rxBuffer = new byte[256];
     /** 
-     * Blocks thread execution till we get a response from the serial line
-     * or timeout. 
+     * Blocks thread execution till we get a valid packet from the serial line
+     * or timeout. Packets left over from a previous read are handed back first, in the order they arrived.
+     * Command responses found along the way are matched up with their commands, echo round trips are timed,
+     * and command timeouts are checked.
      * Return values:
-     *  0 = OK in response
-     * -1 = ERR in response
-     * -2 = No token found before timeout_s
+     *  0 = Got a packet. Its fields are ready to read from packetFramer. 
+     * -1 = Got a packet, but it was malformed and has been discarded
+     * -2 = No full packet found before timeout_s, or the link broke
      */
-    private int blockAndCheckForOK(double timeout_s){
+    private int blockAndGetPacket(double timeout_s){
         int retval = -2;
         double startTime = Timer.getFPGATimestamp();
-        String testStr = "";
+        double elapsedTime = 0;
+        
         if (visionPort != null){
-            while(Timer.getFPGATimestamp() - startTime < timeout_s){
-                if (visionPort.getBytesReceived() > 0) {
-                    testStr += visionPort.readString();
-                    if(testStr.contains("OK")){
-                        retval = 0;
-                        break;
-                    }else if(testStr.contains("ERR")){
-                    	DriverStation.reportError("JeVois reported error:\n" + testStr, false);
-                        retval = -1;
-                        break;
-                    }
-
-                } else {
-                    sleep(10);
+            while(true){
+                // Check if we've already got a full packet buffered up
+                retval = packetFramer.parseNextPacket();
+                if(retval == JeVoisPacketFramer.RESULT_RESPONSE_OK || retval == JeVoisPacketFramer.RESULT_RESPONSE_ERR){
+                    handleCmdResponse(retval == JeVoisPacketFramer.RESULT_RESPONSE_OK);
+                    continue;
+                } else if(retval == JeVoisPacketFramer.RESULT_RESPONSE_ECHO){
+                    handleEchoResponse();
+                    continue;
                 }
+                checkCmdTimeouts();
+                if(retval != JeVoisPacketFramer.RESULT_NONE || elapsedTime >= timeout_s || linkBroken){
+                    break;
+                }
+                
+                // Keep trying to get bytes from the serial port until the timeout expires.
+                readSerialChunk(timeout_s - elapsedTime);
+                elapsedTime = Timer.getFPGATimestamp() - startTime;
             }
         }
         return retval;
     }
-    
-    
-    // buffer to contain data from the port while we gather full packets 
-    private StringBuffer packetBuffer = new StringBuffer(100);
-    /** 
-     * Blocks thread execution till we get a valid packet from the serial line
-     * or timeout. 
-     * Return values:
-     *  String = the packet 
-     *  null = No full packet found before timeout_s
+
+    /**
+     * Waits for the next bytes from the serial port, using the current read mode, and feeds them to the packet framer.
+     * In blocking mode, reads everything already buffered, or else blocks in the transport
+     * until at least one byte arrives (or until the smaller of timeout_s and BLOCKING_READ_SLICE_S passes).
+     * In polling mode, reads everything already buffered, or sleeps 5ms if nothing is there yet.
+     * @param timeout_s maximum time we're allowed to wait
+     * @return the number of bytes received
      */
-    private String blockAndGetPacket(double timeout_s){
-        String retval = null;
-        double startTime = Timer.getFPGATimestamp();
-        int endIdx = -1;
-        int startIdx = -1;
+    private int readSerialChunk(double timeout_s){
+        int bytesRead;
         
-        if (visionPort != null){
-            while(Timer.getFPGATimestamp() - startTime < timeout_s){
-                // Keep trying to get bytes from the serial port until the timeout expires.
-            	
-                
-                if (visionPort.getBytesReceived() > 0) {
-                    // If there are any bytes available, read them in and 
-                    //  append them to the buffer.
-                	packetBuffer = packetBuffer.append(visionPort.readString());
-
-                    // Attempt to detect if the buffer currently contains a complete packet
-                    if(packetBuffer.indexOf(PACKET_START_CHAR) != -1){
-                    	endIdx = packetBuffer.lastIndexOf(PACKET_END_CHAR);
-                        if(endIdx != -1){
-                            // Buffer also contains at least one start & end character.
-                            // But we don't know if they're in the right order yet.
-                            // Start by getting the most-recent packet end character's index
-                             
-                            
-                            // Look for the index of the start character for the packet
-                            //  described by endIdx. Note this line of code assumes the 
-                            //  start character for the packet must come _before_ the
-                            //  end character.
-                            startIdx = packetBuffer.lastIndexOf(PACKET_START_CHAR, endIdx);
-                            
-                            if(startIdx == -1){
-                                // If there was no start character before the end character,
-                                //  we can assume that we have something a bit wacky in our
-                                //  buffer. For example: ",abc}garbage{1,2".
-                                // Since we've started to receive a good packet, discard 
-                                //  everything prior to the start character.
-                                startIdx = packetBuffer.lastIndexOf(PACKET_START_CHAR);
-                                packetBuffer.delete(0, startIdx);
-                            } else {
-                                // Buffer contains a full packet. Extract it and clean up buffer
-                                retval = packetBuffer.substring(startIdx+1, endIdx-1);
-                                packetBuffer.delete(0, endIdx+1);
-                                break;
-                            } 
-                        } else {
-                          // In this case, we have a start character, but no end to the buffer yet. 
-                          //  Do nothing, just wait for more characters to come in.
-                          sleep(5);
+        if(useBlockingRead){
+            // Returns right away if something is buffered, otherwise waits for the first byte of the next burst.
+            bytesRead = visionPort.read(rxBuffer, 0, rxBuffer.length, Math.max(Math.min(timeout_s, BLOCKING_READ_SLICE_S), 0.001));
+            if(bytesRead < 0){
+                // Broken link won't block at all, don't spin on it.
+                sleep(5);
+            }
+        } else {
+            bytesRead = visionPort.read(rxBuffer, 0, rxBuffer.length, 0);
+            if(bytesRead <= 0){
+                sleep(5);
+            }
+        }
+        
+        if(bytesRead < 0){
+            // Let the link supervisor know
+            linkBroken = true;
+        }
+        
+        if(bytesRead > 0){
+            packetFramer.feed(rxBuffer, 0, bytesRead);
+            return bytesRead;
+        }
+        return 0;
+    }
+
+    /**
+     * Completes the oldest outstanding command with the response the JeVois just sent. The JeVois answers in
+     * order, so that's always who it's for. If the command already timed out, this is its late answer, and
+     * just takes it out of line.
+     * @param ok true for an OK response, false for ERR
+     */
+    private void handleCmdResponse(boolean ok){
+        PendingCommand pending;
+        synchronized(pendingCmds){
+            pending = pendingCmds.poll();
+        }
+        
+        if(pending == null){
+            // Nobody is waiting. Probably the answer to a command given up on long ago.
+            return;
+        }
+        
+        if(!ok){
+            DriverStation.reportError("JeVois reported error for " + pending.cmd + ":\n" + packetFramer.getLastLine(), false);
+        } else if(pending.cmd.startsWith("setmapping")){
+            // The module restarted, and every packet from here on is from the new one
+            resetFrameTracking();
+        }
+        pending.result.complete(ok ? 0 : -1);
+    }
+
+    /**
+     * Gives up on every outstanding command. Used when the link is lost, or the listener stops, since the answers
+     * are never coming.
+     */
+    void failPendingCmds(){
+        while(!deferredCmds.isEmpty()){
+            deferredCmds.poll().result.complete(-2);
+        }
+        while(true){
+            PendingCommand pending;
+            synchronized(pendingCmds){
+                pending = pendingCmds.poll();
+            }
+            if(pending == null){
+                return;
+            }
+            pending.result.complete(-2);
+        }
+    }
+
+    /**
+     * Fails outstanding commands which have waited too long for a response. They stay in line, so their answers
+     * still line up if they turn up late. Only once the oldest is so late its answer must have been lost is it
+     * taken out of line.
+     */
+    private void checkCmdTimeouts(){
+        double now = Timer.getFPGATimestamp();
+        while(true){
+            PendingCommand expired = null;
+            synchronized(pendingCmds){
+                PendingCommand oldest = pendingCmds.peek();
+                if(oldest != null && now > oldest.deadline + CMD_LATE_ANSWER_LIMIT_S){
+                    pendingCmds.poll();
+                    expired = oldest;
+                } else {
+                    for(PendingCommand pending : pendingCmds){
+                        if(pending.deadline <= now && !pending.result.isDone()){
+                            expired = pending;
+                            break;
                         }
-                    } else {
-                        // Buffer contains no start characters. None of the current buffer contents can 
-                        //  be meaningful. Discard the whole thing.
-                        packetBuffer.delete(0, packetBuffer.length());
-                        sleep(5);
                     }
-                } else {
-                    sleep(5);
                 }
             }
+            if(expired == null){
+                return;
+            }
+            // Completed outside the lock, since it may run callbacks
+            expired.result.complete(-2);
         }
-        return retval;
+    }
+
+    // Scratch space for bytes read outside of the packet listener
+    private final byte[] cmdRxBuffer = new byte[256];
+    /**
+     * Read whatever bytes are currently available from the JeVois, without blocking.
+     * @return the received characters, or null if nothing has been received
+     */
+    private String readAvailableString(){
+        int bytesRead = visionPort.read(cmdRxBuffer, 0, cmdRxBuffer.length, 0);
+        if(bytesRead > 0){
+            return new String(cmdRxBuffer, 0, bytesRead, StandardCharsets.US_ASCII);
+        }
+        return null;
     }
     
     /**
      * Private wrapper around the Thread.sleep method, to catch that interrupted error.
      * @param time_ms
      */
-    private void sleep(int time_ms){
+    private static void sleep(int time_ms){
         try {
             Thread.sleep(time_ms);
         } catch (InterruptedException e) {
@@ -532,8 +1779,9 @@ public class JeVoisInterface {
     public void blockAndPrintAllSerial(){
         if (visionPort != null){
             while(!Thread.interrupted()){
-                if (visionPort.getBytesReceived() > 0) {
-                    System.out.print(visionPort.readString());
+                String rxString = readAvailableString();
+                if (rxString != null) {
+                    System.out.print(rxString);
                 } else {
                     System.out.println("Nothing Rx'ed");
                     sleep(100);
@@ -543,69 +1791,146 @@ public class JeVoisInterface {
 
     }
     
+    // Separate parser for packets handed in as strings, so it can't disturb the serial stream framer
+    private JeVoisPacketFramer stringPacketParser = new JeVoisPacketFramer();
     /**
      * Parse individual numbers from a packet
-     * @param pkt
+     * @param pkt packet contents, without the start and end characters
+     * @return 0 on success, -1 if malformed, -2 if discarded as a duplicate or stale frame
      */
     public int parsePacket(String pkt, double rx_Time){
-        //Parsing constants. These must be aligned with JeVois code.
-		final int NUM_EXPECTED_TOKENS = 8;
-		final int FRAME_CTR_TOKEN_IDX = 0; //currently unused
-        final int TGT_VISIBLE_TOKEN_IDX = 1;
-        final int TGT_ANGLE_TOKEN_IDX = 2;
-        final int TGT_RANGE_TOKEN_IDX = 3;
-        final int JV_FRMRT_TOKEN_IDX = 4;
-        final int JV_CPULOAD_TOKEN_IDX = 5;
-        final int JV_CPUTEMP_TOKEN_IDX = 6;
-        final int JV_PIPLINE_DELAY_TOKEN_IDX = 7;
-
-        //Split string into many substrings, presuming those strings are separated by commas
-        String[] tokens = pkt.split(",");
-
-        //Check there were enough substrings found
-        if(tokens.length < NUM_EXPECTED_TOKENS){
-            DriverStation.reportError("Got malformed vision packet. Expected 8 tokens, but only found " + Integer.toString(tokens.length) + ". Packet Contents: " + pkt, false);
+        byte[] pktBytes = pkt.getBytes(StandardCharsets.US_ASCII);
+        
+        if(stringPacketParser.parseFields(pktBytes, 0, pktBytes.length) != 0){
+            DriverStation.reportError("Got malformed vision packet. Expected 8 numeric tokens. Packet Contents: " + pkt, false);
+            return -1;
+        }
+        
+        return updateTargetInfo(stringPacketParser, rx_Time);
+    }
+    
+    /**
+     * Copy the fields of a freshly parsed packet into the most-recent target information
+     * @param parser framer holding the parsed packet fields
+     * @param rx_Time FPGA timestamp the packet was received at
+     * Packets which repeat or are older than the last frame used are discarded, so they can't overwrite newer data.
+     * Synchronized only so parsePacket() callers can't collide with the listener thread. Readers never lock.
+     * @return 0 on success, -1 if the field contents don't make sense, -2 if discarded as a duplicate or stale frame
+     */
+    private synchronized int updateTargetInfo(JeVoisPacketFramer parser, double rx_Time){
+        
+        boolean visible;
+        
+        //Boolean values should only have T or F characters
+        double tgtVisibleFlag = parser.getField(TGT_VISIBLE_TOKEN_IDX);
+        if(tgtVisibleFlag == 0.0){
+            visible = false;
+        } else if (tgtVisibleFlag == 1.0) {
+            visible = true;
+        } else {
+            DriverStation.reportError("Got malformed vision packet. Expected only T or F in " + Integer.toString(TGT_VISIBLE_TOKEN_IDX) + ", but got " + Double.toString(tgtVisibleFlag), false);
             return -1;
         }
 
-        //Convert each string into the proper internal value
-        try {
-            
-        	//Boolean values should only have T or F characters
-            if(tokens[TGT_VISIBLE_TOKEN_IDX].equals("F")){
-                tgtVisible = false;
-            } else if (tokens[TGT_VISIBLE_TOKEN_IDX].equals("T")) {
-                tgtVisible = true;
-            } else {
-                DriverStation.reportError("Got malformed vision packet. Expected only T or F in " + Integer.toString(TGT_VISIBLE_TOKEN_IDX) + ", but got " + tokens[TGT_VISIBLE_TOKEN_IDX], false);
+        //Optional list of every target in the frame. Make sure it's all there before using any of the packet.
+        int numTargets = 0;
+        if(parser.getNumFields() > NUM_TARGETS_TOKEN_IDX){
+            double numTargetsField = parser.getField(NUM_TARGETS_TOKEN_IDX);
+            numTargets = (int) Math.min(numTargetsField, TargetList.MAX_TARGETS);
+            if(numTargetsField < 0 || numTargetsField != Math.rint(numTargetsField) ||
+               parser.getNumFields() < FIRST_TARGET_TOKEN_IDX + numTargets * JeVoisPacketFramer.FIELDS_PER_TARGET){
+                DriverStation.reportError("Got malformed vision packet. Target list doesn't match its count of " + Double.toString(numTargetsField), false);
                 return -1;
             }
+        }
 
-            //Use Java built-in double to string conversion on most of the rest
-            tgtAngleDeg = Double.parseDouble(tokens[TGT_ANGLE_TOKEN_IDX]);
-            tgtRange    = Double.parseDouble(tokens[TGT_RANGE_TOKEN_IDX]);
-            tgtTime  = rx_Time - Double.parseDouble(tokens[JV_PIPLINE_DELAY_TOKEN_IDX])/1000000.0;
-            jeVoisCpuTempC   = Double.parseDouble(tokens[JV_CPUTEMP_TOKEN_IDX]);
-            jeVoisCpuLoadPct = Double.parseDouble(tokens[JV_CPULOAD_TOKEN_IDX]);
+        //Make sure this isn't a repeated or late frame
+        if(frameTracker.check((long) parser.getField(FRAME_CTR_TOKEN_IDX)) != FrameSequenceTracker.FRAME_NEW){
+            return -2;
+        }
 
-        } catch (Exception e) {
-            DriverStation.reportError("Unhandled exception while parsing Vision packet: " + e.getMessage() + "\n" + e.getStackTrace(), false);
-            return -1;
+        //Publish the whole set at once. Readers retry if they catch us part way through.
+        publishSeq++;
+        frameCounter = (long) parser.getField(FRAME_CTR_TOKEN_IDX);
+        tgtVisible  = visible;
+        tgtAngleDeg = parser.getField(TGT_ANGLE_TOKEN_IDX);
+        tgtRange    = parser.getField(TGT_RANGE_TOKEN_IDX);
+        tgtTime  = linkDelay.getSendTime(rx_Time, parser.getLastPacketLength()) - parser.getField(JV_PIPLINE_DELAY_TOKEN_IDX)/1000000.0;
+        tgtRxTime = rx_Time;
+        jeVoisCpuTempC   = parser.getField(JV_CPUTEMP_TOKEN_IDX);
+        jeVoisCpuLoadPct = parser.getField(JV_CPULOAD_TOKEN_IDX);
+        jeVoisFramerateFPS = parser.getField(JV_FRMRT_TOKEN_IDX);
+        for(int i = 0; i < numTargets * JeVoisPacketFramer.FIELDS_PER_TARGET; i++){
+            publishedTargets.lazySet(i, Double.doubleToRawLongBits(parser.getField(FIRST_TARGET_TOKEN_IDX + i)));
+        }
+        publishedTargetCount = numTargets;
+        publishSeq++;
+        if(latencyTracer.isEnabled()){
+            publishTime_ns = System.nanoTime();
         }
 
-        return 0;
+        tgtHistory.add(tgtTime, tgtVisible, tgtAngleDeg, tgtRange);
+        if(predictionEnabled){
+            tgtPredictor.update(tgtTime, tgtVisible, tgtAngleDeg, tgtRange);
+        }
 
-        
+        BinaryMatchLog log = matchLog;
+        if(log != null){
+            int record = log.startRecord();
+            log.setField(record, 0, frameCounter);
+            log.setField(record, 1, tgtVisible ? 1.0 : 0.0);
+            log.setField(record, 2, tgtAngleDeg);
+            log.setField(record, 3, tgtRange);
+            log.setField(record, 4, tgtTime);
+            log.setField(record, 5, jeVoisCpuTempC);
+            log.setField(record, 6, jeVoisCpuLoadPct);
+            log.setField(record, 7, jeVoisFramerateFPS);
+            log.finishRecord(record, MATCH_LOG_TYPE_VISION, tgtRxTime);
+        }
+
+        return 0;
     }
     
     
+    /**
+     * Print how long each step of starting up took.
+     */
+    private void printStartupTimes(){
+        telemetry.logMessage(cameraName + " startup took " + String.format("%.3f", startupTotalDuration) + "s" +
+                           " (port open " + String.format("%.3f", startupPortOpenDuration) + "s" + 
+                           ", ping " + String.format("%.3f", startupPingDuration) + "s" +
+                           ", configure " + String.format("%.3f", startupConfigDuration) + "s)");
+    }
+    
+    /**
+     * A command which has been sent to the JeVois, waiting for its OK or ERR.
+     */
+    private static class PendingCommand {
+        final String cmd;
+        final double deadline;
+        final boolean logSent;
+        final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+        PendingCommand(String cmd, double deadline, boolean logSent){
+            this.cmd = cmd;
+            this.deadline = deadline;
+            this.logSent = logSent;
+        }
+    }
+    
     /**
      * This thread runs a periodic task in the background to listen for vision camera packets.
      */
     Thread packetListenerThread = new Thread(new Runnable(){
         public void run(){
-        	while(!Thread.interrupted()){
-        		backgroundUpdate();   
+        	CasseroleRIOLoadMonitor.registerCurrentThread("JeVoisListener");
+        	try {
+        		while(!Thread.interrupted()){
+        			backgroundUpdate();   
+        		}
+        	} finally {
+        		// Nobody is left to answer waiting commands
+        		failPendingCmds();
         	}
         }
     });
@@ -0,0 +1,321 @@
+package org.usfirst.frc.team1736.robot;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import org.usfirst.frc.team1736.lib.LoadMon.CasseroleRIOLoadMonitor;
+import org.usfirst.frc.team1736.lib.Stats.WindowedHistogram;
+
+import edu.wpi.first.wpilibj.SerialPort;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Runs several JeVois cameras (ex: front, rear and turret) off one background thread, instead of each
+ * JeVoisInterface starting a listener thread of its own.
+ * <br>
+ * <br>
+ * The thread takes turns polling the cameras. For each one it checks on the link, reads whatever bytes are
+ * already waiting without blocking, and handles every complete packet. Packets land in that camera's own
+ * JeVoisInterface, exactly as if it had its own thread.
+ * <br>
+ * <br>
+ * There's no way to wait on several serial ports at once, so when a pass finds nothing new the thread has to
+ * sleep and look again. Looking every millisecond would cost far more than a blocked thread per camera, so
+ * instead it uses the fact that the JeVois sends one packet per frame, at a steady rate. It learns each camera's
+ * packet period and sleeps until just before the next packet is due from any of them. It only polls every
+ * poll period while a packet is partly in, a command is waiting for its answer, or an expected packet is a
+ * little late. A camera whose packets stop is checked every MAX_IDLE_WAIT_MS until they start again.
+ * <br>
+ * <br>
+ * The price is latency, and at normal frame rates CPU too. A packet can sit for up to one poll period (about
+ * half of one on average) before it is read, where a dedicated listener blocking in the serial driver picks it
+ * up right away. Waking up and polling costs more than a blocked thread waiting in the driver: in the manager
+ * benchmark at 60Hz, the shared thread used about 10ms of CPU per second for one camera and 13ms for three,
+ * against 5ms and 9.5ms for dedicated listeners. It only comes out ahead at packet rates in the hundreds of Hz.
+ * What it saves is threads, one instead of one per camera. For a single camera, or to save CPU, skip the
+ * manager and use the JeVoisInterface constructors.
+ * <br>
+ * <br>
+ * Each camera is a normal JeVoisInterface, so its targets, packet rate and latency stats are read the same way.
+ * Only one camera at a time can use the USB camera stream, since they would all share one device and MJPEG port.
+ */
+public class JeVoisManager {
+
+    /** Default time between passes while bytes are expected any moment */
+    public static final int DEFAULT_POLL_PERIOD_MS = 1;
+    /** Longest the thread sleeps between passes, which bounds how quickly a quiet camera is noticed */
+    public static final int MAX_IDLE_WAIT_MS = 10;
+
+    // Bytes this long after the previous ones are the start of a new packet
+    private static final long PACKET_GAP_NS = 2000000;
+    // Keep polling for an expected packet until it's this late, then wait for the one after it
+    private static final long LATE_PACKET_POLL_NS = 3000000;
+    // Stop predicting packets from a camera which hasn't sent for this many periods
+    private static final int MAX_EXPECTED_PERIODS = 8;
+    // Gaps this much longer than the period are skipped frames, not a slower rate, unless they keep happening
+    private static final double SKIPPED_FRAME_GAP_RATIO = 1.5;
+    private static final int RATE_CHANGE_GAPS = 4;
+    // Poll a camera whose rate isn't known yet, but only while it's been sending
+    private static final long UNKNOWN_RATE_POLL_NS = 500000000;
+
+    // Sliding-window statistics of how long each pass over the cameras takes, in microseconds
+    private static final double PASS_STATS_WINDOW_S = 5.0;
+    private static final int PASS_STATS_WINDOW_SLICES = 5;
+
+    // Replaced as a whole when a camera is added, so the thread can walk it without locking
+    private volatile CameraSlot[] cameras = new CameraSlot[0];
+
+    private volatile int pollPeriod_ms = DEFAULT_POLL_PERIOD_MS;
+
+    private final WindowedHistogram passTimeStats = new WindowedHistogram(PASS_STATS_WINDOW_S, PASS_STATS_WINDOW_SLICES);
+    private volatile long passCount = 0;
+    private volatile long idlePassCount = 0;
+
+    /**
+     * Creates a manager with no cameras. The shared thread starts when the first camera is added.
+     */
+    public JeVoisManager() {
+        listenerThread.setName("JeVoisManager");
+        listenerThread.setDaemon(true);
+    }
+
+    /**
+     * Opens a USB serial port to a JeVois and starts it up, the same way the JeVoisInterface constructors do,
+     * but listened to by this manager's thread.
+     * @param name name of the camera in messages (ex: "FrontCam")
+     * @param portId which USB serial port. Cameras show up as kUSB, kUSB1 and kUSB2 in the order they enumerated.
+     * @param useUSBStream true to also stream video from this camera. Only one camera can.
+     * @return the camera. If its port couldn't be opened, it never reports vision online.
+     */
+    public JeVoisInterface addCamera(String name, SerialPort.Port portId, boolean useUSBStream) {
+        // Arguments are evaluated in order, so the start time is grabbed before the port is opened
+        return new JeVoisInterface(name, useUSBStream, Timer.getFPGATimestamp(), JeVoisInterface.openSerialPort(portId), this);
+    }
+
+    /**
+     * Starts up a JeVois over the given transport, listened to by this manager's thread.
+     * @param name name of the camera in messages (ex: "FrontCam")
+     * @param transport byte stream to the camera
+     * @param useUSBStream true to also stream video from this camera. Only one camera can.
+     * @return the camera
+     */
+    public JeVoisInterface addCamera(String name, JeVoisTransport transport, boolean useUSBStream) {
+        return new JeVoisInterface(name, useUSBStream, Timer.getFPGATimestamp(), transport, this);
+    }
+
+    /**
+     * Adds a camera to the set being polled, starting the thread if this is the first one. Called from the
+     * JeVoisInterface constructor, before it sends its first command.
+     * @return the thread which will be listening to the camera
+     */
+    synchronized Thread register(JeVoisInterface camera) {
+        CameraSlot[] newCameras = Arrays.copyOf(cameras, cameras.length + 1);
+        newCameras[cameras.length] = new CameraSlot(camera);
+        cameras = newCameras;
+        if(!listenerThread.isAlive()){
+            listenerThread.start();
+        }
+        return listenerThread;
+    }
+
+    /**
+     * Returns the number of cameras added so far
+     */
+    public int getCameraCount() {
+        return cameras.length;
+    }
+
+    /**
+     * Returns a camera, in the order they were added
+     */
+    public JeVoisInterface getCamera(int idx) {
+        return cameras[idx].camera;
+    }
+
+    /**
+     * Returns the camera with the given name, or null if there isn't one
+     */
+    public JeVoisInterface getCamera(String name) {
+        for(CameraSlot slot : cameras){
+            if(slot.camera.getCameraName().equals(name)){
+                return slot.camera;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the packet period the thread has learned for a camera, in seconds, or 0 if it doesn't know yet.
+     */
+    public double getPacketPeriod_s(int idx) {
+        return cameras[idx].period_ns / 1.0e9;
+    }
+
+    /**
+     * Sets how long the thread waits between passes while bytes are expected any moment. Shorter means less
+     * latency, but more wakeups. Takes effect on the next pass.
+     */
+    public void setPollPeriod(int period_ms) {
+        pollPeriod_ms = Math.max(1, period_ms);
+    }
+
+    /**
+     * Returns statistics of how long each pass over all the cameras took, in microseconds, not counting the sleep.
+     * Samples are recorded against Timer.getFPGATimestamp(), so pass that to the getters.
+     */
+    public WindowedHistogram getPassTimeStats() {
+        return passTimeStats;
+    }
+
+    /**
+     * Returns the total number of passes made over the cameras
+     */
+    public long getPassCount() {
+        return passCount;
+    }
+
+    /**
+     * Returns the number of passes which found no new bytes on any camera, and were followed by a sleep.
+     * Compare to the number of packets received to see how many wakeups each one cost.
+     */
+    public long getIdlePassCount() {
+        return idlePassCount;
+    }
+
+    /**
+     * Stops the shared thread. None of the cameras receive anything afterward, and commands still waiting
+     * for an answer fail as timed out.
+     */
+    public void stop() {
+        listenerThread.interrupt();
+    }
+
+    /**
+     * Ends the current sleep early, so the next pass starts right away. Called when a command is sent, so its
+     * answer isn't left waiting until the next packet is due.
+     */
+    void wakeUp() {
+        LockSupport.unpark(listenerThread);
+    }
+
+    /**
+     * One pass over every camera. Sleeps afterward if none of them had anything new.
+     */
+    private void pollAll() {
+        CameraSlot[] slots = cameras;
+        long passStart_ns = System.nanoTime();
+        int totalBytes = 0;
+
+        for(CameraSlot slot : slots){
+            int bytesRead = slot.camera.pollOnce();
+            if(bytesRead > 0){
+                slot.bytesArrived(passStart_ns);
+                totalBytes += bytesRead;
+            }
+        }
+
+        long passEnd_ns = System.nanoTime();
+        passTimeStats.record((passEnd_ns - passStart_ns) / 1000, Timer.getFPGATimestamp());
+        passCount++;
+        if(totalBytes == 0){
+            idlePassCount++;
+            // Returns early on wakeUp() or interrupt
+            LockSupport.parkNanos(this, nextWakeTime(slots, passEnd_ns) - passEnd_ns);
+        }
+    }
+
+    /**
+     * Works out when the next pass should happen: soon if any camera is in the middle of something,
+     * otherwise just before the next packet is due from any of them.
+     * @return System.nanoTime() to wake up at
+     */
+    private long nextWakeTime(CameraSlot[] slots, long now_ns) {
+        long poll_ns = now_ns + pollPeriod_ms * 1000000L;
+        long wake_ns = now_ns + MAX_IDLE_WAIT_MS * 1000000L;
+
+        for(CameraSlot slot : slots){
+            if(slot.camera.isAwaitingBytes()){
+                return poll_ns;
+            }
+
+            long period_ns = slot.period_ns;
+            long sincePacket_ns = now_ns - slot.packetStart_ns;
+            if(period_ns == 0){
+                if(slot.packetStart_ns != 0 && sincePacket_ns < UNKNOWN_RATE_POLL_NS){
+                    wake_ns = Math.min(wake_ns, poll_ns);
+                }
+            } else if(sincePacket_ns < period_ns * MAX_EXPECTED_PERIODS){
+                long periodsSince = sincePacket_ns / period_ns;
+                if(periodsSince > 0 && sincePacket_ns - periodsSince * period_ns < LATE_PACKET_POLL_NS){
+                    // Expected packet is a little late. Keep looking for it.
+                    wake_ns = Math.min(wake_ns, poll_ns);
+                } else {
+                    // Wake half a poll period early, so on average we catch it as soon as it arrives
+                    long due_ns = slot.packetStart_ns + (periodsSince + 1) * period_ns - pollPeriod_ms * 500000L;
+                    wake_ns = Math.min(wake_ns, Math.max(due_ns, poll_ns));
+                }
+            }
+        }
+        return wake_ns;
+    }
+
+    /**
+     * A camera, and what the thread has learned about when its packets arrive. Only touched by the thread,
+     * except period_ns, which is read for getPacketPeriod_s().
+     */
+    private static class CameraSlot {
+        final JeVoisInterface camera;
+        // System.nanoTime() when the start of the latest packet was seen, and when any bytes were last seen
+        long packetStart_ns = 0;
+        long lastBytes_ns = 0;
+        // Estimated time between packets, or 0 if not known yet
+        volatile long period_ns = 0;
+        int longGaps = 0;
+
+        CameraSlot(JeVoisInterface camera) {
+            this.camera = camera;
+        }
+
+        /**
+         * Updates the period estimate when bytes come in. Only the first bytes of each packet count.
+         */
+        void bytesArrived(long now_ns) {
+            if(now_ns - lastBytes_ns > PACKET_GAP_NS){
+                if(packetStart_ns != 0){
+                    long gap_ns = now_ns - packetStart_ns;
+                    if(period_ns == 0){
+                        period_ns = gap_ns;
+                    } else if(gap_ns < period_ns * SKIPPED_FRAME_GAP_RATIO){
+                        period_ns += (gap_ns - period_ns) / 8;
+                        longGaps = 0;
+                    } else if(++longGaps >= RATE_CHANGE_GAPS){
+                        // Not skipped frames after all, the rate really did drop
+                        period_ns = gap_ns;
+                        longGaps = 0;
+                    }
+                }
+                packetStart_ns = now_ns;
+            }
+            lastBytes_ns = now_ns;
+        }
+    }
+
+    /**
+     * The one thread which listens to every camera
+     */
+    private final Thread listenerThread = new Thread(new Runnable(){
+        public void run(){
+            CasseroleRIOLoadMonitor.registerCurrentThread("JeVoisManager");
+            try {
+                while(!Thread.interrupted()){
+                    pollAll();
+                }
+            } finally {
+                // Nobody is left to answer waiting commands
+                for(CameraSlot slot : cameras){
+                    slot.camera.failPendingCmds();
+                }
+            }
+        }
+    });
+}
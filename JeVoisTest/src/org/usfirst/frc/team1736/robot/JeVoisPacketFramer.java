@@ -0,0 +1,801 @@
+package org.usfirst.frc.team1736.robot;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level framer and parser for the "{a,b,c,...}" target info packets sent by the JeVois.
+ * Also picks the "OK" and "ERR" command responses out of the same byte stream, so a single reader
+ * can handle both without either one eating the other. "ECHO id time_us" lines, the JeVois answer to an
+ * "echo" command, are picked out too, and their numbers parsed for the link delay estimate.
+ * <br>
+ * <br>
+ * The compact binary packets the JeVois sends after a "binmode on" command are recognized too, so text and
+ * binary packets can be mixed freely in one stream. A binary packet is:
+ * <ul>
+ * <li>BINARY_SYNC_CHAR (0x01)</li>
+ * <li>Two length bytes, low 7 bits first, giving the number of packed bytes which follow</li>
+ * <li>The packed bytes. The payload and its CRC are packed 7 bits per byte, so every byte on the wire is
+ * below 0x80. The JeVois sends serial output as Python strings, which would UTF-8 encode anything higher.</li>
+ * <li>A '\n', added by the JeVois serial output, which is skipped.</li>
+ * </ul>
+ * The payload is a type byte (BINARY_TYPE_TARGET), then little-endian fixed-width fields: frame counter (uint32),
+ * flags (uint8, bit 0 = target visible), angle (float32), range (float32), framerate x100 (uint16),
+ * CPU load x100 (uint16), CPU temperature x100 (uint16) and pipeline delay in us (uint32), then a CRC-16/CCITT
+ * (uint16) over everything before it. Packets which fail the CRC are counted as malformed and dropped, and
+ * scanning starts again just after their sync byte.
+ * <br>
+ * <br>
+ * After a "multitgt N" command, the JeVois also sends up to N of the targets it found in each frame, largest first.
+ * In text packets, the usual 8 fields are followed by the number of targets, then centroid x, centroid y, bounding box
+ * x, bounding box y, width, height and area for each target, all in pixels. Binary packets use payload type
+ * BINARY_TYPE_MULTI_TARGET, which has the same fields as BINARY_TYPE_TARGET, then the target count (uint8), then
+ * for each target the centroid, box corner and box size (six uint16s) and area (float32), then the CRC.
+ * Either way the targets come out of getField() in the text packet order.
+ * <br>
+ * <br>
+ * Raw serial bytes are copied into a fixed-size ring buffer with {@link #feed(byte[], int, int)}.
+ * Each call to {@link #parseNextPacket()} scans forward from where the last call left off, looking for
+ * a start character followed by an end character. When a full packet is found, its comma-separated
+ * fields are parsed straight from the bytes into a primitive array, which can be read back with
+ * {@link #getField(int)}.
+ * <br>
+ * <br>
+ * All buffers are allocated up front, so nothing is allocated while packets are flowing. This keeps the
+ * garbage collector quiet on the roboRIO's small heap. An instance is not thread safe - it is meant to
+ * be owned by the single thread reading the serial port.
+ * <br>
+ * <br>
+ * With {@link #setTracing(boolean)} on, each packet is also stamped with System.nanoTime() when the bytes
+ * holding its start were fed in, and when its end was found, for PacketLatencyTracer.
+ */
+public class JeVoisPacketFramer {
+
+    /** parseNextPacket() result - a full packet was found and its fields are ready to read */
+    public static final int RESULT_PACKET = 0;
+    /** parseNextPacket() result - a full packet was found, but could not be parsed. It has been discarded. */
+    public static final int RESULT_MALFORMED = -1;
+    /** parseNextPacket() result - no complete packet is buffered yet */
+    public static final int RESULT_NONE = -2;
+    /** parseNextPacket() result - an "OK" command response line was found */
+    public static final int RESULT_RESPONSE_OK = 1;
+    /** parseNextPacket() result - an "ERR" command response line was found. See getLastLine() for details. */
+    public static final int RESULT_RESPONSE_ERR = 2;
+    /** parseNextPacket() result - an "ECHO" line was found. See getEchoId() and getEchoTime_us(). Its "OK" follows. */
+    public static final int RESULT_RESPONSE_ECHO = 3;
+
+    /** Minimum number of fields a packet must have. Must be aligned with JeVois code. */
+    public static final int NUM_EXPECTED_FIELDS = 8;
+    /** Most targets we will keep from a single packet. Extras are ignored. */
+    public static final int MAX_TARGETS = 8;
+    /** Number of fields sent for each target in a multi-target packet */
+    public static final int FIELDS_PER_TARGET = 7;
+    /** Index of the target count field in a multi-target packet. The targets' fields follow it. */
+    public static final int TARGET_COUNT_FIELD_IDX = NUM_EXPECTED_FIELDS;
+    /** Maximum number of fields we will keep from a single packet. Extras are ignored. */
+    public static final int MAX_FIELDS = NUM_EXPECTED_FIELDS + 1 + MAX_TARGETS * FIELDS_PER_TARGET;
+
+    /** First byte of a binary packet. Never appears in text packets or command responses. */
+    public static final byte BINARY_SYNC_CHAR = 0x01;
+    /** Binary payload type for a single target packet */
+    public static final int BINARY_TYPE_TARGET = 1;
+    /** Length of a BINARY_TYPE_TARGET payload, including the type byte and CRC */
+    public static final int BINARY_TARGET_PAYLOAD_LEN = 26;
+    /** Length of a BINARY_TYPE_TARGET packet on the wire, including the trailing '\n' */
+    public static final int BINARY_TARGET_PACKET_LEN = 3 + (BINARY_TARGET_PAYLOAD_LEN * 8 + 6) / 7 + 1;
+    /** Binary payload type for a packet with a list of targets */
+    public static final int BINARY_TYPE_MULTI_TARGET = 2;
+    /** Length of the longest binary packet we'd accept on the wire, with MAX_TARGETS targets, including the trailing '\n' */
+    public static final int BINARY_MAX_PACKET_LEN = 3 + ((BINARY_TARGET_PAYLOAD_LEN + 1 + MAX_TARGETS * 16) * 8 + 6) / 7 + 1;
+
+    // Packet format constants
+    private static final byte PACKET_START_CHAR = '{';
+    private static final byte PACKET_END_CHAR = '}';
+    private static final byte PACKET_DELIM_CHAR = ',';
+    private static final byte LINE_END_CHAR = '\n';
+
+    // Ring buffer size. Must be a power of two, and larger than the longest packet we expect.
+    private static final int RING_SIZE = 512;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    // Binary packet framing. Sync byte plus two length bytes come before the packed bytes.
+    // RESULT_INCOMPLETE is only used internally, for a binary packet which hasn't fully arrived.
+    private static final int RESULT_INCOMPLETE = -3;
+    private static final int BINARY_HEADER_LEN = 3;
+    private static final int MAX_BINARY_PACKED_LEN = 256;
+    // Byte offsets within a binary payload. Multi-target payloads start out the same as single target ones.
+    private static final int BINARY_TARGET_COUNT_OFFSET = 24;
+    private static final int BINARY_TARGET_LIST_OFFSET = 25;
+    private static final int BINARY_TARGET_ENTRY_LEN = 16;
+
+    // Largest power of ten we'll build a number from, without losing precision
+    private static final int MAX_MANTISSA_DIGITS = 17;
+
+    // Lookup table for converting parsed digits to doubles
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for(int i = 1; i < POW10.length; i++){
+            POW10[i] = POW10[i-1] * 10.0;
+        }
+    }
+
+    // Lookup table for CRC-16/CCITT (polynomial 0x1021), one entry per byte value
+    private static final int[] CRC16_TABLE = new int[256];
+    static {
+        for(int i = 0; i < 256; i++){
+            int crc = i << 8;
+            for(int bit = 0; bit < 8; bit++){
+                crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x1021) : (crc << 1);
+            }
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    // Received bytes which have not yet been scanned. Indices are absolute byte counts, wrapped with RING_MASK.
+    private final byte[] ring = new byte[RING_SIZE];
+    private long writeIdx = 0;
+    private long scanIdx = 0;
+    // Absolute index of the start character of the packet currently being received, or -1 if none
+    private long packetStartIdx = -1;
+
+    // Scratch space for pulling a packet out of the ring into one contiguous chunk
+    private final byte[] packetBytes = new byte[RING_SIZE];
+
+    // Text received outside of packets, collected a line at a time to look for command responses.
+    // lastLine holds the most recent complete non-empty line.
+    private final byte[] lineBytes = new byte[128];
+    private int lineLength = 0;
+    private final byte[] lastLine = new byte[128];
+    private int lastLineLength = 0;
+
+    // Numbers from the most recent "ECHO id time_us" line
+    private long echoId = -1;
+    private double echoTime_us = 0;
+
+    // Parsed results from the most recent packet
+    private final double[] fields = new double[MAX_FIELDS];
+    private int numFields = 0;
+    // Length on the wire of the most recent packet, from its first byte to its last, not counting the line ending
+    private int packetLength = 0;
+
+    // Latency tracing stamps. feedTime_ns is when the latest bytes were fed in. The packet start stamp is taken
+    // the first time its start is scanned, which is always before the next feed, so it's the time the start arrived.
+    private volatile boolean tracing = false;
+    private long feedTime_ns = 0;
+    private long stampedStartIdx = -1;
+    private long packetStartTime_ns = 0;
+    private long packetEndTime_ns = 0;
+
+    // Error tracking
+    private long malformedCount = 0;
+    private long overflowCount = 0;
+    private long crcErrorCount = 0;
+    private long binaryPacketCount = 0;
+
+
+    /**
+     * Copies newly received bytes into the ring buffer. If the buffer would overflow, the oldest
+     * unscanned bytes (including any partially received packet) are thrown away.
+     * @param src array containing the received bytes
+     * @param offset index of the first received byte in src
+     * @param length number of received bytes
+     */
+    public void feed(byte[] src, int offset, int length){
+        feedTime_ns = tracing ? System.nanoTime() : 0;
+        for(int i = 0; i < length; i++){
+            ring[(int)(writeIdx & RING_MASK)] = src[offset + i];
+            writeIdx++;
+        }
+
+        if(writeIdx - scanIdx > RING_SIZE){
+            // Reader fell too far behind. Skip ahead, and don't trust any packet which started in the lost bytes.
+            scanIdx = writeIdx - RING_SIZE;
+            packetStartIdx = -1;
+            overflowCount++;
+        }
+    }
+
+    /**
+     * Scans buffered bytes for the next complete packet or command response, and parses it if one is found.
+     * Bytes outside of a start/end character pair are collected into lines, and lines starting with
+     * "OK", "ERR" or "ECHO" are reported as command responses. Other lines are discarded. If a second start
+     * character shows up before an end character, the earlier partial packet is assumed to be garbage and dropped.
+     * So is a packet too long to have stayed in the ring buffer until its end character arrived.
+     * @return RESULT_PACKET if a packet's fields are ready, RESULT_MALFORMED if a packet was found but
+     *         could not be parsed, RESULT_RESPONSE_OK, RESULT_RESPONSE_ERR or RESULT_RESPONSE_ECHO if a command
+     *         response line was found,
+     *         RESULT_NONE if nothing complete is buffered yet.
+     */
+    public int parseNextPacket(){
+        while(scanIdx < writeIdx){
+            byte b = ring[(int)(scanIdx & RING_MASK)];
+
+            if(b == BINARY_SYNC_CHAR){
+                // Binary packet. Any partial text packet or line before it is garbage.
+                packetStartIdx = -1;
+                lineLength = 0;
+                stampPacketStart();
+                int result = parseBinaryPacket();
+                if(result == RESULT_INCOMPLETE){
+                    // Not all here yet. Wait for more bytes, and try again from the sync byte.
+                    return RESULT_NONE;
+                } else if(result != RESULT_NONE){
+                    return result;
+                }
+                continue;
+            } else if(b == PACKET_START_CHAR){
+                packetStartIdx = scanIdx;
+                lineLength = 0;
+                stampPacketStart();
+            } else if(packetStartIdx < 0){
+                // Outside of a packet - this is command response or log text
+                if(b == LINE_END_CHAR){
+                    scanIdx++;
+                    int result = finishLine();
+                    if(result != RESULT_NONE){
+                        return result;
+                    }
+                    continue;
+                } else if(b != '\r' && lineLength < lineBytes.length){
+                    lineBytes[lineLength++] = b;
+                }
+            } else if(b == LINE_END_CHAR){
+                // Packets never span lines, so this one got cut off. Drop it, and don't let it swallow the next line.
+                scanIdx++;
+                packetStartIdx = -1;
+                malformedCount++;
+                return RESULT_MALFORMED;
+            } else if(b == PACKET_END_CHAR){
+                // Full packet. Copy the body (excluding start & end chars) out of the ring and parse it.
+                stampPacketEnd();
+                int length = (int)(scanIdx - packetStartIdx - 1);
+                if(length > packetBytes.length || packetStartIdx < writeIdx - RING_SIZE){
+                    // Far longer than any real packet, and its start has already been overwritten by newer bytes.
+                    // Must be line noise.
+                    scanIdx++;
+                    packetStartIdx = -1;
+                    malformedCount++;
+                    return RESULT_MALFORMED;
+                }
+                for(int i = 0; i < length; i++){
+                    packetBytes[i] = ring[(int)((packetStartIdx + 1 + i) & RING_MASK)];
+                }
+                scanIdx++;
+                packetStartIdx = -1;
+                return parseFields(packetBytes, 0, length);
+            }
+
+            scanIdx++;
+        }
+        return RESULT_NONE;
+    }
+
+    /**
+     * Tries to decode the binary packet whose sync byte is at scanIdx.
+     * Leaves scanIdx on the sync byte if the whole packet isn't buffered yet.
+     * Moves scanIdx just past the packet if it's good, or just past the sync byte if it's not.
+     * @return RESULT_PACKET if the packet's fields are ready, RESULT_MALFORMED if it failed a check,
+     *         RESULT_INCOMPLETE if it isn't all here yet, RESULT_NONE if the sync byte turned out not to start a packet
+     */
+    private int parseBinaryPacket(){
+        long available = writeIdx - scanIdx;
+        if(available < BINARY_HEADER_LEN){
+            return RESULT_INCOMPLETE;
+        }
+
+        int lenLo = ring[(int)((scanIdx + 1) & RING_MASK)];
+        int lenHi = ring[(int)((scanIdx + 2) & RING_MASK)];
+        int packedLen = (lenLo & 0x7F) | ((lenHi & 0x7F) << 7);
+        if(((lenLo | lenHi) & 0x80) != 0 || packedLen > MAX_BINARY_PACKED_LEN){
+            // Can't be a real length. Treat the sync byte as noise.
+            scanIdx++;
+            return RESULT_NONE;
+        }
+        if(available < BINARY_HEADER_LEN + packedLen){
+            return RESULT_INCOMPLETE;
+        }
+        stampPacketEnd();
+
+        // Unpack 7 bits per byte, least significant bits first, into the scratch buffer
+        long packedStart = scanIdx + BINARY_HEADER_LEN;
+        int bitBuffer = 0;
+        int numBits = 0;
+        int payloadLen = 0;
+        boolean valid = true;
+        for(int i = 0; i < packedLen; i++){
+            int v = ring[(int)((packedStart + i) & RING_MASK)];
+            if((v & 0x80) != 0){
+                valid = false;
+                break;
+            }
+            bitBuffer |= v << numBits;
+            numBits += 7;
+            if(numBits >= 8){
+                packetBytes[payloadLen++] = (byte) bitBuffer;
+                bitBuffer >>>= 8;
+                numBits -= 8;
+            }
+        }
+
+        if(!valid || payloadLen < 3 || crc16(packetBytes, 0, payloadLen - 2) != readUInt16(packetBytes, payloadLen - 2)){
+            scanIdx++;
+            crcErrorCount++;
+            malformedCount++;
+            numFields = 0;
+            return RESULT_MALFORMED;
+        }
+
+        scanIdx = packedStart + packedLen;
+        packetLength = BINARY_HEADER_LEN + packedLen;
+        int sentTargets = 0;
+        if(packetBytes[0] == BINARY_TYPE_MULTI_TARGET && payloadLen > BINARY_TARGET_LIST_OFFSET){
+            sentTargets = packetBytes[BINARY_TARGET_COUNT_OFFSET] & 0xFF;
+        }
+        boolean knownSingle = (packetBytes[0] == BINARY_TYPE_TARGET && payloadLen == BINARY_TARGET_PAYLOAD_LEN);
+        boolean knownMulti = (packetBytes[0] == BINARY_TYPE_MULTI_TARGET && 
+                              payloadLen == BINARY_TARGET_LIST_OFFSET + sentTargets * BINARY_TARGET_ENTRY_LEN + 2);
+        if(!knownSingle && !knownMulti){
+            // Good packet, but not a kind we understand
+            malformedCount++;
+            numFields = 0;
+            return RESULT_MALFORMED;
+        }
+
+        fields[0] = readUInt32(packetBytes, 1);
+        fields[1] = ((packetBytes[5] & 0x01) != 0) ? 1.0 : 0.0;
+        fields[2] = Float.intBitsToFloat((int) readUInt32(packetBytes, 6));
+        fields[3] = Float.intBitsToFloat((int) readUInt32(packetBytes, 10));
+        fields[4] = readUInt16(packetBytes, 14) / 100.0;
+        fields[5] = readUInt16(packetBytes, 16) / 100.0;
+        fields[6] = readUInt16(packetBytes, 18) / 100.0;
+        fields[7] = readUInt32(packetBytes, 20);
+        numFields = NUM_EXPECTED_FIELDS;
+
+        if(knownMulti){
+            int numTargets = Math.min(sentTargets, MAX_TARGETS);
+            fields[TARGET_COUNT_FIELD_IDX] = numTargets;
+            int fieldIdx = TARGET_COUNT_FIELD_IDX + 1;
+            for(int i = 0; i < numTargets; i++){
+                int entry = BINARY_TARGET_LIST_OFFSET + i * BINARY_TARGET_ENTRY_LEN;
+                for(int j = 0; j < 6; j++){
+                    fields[fieldIdx++] = readUInt16(packetBytes, entry + j * 2);
+                }
+                fields[fieldIdx++] = Float.intBitsToFloat((int) readUInt32(packetBytes, entry + 12));
+            }
+            numFields = fieldIdx;
+        }
+
+        binaryPacketCount++;
+        return RESULT_PACKET;
+    }
+
+    /**
+     * Builds a binary target packet, the same way the JeVois does. For simulation and testing.
+     * Allocates a small scratch array, so don't use it anywhere time critical.
+     * @param values packet fields, in the same order as a text packet
+     * @param dest array to write the packet into. Needs room for BINARY_TARGET_PACKET_LEN bytes.
+     * @param offset index in dest to start writing at
+     * @return number of bytes written, including the trailing '\n'
+     */
+    public static int encodeBinaryPacket(double[] values, byte[] dest, int offset){
+        return encodeBinaryPacket(values, NUM_EXPECTED_FIELDS, dest, offset);
+    }
+
+    /**
+     * Builds a binary packet, the same way the JeVois does. For simulation and testing.
+     * Allocates a small scratch array, so don't use it anywhere time critical.
+     * @param values packet fields, in the same order as a text packet
+     * @param numValues number of fields. Anything more than NUM_EXPECTED_FIELDS makes a multi-target packet,
+     *                  with the target count and list taken from the values after the usual fields.
+     * @param dest array to write the packet into. Needs room for BINARY_MAX_PACKET_LEN bytes.
+     * @param offset index in dest to start writing at
+     * @return number of bytes written, including the trailing '\n'
+     */
+    public static int encodeBinaryPacket(double[] values, int numValues, byte[] dest, int offset){
+        int numTargets = 0;
+        if(numValues > NUM_EXPECTED_FIELDS){
+            numTargets = Math.min((int) values[TARGET_COUNT_FIELD_IDX], MAX_TARGETS);
+        }
+        int payloadLen = (numValues > NUM_EXPECTED_FIELDS) ? 
+                         BINARY_TARGET_LIST_OFFSET + numTargets * BINARY_TARGET_ENTRY_LEN + 2 : BINARY_TARGET_PAYLOAD_LEN;
+
+        byte[] payload = new byte[payloadLen];
+        payload[0] = (byte) ((numValues > NUM_EXPECTED_FIELDS) ? BINARY_TYPE_MULTI_TARGET : BINARY_TYPE_TARGET);
+        writeUInt32(payload, 1, (long) values[0]);
+        payload[5] = (byte) ((values[1] != 0.0) ? 0x01 : 0x00);
+        writeUInt32(payload, 6, Float.floatToIntBits((float) values[2]));
+        writeUInt32(payload, 10, Float.floatToIntBits((float) values[3]));
+        writeUInt16(payload, 14, (int) Math.round(values[4] * 100.0));
+        writeUInt16(payload, 16, (int) Math.round(values[5] * 100.0));
+        writeUInt16(payload, 18, (int) Math.round(values[6] * 100.0));
+        writeUInt32(payload, 20, (long) values[7]);
+        if(numValues > NUM_EXPECTED_FIELDS){
+            payload[BINARY_TARGET_COUNT_OFFSET] = (byte) numTargets;
+            for(int i = 0; i < numTargets; i++){
+                int entry = BINARY_TARGET_LIST_OFFSET + i * BINARY_TARGET_ENTRY_LEN;
+                int valueIdx = TARGET_COUNT_FIELD_IDX + 1 + i * FIELDS_PER_TARGET;
+                for(int j = 0; j < 6; j++){
+                    writeUInt16(payload, entry + j * 2, (int) Math.round(values[valueIdx + j]));
+                }
+                writeUInt32(payload, entry + 12, Float.floatToIntBits((float) values[valueIdx + 6]));
+            }
+        }
+        writeUInt16(payload, payloadLen - 2, crc16(payload, 0, payloadLen - 2));
+
+        // Pack 7 bits per byte, least significant bits first
+        int idx = offset + BINARY_HEADER_LEN;
+        int bitBuffer = 0;
+        int numBits = 0;
+        for(int i = 0; i < payload.length; i++){
+            bitBuffer |= (payload[i] & 0xFF) << numBits;
+            numBits += 8;
+            while(numBits >= 7){
+                dest[idx++] = (byte) (bitBuffer & 0x7F);
+                bitBuffer >>>= 7;
+                numBits -= 7;
+            }
+        }
+        if(numBits > 0){
+            dest[idx++] = (byte) (bitBuffer & 0x7F);
+        }
+
+        int packedLen = idx - offset - BINARY_HEADER_LEN;
+        dest[offset] = BINARY_SYNC_CHAR;
+        dest[offset + 1] = (byte) (packedLen & 0x7F);
+        dest[offset + 2] = (byte) ((packedLen >> 7) & 0x7F);
+        dest[idx++] = LINE_END_CHAR;
+        return idx - offset;
+    }
+
+    /**
+     * CRC-16/CCITT, starting from 0xFFFF, over a range of bytes
+     */
+    private static int crc16(byte[] buf, int offset, int length){
+        int crc = 0xFFFF;
+        for(int i = offset; i < offset + length; i++){
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ buf[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    private static int readUInt16(byte[] buf, int idx){
+        return (buf[idx] & 0xFF) | ((buf[idx + 1] & 0xFF) << 8);
+    }
+
+    private static long readUInt32(byte[] buf, int idx){
+        return (readUInt16(buf, idx) | ((long) readUInt16(buf, idx + 2) << 16));
+    }
+
+    private static void writeUInt16(byte[] buf, int idx, int value){
+        buf[idx] = (byte) value;
+        buf[idx + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeUInt32(byte[] buf, int idx, long value){
+        writeUInt16(buf, idx, (int) value);
+        writeUInt16(buf, idx + 2, (int) (value >> 16));
+    }
+
+    /**
+     * Parses the comma separated fields of a single packet body (no start or end characters).
+     * Numeric fields are converted to doubles. Fields which are exactly "T" or "F" are converted to 1.0 or 0.0.
+     * @param buf array holding the packet body
+     * @param offset index of the first byte of the body in buf
+     * @param length number of bytes in the body
+     * @return RESULT_PACKET if all fields parsed correctly, RESULT_MALFORMED otherwise
+     */
+    public int parseFields(byte[] buf, int offset, int length){
+        int end = offset + length;
+        int fieldStart = offset;
+        int fieldCount = 0;
+
+        for(int i = offset; i <= end; i++){
+            if(i == end || buf[i] == PACKET_DELIM_CHAR){
+                if(fieldCount < MAX_FIELDS){
+                    double value = parseValue(buf, fieldStart, i);
+                    if(Double.isNaN(value)){
+                        malformedCount++;
+                        numFields = 0;
+                        return RESULT_MALFORMED;
+                    }
+                    fields[fieldCount] = value;
+                }
+                fieldCount++;
+                fieldStart = i + 1;
+            }
+        }
+
+        if(fieldCount < NUM_EXPECTED_FIELDS){
+            malformedCount++;
+            numFields = 0;
+            return RESULT_MALFORMED;
+        }
+
+        numFields = Math.min(fieldCount, MAX_FIELDS);
+        packetLength = length + 2;
+        return RESULT_PACKET;
+    }
+
+    /**
+     * Returns the most recent non-empty line of text received outside of a packet (ex: "ERR Unsupported command").
+     * Allocates a new String, so only use this when something has gone wrong or for rare responses.
+     */
+    public String getLastLine(){
+        return new String(lastLine, 0, lastLineLength, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the id from the most recent "ECHO" line, or -1 if there hasn't been one
+     */
+    public long getEchoId(){
+        return echoId;
+    }
+
+    /**
+     * Returns the JeVois clock reading from the most recent "ECHO" line, in microseconds
+     */
+    public double getEchoTime_us(){
+        return echoTime_us;
+    }
+
+    /**
+     * Turns packet timestamps on or off. May be called from any thread, and takes effect from the next bytes fed in.
+     */
+    public void setTracing(boolean enabled){
+        tracing = enabled;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the bytes holding the start of the most recent packet were fed in,
+     * or 0 if tracing was off then
+     */
+    public long getPacketStartTime_ns(){
+        return packetStartTime_ns;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the end of the most recent packet was found, or 0 if tracing was off then
+     */
+    public long getPacketEndTime_ns(){
+        return packetEndTime_ns;
+    }
+
+    /**
+     * Returns the length of the most recently parsed packet as it was sent over the link, in bytes. Includes the
+     * start and end characters of a text packet, or the header of a binary one, but not the line ending.
+     */
+    public int getLastPacketLength(){
+        return packetLength;
+    }
+
+    /**
+     * Returns the length of the most recent non-empty line of text received outside of a packet, in bytes,
+     * not counting the line ending
+     */
+    public int getLastLineLength(){
+        return lastLineLength;
+    }
+
+    /**
+     * Returns a field of the most recently parsed packet
+     * @param idx field index, starting at zero
+     */
+    public double getField(int idx){
+        return fields[idx];
+    }
+
+    /**
+     * Returns the number of fields in the most recently parsed packet, or 0 if it was malformed
+     */
+    public int getNumFields(){
+        return numFields;
+    }
+
+    /**
+     * Returns the total number of packets which were framed but could not be parsed
+     */
+    public long getMalformedCount(){
+        return malformedCount;
+    }
+
+    /**
+     * Returns the number of binary packets dropped because their checksum was wrong. These are included in getMalformedCount().
+     */
+    public long getCrcErrorCount(){
+        return crcErrorCount;
+    }
+
+    /**
+     * Returns the number of good binary packets parsed. Text packets aren't counted.
+     */
+    public long getBinaryPacketCount(){
+        return binaryPacketCount;
+    }
+
+    /**
+     * Returns the number of times bytes were thrown away because the ring buffer filled up
+     */
+    public long getOverflowCount(){
+        return overflowCount;
+    }
+
+    /**
+     * Returns true if part of a packet or line has arrived, but not the rest of it yet. Only meaningful
+     * once parseNextPacket() has returned RESULT_NONE.
+     */
+    public boolean hasPartialData(){
+        return packetStartIdx >= 0 || scanIdx < writeIdx || lineLength > 0;
+    }
+
+    /**
+     * Throws away all buffered bytes and any partially received packet.
+     */
+    public void clear(){
+        scanIdx = writeIdx;
+        packetStartIdx = -1;
+        lineLength = 0;
+    }
+
+    /**
+     * Notes when the start of the packet at scanIdx arrived, unless that was already done on an earlier scan.
+     */
+    private void stampPacketStart(){
+        if(scanIdx != stampedStartIdx){
+            stampedStartIdx = scanIdx;
+            packetStartTime_ns = tracing ? feedTime_ns : 0;
+        }
+    }
+
+    /**
+     * Notes when the end of the current packet was found
+     */
+    private void stampPacketEnd(){
+        packetEndTime_ns = tracing ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Called at the end of each line of text outside a packet. Saves it and checks if it's a command response.
+     */
+    private int finishLine(){
+        int length = lineLength;
+        lineLength = 0;
+        if(length == 0){
+            return RESULT_NONE;
+        }
+
+        System.arraycopy(lineBytes, 0, lastLine, 0, length);
+        lastLineLength = length;
+
+        if(length >= 2 && lineBytes[0] == 'O' && lineBytes[1] == 'K'){
+            return RESULT_RESPONSE_OK;
+        } else if(length >= 3 && lineBytes[0] == 'E' && lineBytes[1] == 'R' && lineBytes[2] == 'R'){
+            return RESULT_RESPONSE_ERR;
+        } else if(length >= 5 && lineBytes[0] == 'E' && lineBytes[1] == 'C' && lineBytes[2] == 'H' && lineBytes[3] == 'O' && lineBytes[4] == ' '){
+            return parseEcho(length);
+        }
+        return RESULT_NONE;
+    }
+
+    /**
+     * Picks the id and time out of an "ECHO id time_us" line in lineBytes
+     * @return RESULT_RESPONSE_ECHO if both numbers are good, otherwise RESULT_NONE so the line is ignored like any other
+     */
+    private int parseEcho(int length){
+        int split = 5;
+        while(split < length && lineBytes[split] != ' '){
+            split++;
+        }
+        double id = parseValue(lineBytes, 5, split);
+        double time = parseValue(lineBytes, Math.min(split + 1, length), length);
+        if(Double.isNaN(id) || Double.isNaN(time)){
+            return RESULT_NONE;
+        }
+        echoId = (long) id;
+        echoTime_us = time;
+        return RESULT_RESPONSE_ECHO;
+    }
+
+    /**
+     * Converts a single field to a double, without allocating any intermediate strings.
+     * Accepts an optional sign, digits with an optional decimal point, and an optional exponent.
+     * Leading and trailing spaces are ignored.
+     * @return the parsed value, or NaN if the field is not a valid number or boolean
+     */
+    private static double parseValue(byte[] buf, int start, int end){
+        // Trim whitespace
+        while(start < end && buf[start] == ' '){
+            start++;
+        }
+        while(end > start && (buf[end-1] == ' ' || buf[end-1] == '\r' || buf[end-1] == '\n')){
+            end--;
+        }
+        if(start == end){
+            return Double.NaN;
+        }
+
+        // Boolean values should only have T or F characters
+        if(end - start == 1){
+            if(buf[start] == 'T'){
+                return 1.0;
+            } else if(buf[start] == 'F'){
+                return 0.0;
+            }
+        }
+
+        int i = start;
+        boolean negative = false;
+        if(buf[i] == '-' || buf[i] == '+'){
+            negative = (buf[i] == '-');
+            i++;
+        }
+
+        long mantissa = 0;
+        int mantissaDigits = 0;
+        int decimalExponent = 0;
+        boolean anyDigits = false;
+        boolean afterPoint = false;
+
+        for(; i < end; i++){
+            byte b = buf[i];
+            if(b >= '0' && b <= '9'){
+                anyDigits = true;
+                if(mantissaDigits < MAX_MANTISSA_DIGITS){
+                    mantissa = mantissa * 10 + (b - '0');
+                    if(mantissa != 0){
+                        mantissaDigits++;
+                    }
+                    if(afterPoint){
+                        decimalExponent--;
+                    }
+                } else if(!afterPoint){
+                    // Out of precision, just track the magnitude
+                    decimalExponent++;
+                }
+            } else if(b == '.' && !afterPoint){
+                afterPoint = true;
+            } else {
+                break;
+            }
+        }
+
+        if(!anyDigits){
+            return Double.NaN;
+        }
+
+        // Optional exponent, ex: 1.5e-05
+        if(i < end && (buf[i] == 'e' || buf[i] == 'E')){
+            i++;
+            boolean expNegative = false;
+            if(i < end && (buf[i] == '-' || buf[i] == '+')){
+                expNegative = (buf[i] == '-');
+                i++;
+            }
+            int exponent = 0;
+            boolean anyExpDigits = false;
+            for(; i < end && buf[i] >= '0' && buf[i] <= '9'; i++){
+                anyExpDigits = true;
+                if(exponent < 1000){
+                    exponent = exponent * 10 + (buf[i] - '0');
+                }
+            }
+            if(!anyExpDigits){
+                return Double.NaN;
+            }
+            decimalExponent += expNegative ? -exponent : exponent;
+        }
+
+        if(i != end){
+            // Trailing junk
+            return Double.NaN;
+        }
+
+        double value = (double) mantissa;
+        if(decimalExponent < 0){
+            value = (-decimalExponent < POW10.length) ? value / POW10[-decimalExponent] : value / Math.pow(10, -decimalExponent);
+        } else if(decimalExponent > 0){
+            value = (decimalExponent < POW10.length) ? value * POW10[decimalExponent] : value * Math.pow(10, decimalExponent);
+        }
+
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,64 @@
+package org.usfirst.frc.team1736.robot;
+
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Byte stream between the roboRIO and a JeVois camera. JeVoisInterface is built on top of this,
+ * so the same packet handling code can run over the real USB serial port, a socket (for example a
+ * Linux pseudo-terminal bridged with socat), or an in-memory simulated camera.
+ * <br>
+ * <br>
+ * Implementations must allow one thread to read while another thread writes.
+ */
+public interface JeVoisTransport {
+
+    /**
+     * Reads received bytes. Returns immediately with whatever is already buffered. If nothing is buffered,
+     * blocks until at least one byte arrives or the timeout expires.
+     * @param dest array to copy received bytes into
+     * @param offset index in dest to start copying at
+     * @param length maximum number of bytes to read
+     * @param timeout_s longest time to wait for a byte. Pass 0 to never block.
+     * @return number of bytes read, 0 if the timeout expired first, or -1 if the link is broken
+     */
+    public int read(byte[] dest, int offset, int length, double timeout_s);
+
+    /**
+     * Returns the number of bytes which can be read right now without blocking
+     */
+    public int bytesAvailable();
+
+    /**
+     * Sends bytes to the JeVois.
+     * @param src array holding the bytes to send
+     * @param offset index in src of the first byte to send
+     * @param length number of bytes to send
+     * @return number of bytes actually sent, or -1 if the link is broken
+     */
+    public int write(byte[] src, int offset, int length);
+
+    /**
+     * Releases the underlying port, socket or simulation. The transport cannot be used afterward.
+     */
+    public void close();
+
+    /**
+     * Tries to get a broken link working again, for example by reopening a serial port after the camera was
+     * unplugged and plugged back in. Called by the same thread which reads. Transports which can't reconnect
+     * just return false.
+     * @return true if the link was reopened and can be used again
+     */
+    public default boolean reopen() {
+        return false;
+    }
+
+    /**
+     * Returns the time, in seconds on the FPGA clock, that the bytes most recently returned by read() arrived at.
+     * Live transports just return the current time. Transports which play back a recording return the time
+     * the bytes were originally received, so everything downstream sees the timing of the recorded match.
+     */
+    public default double getTime_s() {
+        return Timer.getFPGATimestamp();
+    }
+
+}
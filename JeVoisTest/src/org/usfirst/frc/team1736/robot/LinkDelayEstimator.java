@@ -0,0 +1,252 @@
+package org.usfirst.frc.team1736.robot;
+
+/**
+ * Estimates how long target packets spend getting from the JeVois to us, and how the JeVois clock lines up
+ * with the FPGA clock, from timestamped "echo" round trips.
+ * <br>
+ * <br>
+ * The roboRIO sends "echo N" and notes the time. The JeVois answers "ECHO N t_us" with its own clock reading,
+ * and we note when that arrives. Taking out the time needed to shift both lines through the UART at the baud rate
+ * leaves the round trip spent in the USB-serial hardware, drivers and the JeVois engine. Half of that is the one
+ * way link delay, assuming it's the same both ways. The JeVois clock reading is matched with the middle of the
+ * round trip to get one sample of the JeVois-to-FPGA clock offset.
+ * <br>
+ * <br>
+ * Round trips which got held up somewhere tell us little, so only samples within MAX_EXTRA_DELAY_S of the fastest
+ * of the last few are used. The link delay is half the fastest recent round trip. The offset samples feed an
+ * alpha-beta filter, which smooths out the jitter and tracks the drift between the two clocks. The link delay
+ * uncertainty is half the spread between the fastest and the 90th percentile of the recent round trips, which
+ * is how much the one way delay of any given packet typically varies from the estimate.
+ * <br>
+ * <br>
+ * Only the packet listener thread adds samples. Estimates may be read from any thread.
+ */
+public class LinkDelayEstimator {
+
+    // Bits on the wire for each byte: start bit, 8 data bits, stop bit
+    private static final int BITS_PER_BYTE = 10;
+    // Number of recent round trips the fastest one is picked from
+    private static final int WINDOW_LEN = 8;
+    // Percentile of the recent round trips the spread is measured up to
+    private static final double SPREAD_PERCENTILE = 90.0;
+    // How much slower than the fastest recent round trip a sample can be and still be used
+    private static final double MAX_EXTRA_DELAY_S = 0.001;
+    // Clock offset filter gains. Drift is tiny next to the jitter in each sample, so it's tracked slowly.
+    private static final double OFFSET_ALPHA = 0.1;
+    private static final double OFFSET_BETA = 0.005;
+    // Drift corrections are scaled as if samples were at least this far apart, so a burst of closely spaced
+    // samples at startup can't swing the drift estimate around
+    private static final double MIN_DRIFT_BASELINE_S = 1.0;
+    // Clock crystals are good to within this much, so anything more is noise
+    private static final double MAX_DRIFT = 500.0e-6;
+    // An offset sample this far from the prediction means the JeVois clock started over, so the filter does too
+    private static final double OFFSET_RESET_THRESHOLD_S = 0.05;
+
+    private final double byteTime_s;
+
+    // Recent round trip times with the UART transmit time taken out, used to find the fastest
+    private final double[] wireTimes = new double[WINDOW_LEN];
+    private int numWireTimes = 0;
+    private int nextWireTime = 0;
+    // Scratch space for sorting the recent round trip times
+    private final double[] sortedWireTimes = new double[WINDOW_LEN];
+
+    // Filter state, published together. Readers retry if they catch the listener part way through an update.
+    private volatile long publishSeq = 0;
+    private volatile double offset_s = 0;
+    private volatile double drift = 0;
+    private volatile double offsetTime = 0;
+
+    private volatile double linkDelay_s = 0;
+    private volatile double linkDelayUncertainty_s = 0;
+    private volatile double lastRoundTrip_s = -1;
+    private volatile long sampleCount = 0;
+    private volatile long usedSampleCount = 0;
+    private volatile long clockResets = 0;
+
+    /**
+     * Creates an estimator with no samples yet
+     * @param baudRate serial link speed in bits per second
+     */
+    public LinkDelayEstimator(int baudRate) {
+        byteTime_s = (double) BITS_PER_BYTE / baudRate;
+    }
+
+    /**
+     * Returns how long it takes to shift some bytes through the UART at the baud rate, in seconds
+     * @param numBytes number of bytes sent
+     */
+    public double getTransmitTime_s(int numBytes) {
+        return numBytes * byteTime_s;
+    }
+
+    /**
+     * Adds the results of one echo round trip. Only the packet listener thread calls this.
+     * @param sendTime FPGA timestamp the echo command started going out
+     * @param rxTime FPGA timestamp the JeVois reply finished arriving
+     * @param jeVoisTime_s JeVois clock reading in the reply
+     * @param cmdBytes length of the echo command, including its line ending
+     * @param replyBytes length of the reply line, including its line ending
+     */
+    public void addSample(double sendTime, double rxTime, double jeVoisTime_s, int cmdBytes, int replyBytes) {
+        double cmdTime = getTransmitTime_s(cmdBytes);
+        double replyTime = getTransmitTime_s(replyBytes);
+        double wireTime = Math.max(rxTime - sendTime - cmdTime - replyTime, 0);
+        lastRoundTrip_s = rxTime - sendTime;
+        sampleCount++;
+
+        wireTimes[nextWireTime] = wireTime;
+        nextWireTime = (nextWireTime + 1) % WINDOW_LEN;
+        numWireTimes = Math.min(numWireTimes + 1, WINDOW_LEN);
+        // Insertion sort, since there are only a few
+        for(int i = 0; i < numWireTimes; i++){
+            double t = wireTimes[i];
+            int j = i;
+            while(j > 0 && sortedWireTimes[j - 1] > t){
+                sortedWireTimes[j] = sortedWireTimes[j - 1];
+                j--;
+            }
+            sortedWireTimes[j] = t;
+        }
+        double minWireTime = sortedWireTimes[0];
+        double spreadWireTime = sortedWireTimes[(int)Math.round((numWireTimes - 1) * SPREAD_PERCENTILE / 100.0)];
+        linkDelay_s = minWireTime / 2;
+        linkDelayUncertainty_s = (spreadWireTime - minWireTime) / 2;
+
+        if(wireTime > minWireTime + MAX_EXTRA_DELAY_S){
+            // Got held up on the way. The JeVois clock reading could be from anywhere in the hold up.
+            return;
+        }
+        usedSampleCount++;
+
+        // The JeVois read its clock halfway between the command arriving and the reply leaving
+        double midTime = (sendTime + cmdTime + rxTime - replyTime) / 2;
+        double sampleOffset = jeVoisTime_s - midTime;
+
+        if(usedSampleCount == 1){
+            publishOffset(sampleOffset, 0, midTime);
+            return;
+        }
+
+        double dt = midTime - offsetTime;
+        double predicted = offset_s + drift * dt;
+        double residual = sampleOffset - predicted;
+        if(Math.abs(residual) > OFFSET_RESET_THRESHOLD_S){
+            // JeVois restarted, and its clock with it
+            clockResets++;
+            publishOffset(sampleOffset, 0, midTime);
+        } else if(dt > 0){
+            double newDrift = drift + OFFSET_BETA * residual / Math.max(dt, MIN_DRIFT_BASELINE_S);
+            publishOffset(predicted + OFFSET_ALPHA * residual, Math.max(-MAX_DRIFT, Math.min(newDrift, MAX_DRIFT)), midTime);
+        }
+    }
+
+    /**
+     * Forgets every sample, for when the link to the JeVois has been restored and the path or clock may have changed.
+     * Only the packet listener thread calls this.
+     */
+    public void reset() {
+        numWireTimes = 0;
+        nextWireTime = 0;
+        usedSampleCount = 0;
+        linkDelay_s = 0;
+        linkDelayUncertainty_s = 0;
+        publishOffset(0, 0, 0);
+    }
+
+    private void publishOffset(double offset, double drift, double time) {
+        publishSeq++;
+        this.offset_s = offset;
+        this.drift = drift;
+        this.offsetTime = time;
+        publishSeq++;
+    }
+
+    /**
+     * Returns the estimated FPGA timestamp of the moment a packet started leaving the JeVois
+     * @param rxTime FPGA timestamp the packet finished arriving
+     * @param packetBytes length of the packet on the wire
+     */
+    public double getSendTime(double rxTime, int packetBytes) {
+        return rxTime - getTransmitTime_s(packetBytes) - linkDelay_s;
+    }
+
+    /**
+     * Converts a JeVois clock reading to the matching FPGA timestamp
+     * @param jeVoisTime_s JeVois clock reading, in seconds
+     * @return FPGA timestamp, or NaN if no samples have been used yet
+     */
+    public double jeVoisToFpgaTime(double jeVoisTime_s) {
+        double offset, rate, time;
+        long seq;
+        do {
+            seq = publishSeq;
+            offset = offset_s;
+            rate = drift;
+            time = offsetTime;
+        } while((seq & 1) != 0 || seq != publishSeq);
+        if(usedSampleCount == 0){
+            return Double.NaN;
+        }
+        // Solve fpga = jeVois - (offset + rate * (fpga - time)) for fpga
+        return (jeVoisTime_s - offset + rate * time) / (1 + rate);
+    }
+
+    /**
+     * Returns the estimated one way link delay from the JeVois to us, not counting the time to shift the bytes
+     * through the UART, in seconds. Zero until the first sample.
+     */
+    public double getLinkDelay_s() {
+        return linkDelay_s;
+    }
+
+    /**
+     * Returns how much the one way link delay varies from the estimate, in seconds. Half the spread from the
+     * fastest to the 90th percentile of the recent round trips. Zero until there are at least two samples.
+     */
+    public double getLinkDelayUncertainty_s() {
+        return linkDelayUncertainty_s;
+    }
+
+    /**
+     * Returns the JeVois clock minus the FPGA clock as of the latest used sample, in seconds
+     */
+    public double getClockOffset_s() {
+        return offset_s;
+    }
+
+    /**
+     * Returns how fast the JeVois clock is gaining on the FPGA clock, in parts per million
+     */
+    public double getClockDrift_ppm() {
+        return drift * 1.0e6;
+    }
+
+    /**
+     * Returns the most recent echo round trip time, including UART transmit time, in seconds. -1 before the first.
+     */
+    public double getLastRoundTrip_s() {
+        return lastRoundTrip_s;
+    }
+
+    /**
+     * Returns the number of echo round trips seen
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the number of echo round trips fast enough to use for the clock offset since the last reset
+     */
+    public long getUsedSampleCount() {
+        return usedSampleCount;
+    }
+
+    /**
+     * Returns the number of times the JeVois clock jumped, and the offset estimate started over
+     */
+    public long getClockResets() {
+        return clockResets;
+    }
+}
@@ -0,0 +1,209 @@
+package org.usfirst.frc.team1736.robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.usfirst.frc.team1736.lib.Stats.WindowedHistogram;
+
+/**
+ * Breaks down where the time goes between the camera taking a frame and the robot code reading the target
+ * out of it, one sliding-window histogram per stage, in microseconds.
+ * <br>
+ * <br>
+ * Each packet is stamped with System.nanoTime() as it moves through the listener:
+ * <ol>
+ * <li>STAGE_PIPELINE - JeVois vision processing, as reported in the packet.</li>
+ * <li>STAGE_RECEIVE - from when the chunk holding the first byte of the packet was read, until the end of the
+ * packet was found. Time on the link before the first byte isn't measured here, see LinkDelayEstimator.</li>
+ * <li>STAGE_PARSE - from finding the end of the packet until its fields are parsed.</li>
+ * <li>STAGE_PUBLISH - from parsed until the new target info is visible to readers.</li>
+ * <li>STAGE_CONSUME - from published until robot code first reads it.</li>
+ * <li>STAGE_TOTAL - from the estimated capture time (JeVoisInterface.getTgtTime()) until robot code first reads it.</li>
+ * </ol>
+ * Packets the robot code never reads before the next one replaces them only count toward the first four, and
+ * are counted by getUnreadFrames().
+ * <br>
+ * <br>
+ * Off by default. When off, the listener and the readers only check one volatile flag. When on, each packet
+ * costs a few nanoTime() calls and histogram updates, and nothing is allocated. Everything is recorded by the
+ * listener thread. Readers only stamp the time of the first read, which the listener picks up when it publishes
+ * the next packet. A read which races with that hand off can be missed or counted toward the wrong packet,
+ * so the consume stage is occasionally off by one packet period.
+ */
+public class PacketLatencyTracer {
+
+    /** Stage index - JeVois vision processing */
+    public static final int STAGE_PIPELINE = 0;
+    /** Stage index - first byte read until end of packet found */
+    public static final int STAGE_RECEIVE = 1;
+    /** Stage index - end of packet found until its fields are parsed */
+    public static final int STAGE_PARSE = 2;
+    /** Stage index - parsed until visible to readers */
+    public static final int STAGE_PUBLISH = 3;
+    /** Stage index - visible to readers until first read */
+    public static final int STAGE_CONSUME = 4;
+    /** Stage index - estimated capture until first read */
+    public static final int STAGE_TOTAL = 5;
+    /** Number of stages */
+    public static final int NUM_STAGES = 6;
+
+    private static final String[] STAGE_NAMES = {"pipeline", "receive", "parse", "publish", "consume", "total"};
+
+    private static final double STATS_WINDOW_S = 5.0;
+    private static final int STATS_WINDOW_SLICES = 5;
+
+    private final WindowedHistogram[] stageStats = new WindowedHistogram[NUM_STAGES];
+
+    private volatile boolean enabled = false;
+    // Bumped each time tracing is turned on or off, so a packet from before can't be matched with a read after
+    private volatile int enableCount = 0;
+
+    // Time robot code first read the latest published packet, or 0 if it hasn't yet
+    private final AtomicLong firstReadTime_ns = new AtomicLong(0);
+
+    // Stamps of the latest published packet, kept until the next one so its consume time can be recorded.
+    // Only touched by the listener.
+    private boolean havePublished = false;
+    private int publishedEnableCount = 0;
+    private long published_ns = 0;
+    private double publishedAge_s = 0;
+    private long parsed_ns = 0;
+    private double statsTime = 0;
+
+    private volatile long tracedFrames = 0;
+    private volatile long unreadFrames = 0;
+
+    public PacketLatencyTracer() {
+        for(int i = 0; i < NUM_STAGES; i++){
+            stageStats[i] = new WindowedHistogram(STATS_WINDOW_S, STATS_WINDOW_SLICES);
+        }
+    }
+
+    /**
+     * Turns tracing on or off. Only call this from one thread at a time. Packets already part way
+     * through the listener when tracing is turned on are left out.
+     */
+    public void setEnabled(boolean enabled) {
+        if(enabled != this.enabled){
+            this.enabled = enabled;
+            enableCount++;
+        }
+    }
+
+    /**
+     * Returns true if tracing is on
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records the stages of a packet up to the point it's published, and the consume stage of the packet
+     * before it. Only the listener thread calls this, right after publishing.
+     * @param firstByte_ns when the chunk holding the packet's first byte was read, or 0 if not stamped
+     * @param end_ns when the end of the packet was found, or 0 if not stamped
+     * @param parsed_ns when the packet's fields were done being parsed
+     * @param published_ns when the packet was published
+     * @param pipelineDelay_us JeVois reported pipeline delay
+     * @param captureAge_s how old the frame was when it was parsed, from its estimated capture time
+     * @param time_s current time, used to age out old samples
+     */
+    void packetPublished(long firstByte_ns, long end_ns, long parsed_ns, long published_ns,
+                         double pipelineDelay_us, double captureAge_s, double time_s) {
+        recordConsumed();
+
+        if(firstByte_ns == 0 || end_ns == 0){
+            // Tracing was turned on part way through this one
+            havePublished = false;
+            return;
+        }
+        stageStats[STAGE_PIPELINE].record(Math.round(pipelineDelay_us), time_s);
+        stageStats[STAGE_RECEIVE].record((end_ns - firstByte_ns) / 1000, time_s);
+        stageStats[STAGE_PARSE].record((parsed_ns - end_ns) / 1000, time_s);
+        stageStats[STAGE_PUBLISH].record((published_ns - parsed_ns) / 1000, time_s);
+        tracedFrames++;
+
+        havePublished = true;
+        publishedEnableCount = enableCount;
+        this.published_ns = published_ns;
+        this.parsed_ns = parsed_ns;
+        this.publishedAge_s = captureAge_s;
+        this.statsTime = time_s;
+    }
+
+    /**
+     * Records how long robot code took to read the last published packet, if it did. Only the listener calls this.
+     */
+    private void recordConsumed() {
+        long read_ns = firstReadTime_ns.getAndSet(0);
+        if(!havePublished || publishedEnableCount != enableCount){
+            havePublished = false;
+            return;
+        }
+        if(read_ns == 0){
+            unreadFrames++;
+        } else if(read_ns >= published_ns){
+            stageStats[STAGE_CONSUME].record((read_ns - published_ns) / 1000, statsTime);
+            stageStats[STAGE_TOTAL].record(Math.round(publishedAge_s * 1000000.0) + (read_ns - parsed_ns) / 1000, statsTime);
+        }
+        havePublished = false;
+    }
+
+    /**
+     * Notes that robot code read the latest target info. Called by JeVoisInterface's getters, from any thread.
+     * Only the first read of each packet is stamped.
+     */
+    void noteRead() {
+        if(enabled && firstReadTime_ns.get() == 0){
+            firstReadTime_ns.compareAndSet(0, System.nanoTime());
+        }
+    }
+
+    /**
+     * Returns the name of a stage, for printing
+     * @param stage stage index, ex: STAGE_PARSE
+     */
+    public String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Returns the sliding-window statistics of one stage, in microseconds. Samples are recorded against
+     * JeVoisInterface.getStatsTime_s(), so pass that to the getters.
+     * @param stage stage index, ex: STAGE_PARSE
+     */
+    public WindowedHistogram getStageStats(int stage) {
+        return stageStats[stage];
+    }
+
+    /**
+     * Returns the number of packets traced since tracing was first turned on
+     */
+    public long getTracedFrames() {
+        return tracedFrames;
+    }
+
+    /**
+     * Returns the number of traced packets robot code never read before the next one replaced them
+     */
+    public long getUnreadFrames() {
+        return unreadFrames;
+    }
+
+    /**
+     * Returns a one-line summary of each stage's median and 99th percentile, in milliseconds.
+     * Allocates, so only use it for occasional printing.
+     * @param now_s current time, from JeVoisInterface.getStatsTime_s()
+     */
+    public String getSummary(double now_s) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < NUM_STAGES; i++){
+            if(i > 0){
+                sb.append(", ");
+            }
+            sb.append(STAGE_NAMES[i]).append(" ")
+              .append(String.format("%.3f/%.3f", stageStats[i].getPercentile(50, now_s) / 1000.0, stageStats[i].getPercentile(99, now_s) / 1000.0));
+        }
+        sb.append(" ms (p50/p99)");
+        return sb.toString();
+    }
+}
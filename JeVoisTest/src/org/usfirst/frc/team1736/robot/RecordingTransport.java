@@ -0,0 +1,192 @@
+package org.usfirst.frc.team1736.robot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Wraps another JeVoisTransport and saves every chunk of bytes received through it to a capture file,
+ * along with the time it arrived. The capture can be played back later, off the robot, with ReplayTransport.
+ * Bytes sent to the JeVois are passed through but not recorded.
+ * <br>
+ * <br>
+ * File format (big-endian, as written by DataOutputStream): the int CAPTURE_MAGIC, the int CAPTURE_VERSION,
+ * then one record per chunk: double arrival time in seconds, int byte count, then the bytes themselves.
+ * <br>
+ * <br>
+ * Writes go through a large buffer and are flushed about once a second, so the reader thread only touches
+ * the disk occasionally. At most a second or so of data is lost if power is cut.
+ * <br>
+ * <br>
+ * A JeVois streaming at 60Hz fills several MB an hour, even with the robot sitting disabled. Once the capture
+ * reaches its size limit it's closed, and the rest of the session isn't recorded.
+ */
+public class RecordingTransport implements JeVoisTransport {
+
+    /** "JVCA" - first four bytes of every capture file */
+    public static final int CAPTURE_MAGIC = 0x4A564341;
+    public static final int CAPTURE_VERSION = 1;
+
+    /** Default size limit for a capture file, in bytes. About two hours of 60Hz text packets. */
+    public static final long DEFAULT_MAX_CAPTURE_BYTES = 16 * 1024 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 65536;
+    // Bytes written to the file for each chunk, on top of the chunk itself
+    private static final int CHUNK_HEADER_LEN = 12;
+    private static final double FLUSH_PERIOD_S = 1.0;
+
+    private final JeVoisTransport inner;
+    private final DataOutputStream out;
+    private final long maxCaptureBytes;
+    private long captureBytes = 8;
+    private double lastFlushTime;
+    private long bytesRecorded = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+    private boolean full = false;
+
+    /**
+     * Starts recording everything received through a transport, up to DEFAULT_MAX_CAPTURE_BYTES.
+     * @param inner transport actually connected to the JeVois
+     * @param capturePath file to write the capture to. Overwritten if it already exists.
+     * @throws IOException if the capture file can't be created
+     */
+    public RecordingTransport(JeVoisTransport inner, String capturePath) throws IOException {
+        this(inner, capturePath, DEFAULT_MAX_CAPTURE_BYTES);
+    }
+
+    /**
+     * Starts recording everything received through a transport.
+     * @param inner transport actually connected to the JeVois
+     * @param capturePath file to write the capture to. Overwritten if it already exists.
+     * @param maxCaptureBytes most bytes to write to the capture file. Recording stops once the next chunk won't fit.
+     * @throws IOException if the capture file can't be created
+     */
+    public RecordingTransport(JeVoisTransport inner, String capturePath, long maxCaptureBytes) throws IOException {
+        this.inner = inner;
+        this.maxCaptureBytes = maxCaptureBytes;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(capturePath), WRITE_BUFFER_SIZE));
+        out.writeInt(CAPTURE_MAGIC);
+        out.writeInt(CAPTURE_VERSION);
+        lastFlushTime = inner.getTime_s();
+    }
+
+    /**
+     * Wraps a transport with a recorder, if possible.
+     * @param inner transport actually connected to the JeVois. May be null.
+     * @param capturePath file to write the capture to
+     * @param maxCaptureBytes most bytes to write to the capture file
+     * @return the recording transport, or inner itself if the capture file can't be created or inner is null
+     */
+    public static JeVoisTransport wrap(JeVoisTransport inner, String capturePath, long maxCaptureBytes) {
+        if(inner == null){
+            return null;
+        }
+        try {
+            return new RecordingTransport(inner, capturePath, maxCaptureBytes);
+        } catch (IOException e) {
+            DriverStation.reportError("Cannot create JeVois capture file " + capturePath + ": " + e.getMessage(), false);
+            return inner;
+        }
+    }
+
+    /**
+     * Returns the number of received bytes saved to the capture so far
+     */
+    public synchronized long getBytesRecorded() {
+        return bytesRecorded;
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, double timeout_s) {
+        int bytesRead = inner.read(dest, offset, length, timeout_s);
+        if(bytesRead > 0){
+            recordChunk(dest, offset, bytesRead, inner.getTime_s());
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Returns true if recording stopped because the capture reached its size limit
+     */
+    public synchronized boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Appends one received chunk to the capture. Locked so close() can't pull the file out from under us.
+     */
+    private synchronized void recordChunk(byte[] src, int offset, int bytesRead, double rxTime) {
+        if(!failed && !closed && !full){
+            if(captureBytes + CHUNK_HEADER_LEN + bytesRead > maxCaptureBytes){
+                // Keep the link up, and everything recorded so far, but stop growing the file
+                full = true;
+                DriverStation.reportWarning("JeVois capture reached " + captureBytes + " bytes, stopped recording", false);
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    DriverStation.reportError("Cannot finish JeVois capture file: " + e.getMessage(), false);
+                }
+                return;
+            }
+            try {
+                out.writeDouble(rxTime);
+                out.writeInt(bytesRead);
+                out.write(src, offset, bytesRead);
+                bytesRecorded += bytesRead;
+                captureBytes += CHUNK_HEADER_LEN + bytesRead;
+                if(rxTime - lastFlushTime > FLUSH_PERIOD_S){
+                    out.flush();
+                    lastFlushTime = rxTime;
+                }
+            } catch (IOException e) {
+                // Keep the link up, just stop recording
+                failed = true;
+                DriverStation.reportError("JeVois capture stopped: " + e.getMessage(), false);
+            }
+        }
+    }
+
+    @Override
+    public int bytesAvailable() {
+        return inner.bytesAvailable();
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        return inner.write(src, offset, length);
+    }
+
+    @Override
+    public void close() {
+        inner.close();
+        synchronized(this){
+            if(closed){
+                return;
+            }
+            closed = true;
+            if(full){
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException e) {
+                DriverStation.reportError("Cannot finish JeVois capture file: " + e.getMessage(), false);
+            }
+        }
+    }
+
+    @Override
+    public boolean reopen() {
+        // Keep recording into the same capture across the reconnect
+        return inner.reopen();
+    }
+
+    @Override
+    public double getTime_s() {
+        return inner.getTime_s();
+    }
+}
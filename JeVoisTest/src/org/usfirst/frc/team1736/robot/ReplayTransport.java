@@ -0,0 +1,365 @@
+package org.usfirst.frc.team1736.robot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Stand-in for a JeVois camera which plays back a recorded serial capture, for rerunning real match
+ * data through JeVoisInterface without a robot.
+ * <br>
+ * <br>
+ * Reads two kinds of capture:
+ * <ul>
+ * <li>Files written by RecordingTransport, with the arrival time of every chunk of bytes.</li>
+ * <li>Plain text, such as the console output of JeVoisInterface.blockAndPrintAllSerial(). There are no
+ * timestamps in these, so each line is assumed to take as long to arrive as it would at the serial baud rate,
+ * and each "Nothing Rx'ed" line is taken out and counted as the 100ms pause it stands for.</li>
+ * </ul>
+ * Playback starts when startReplay() is called, and runs at the recorded speed, some multiple of it, or as fast
+ * as the reader can take the bytes. Each read hands out bytes from at most one recorded chunk, and getTime_s()
+ * returns the time that chunk originally arrived, so the interface sees the same packet timing as it did in the match
+ * no matter how fast the replay runs. Unlike a real serial port, nothing is dropped if the reader falls behind.
+ * <br>
+ * <br>
+ * Command lines written to it are answered with "OK" ("ping" gets "ALIVE" first), but otherwise ignored. "echo" is
+ * answered with "ERR", since the capture has no JeVois clock to read. Answers are only handed out between lines of
+ * capture data, so they can't cut a recorded packet in two.
+ */
+public class ReplayTransport implements JeVoisTransport {
+
+    // Serial line rate assumed for captures without timestamps. 10 bits per byte at 115200 baud.
+    private static final double RAW_CAPTURE_BYTES_PER_S = 115200 / 10.0;
+    // What blockAndPrintAllSerial() prints when it waits 100ms and gets nothing
+    private static final String RAW_CAPTURE_IDLE_LINE = "Nothing Rx'ed";
+    private static final double RAW_CAPTURE_IDLE_TIME_S = 0.1;
+
+    private static final byte[] OK_RESPONSE = "OK\n".getBytes();
+    private static final byte[] PING_RESPONSE = "ALIVE\nOK\n".getBytes();
+    private static final byte[] ECHO_RESPONSE = "ERR Unsupported command\n".getBytes();
+
+    private final Object lock = new Object();
+
+    // The whole capture. Chunk i is data[chunkStart[i]] up to data[chunkStart[i+1]], and arrived at chunkTime[i].
+    private final byte[] data;
+    private final int[] chunkStart;
+    private final double[] chunkTime;
+    private final int numChunks;
+
+    // Playback speed relative to the recording. Zero or less means as fast as possible.
+    private final double speed;
+
+    // Playback state
+    private boolean started = false;
+    private long startTime_ns = 0;
+    private int nextChunk = 0;
+    private int nextChunkOffset = 0;
+    private boolean drained = false;
+    private long bytesDelivered = 0;
+    private boolean atLineStart = true;
+    private volatile double currentTime_s;
+
+    // Command responses waiting to be read, handed out ahead of capture data
+    private final byte[] responseBuffer = new byte[256];
+    private int responseLen = 0;
+
+    // Command line currently being received from the roboRIO side
+    private final byte[] cmdLine = new byte[256];
+    private int cmdLineLen = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Loads a capture file into memory, ready to play back.
+     * @param capturePath capture from RecordingTransport, or plain text serial output
+     * @param speed playback speed. 1.0 for real time, 10.0 for ten times faster, and 0 for as fast as possible.
+     * @throws IOException if the file can't be read, or is a RecordingTransport capture which is corrupt or too new
+     */
+    public ReplayTransport(String capturePath, double speed) throws IOException {
+        this.speed = speed;
+
+        byte[] file = Files.readAllBytes(Paths.get(capturePath));
+        ByteArrayOutputStream dataOut = new ByteArrayOutputStream(file.length);
+        int[] starts = new int[64];
+        double[] times = new double[64];
+        int count = 0;
+
+        if(file.length >= 8 && ByteBuffer.wrap(file).getInt(0) == RecordingTransport.CAPTURE_MAGIC){
+            ByteBuffer in = ByteBuffer.wrap(file);
+            in.position(4);
+            int version = in.getInt();
+            if(version != RecordingTransport.CAPTURE_VERSION){
+                throw new IOException(capturePath + " is capture version " + version + ", can only read version " + RecordingTransport.CAPTURE_VERSION);
+            }
+            // A record cut short by a power loss at the end of the file is ignored
+            while(in.remaining() >= 12){
+                double time = in.getDouble();
+                int len = in.getInt();
+                if(len < 0){
+                    throw new IOException(capturePath + " is corrupt, chunk " + count + " has negative length");
+                }
+                if(len > in.remaining()){
+                    break;
+                }
+                if(count == starts.length){
+                    starts = Arrays.copyOf(starts, count * 2);
+                    times = Arrays.copyOf(times, count * 2);
+                }
+                starts[count] = dataOut.size();
+                times[count] = time;
+                count++;
+                dataOut.write(file, in.position(), len);
+                in.position(in.position() + len);
+            }
+        } else {
+            // No timestamps. Make each line a chunk and time it by how long it takes to send.
+            double time = 0;
+            int lineStart = 0;
+            while(lineStart < file.length){
+                int lineEnd = lineStart;
+                while(lineEnd < file.length && file[lineEnd] != '\n'){
+                    lineEnd++;
+                }
+                int len = Math.min(lineEnd + 1, file.length) - lineStart;
+                String line = new String(file, lineStart, len, StandardCharsets.US_ASCII);
+                if(line.trim().equals(RAW_CAPTURE_IDLE_LINE)){
+                    time += RAW_CAPTURE_IDLE_TIME_S;
+                } else {
+                    if(count == starts.length){
+                        starts = Arrays.copyOf(starts, count * 2);
+                        times = Arrays.copyOf(times, count * 2);
+                    }
+                    time += len / RAW_CAPTURE_BYTES_PER_S;
+                    starts[count] = dataOut.size();
+                    times[count] = time;
+                    count++;
+                    dataOut.write(file, lineStart, len);
+                }
+                lineStart += len;
+            }
+        }
+
+        data = dataOut.toByteArray();
+        numChunks = count;
+        chunkStart = Arrays.copyOf(starts, count + 1);
+        chunkStart[count] = data.length;
+        chunkTime = Arrays.copyOf(times, count);
+        currentTime_s = (count > 0) ? chunkTime[0] : 0.0;
+    }
+
+    /**
+     * Starts playing back the capture. Does nothing if it's already started.
+     */
+    public void startReplay() {
+        synchronized(lock){
+            if(!started){
+                started = true;
+                startTime_ns = System.nanoTime();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns true once every byte of the capture has been read, and the reader has come back asking for more.
+     * At that point the reader is done with the last of the data.
+     */
+    public boolean isFinished() {
+        synchronized(lock){
+            return drained;
+        }
+    }
+
+    /**
+     * Blocks until the replay is finished, or the timeout expires.
+     * @param timeout_s longest time to wait
+     * @return true if the replay finished
+     */
+    public boolean waitForFinish(double timeout_s) {
+        long deadline_ns = System.nanoTime() + (long)(timeout_s * 1.0e9);
+        synchronized(lock){
+            while(!drained && !closed){
+                long wait_ns = deadline_ns - System.nanoTime();
+                if(wait_ns <= 0){
+                    break;
+                }
+                try {
+                    lock.wait(wait_ns / 1000000, (int)(wait_ns % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return drained;
+        }
+    }
+
+    /**
+     * Returns the number of recorded chunks in the capture
+     */
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    /**
+     * Returns the total number of recorded bytes in the capture
+     */
+    public int getNumBytes() {
+        return data.length;
+    }
+
+    /**
+     * Returns the time between the first and last recorded chunks, in seconds
+     */
+    public double getDuration_s() {
+        return (numChunks > 1) ? chunkTime[numChunks - 1] - chunkTime[0] : 0.0;
+    }
+
+    /**
+     * Returns the number of capture bytes handed to the reader so far
+     */
+    public long getBytesDelivered() {
+        synchronized(lock){
+            return bytesDelivered;
+        }
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, double timeout_s) {
+        long deadline_ns = System.nanoTime() + (long)(timeout_s * 1.0e9);
+
+        synchronized(lock){
+            while(true){
+                if(closed){
+                    return -1;
+                }
+
+                if(responseLen > 0 && atLineStart){
+                    int count = Math.min(responseLen, length);
+                    System.arraycopy(responseBuffer, 0, dest, offset, count);
+                    System.arraycopy(responseBuffer, count, responseBuffer, 0, responseLen - count);
+                    responseLen -= count;
+                    return count;
+                }
+
+                long now_ns = System.nanoTime();
+                long wait_ns = deadline_ns - now_ns;
+
+                if(started && nextChunk < numChunks){
+                    long due_ns = chunkDueTime_ns(nextChunk);
+                    if(due_ns <= now_ns){
+                        return readChunk(dest, offset, length);
+                    }
+                    wait_ns = Math.min(wait_ns, due_ns - now_ns);
+                } else if(started && !drained){
+                    drained = true;
+                    lock.notifyAll();
+                }
+
+                // Nothing to hand out. Sleep until the next chunk is due, a command comes in, or we time out.
+                if(deadline_ns - now_ns <= 0){
+                    return 0;
+                }
+                try {
+                    lock.wait(wait_ns / 1000000, (int)(wait_ns % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int bytesAvailable() {
+        synchronized(lock){
+            int available = atLineStart ? responseLen : 0;
+            if(started && nextChunk < numChunks && chunkDueTime_ns(nextChunk) <= System.nanoTime()){
+                available += chunkStart[nextChunk + 1] - chunkStart[nextChunk] - nextChunkOffset;
+            }
+            return available;
+        }
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        synchronized(lock){
+            if(closed){
+                return -1;
+            }
+            for(int i = 0; i < length; i++){
+                byte b = src[offset + i];
+                if(b == '\n'){
+                    handleCommand();
+                    cmdLineLen = 0;
+                } else if(b != '\r' && cmdLineLen < cmdLine.length){
+                    cmdLine[cmdLineLen++] = b;
+                }
+            }
+            lock.notifyAll();
+            return length;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized(lock){
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public double getTime_s() {
+        return currentTime_s;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which a chunk should be handed out
+     */
+    private long chunkDueTime_ns(int chunk) {
+        if(speed <= 0){
+            return startTime_ns;
+        }
+        return startTime_ns + (long)((chunkTime[chunk] - chunkTime[0]) / speed * 1.0e9);
+    }
+
+    /**
+     * Copies out as much of the next chunk as will fit. Only called with the lock held.
+     */
+    private int readChunk(byte[] dest, int offset, int length) {
+        int start = chunkStart[nextChunk] + nextChunkOffset;
+        int count = Math.min(chunkStart[nextChunk + 1] - start, length);
+        System.arraycopy(data, start, dest, offset, count);
+        currentTime_s = chunkTime[nextChunk];
+        bytesDelivered += count;
+        atLineStart = (data[start + count - 1] == '\n');
+        nextChunkOffset += count;
+        if(chunkStart[nextChunk] + nextChunkOffset >= chunkStart[nextChunk + 1]){
+            nextChunk++;
+            nextChunkOffset = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Queues up the response to one complete command line from the roboRIO
+     */
+    private void handleCommand() {
+        String cmd = new String(cmdLine, 0, cmdLineLen).trim();
+        byte[] response = OK_RESPONSE;
+        if(cmd.equals("ping")){
+            response = PING_RESPONSE;
+        } else if(cmd.startsWith("echo ")){
+            response = ECHO_RESPONSE;
+        }
+        if(responseLen + response.length <= responseBuffer.length){
+            System.arraycopy(response, 0, responseBuffer, responseLen, response.length);
+            responseLen += response.length;
+        }
+    }
+}
@@ -1,6 +1,13 @@
 package org.usfirst.frc.team1736.robot;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+
 import org.usfirst.frc.team1736.lib.LoadMon.CasseroleRIOLoadMonitor;
+import org.usfirst.frc.team1736.lib.LoopTiming.LoopTimingMonitor;
+import org.usfirst.frc.team1736.lib.MatchLog.BinaryMatchLog;
+import org.usfirst.frc.team1736.lib.Telemetry.TelemetrySink;
 
 import edu.wpi.first.wpilibj.IterativeRobot;
 import edu.wpi.first.wpilibj.smartdashboard.SendableChooser;
@@ -17,6 +24,52 @@ public class Robot extends IterativeRobot {
 
     JeVoisInterface testCam;
     CasseroleRIOLoadMonitor loadMon;
+    volatile BinaryMatchLog matchLog;
+    
+    // Match log goes in the user's home dir on the RIO. 125k records is about 16MB, and a bit over half an hour of logging.
+    // A new log is started every boot, and only the newest few from earlier boots are kept.
+    static final String MATCH_LOG_DIR = "/home/lvuser/";
+    static final int MATCH_LOG_MAX_RECORDS = 125000;
+    static final int OLD_MATCH_LOGS_KEPT = 3;
+    
+    // Save everything the JeVois sends us, for replaying through the vision code later with ReplayTransport.
+    // A new capture is started every boot. Each is capped at 16MB, and only the newest few from earlier boots are kept,
+    // so they can't fill up the RIO's flash over an event.
+    static final boolean RECORD_VISION_SERIAL = true;
+    static final long VISION_CAPTURE_MAX_BYTES = RecordingTransport.DEFAULT_MAX_CAPTURE_BYTES;
+    static final int OLD_VISION_CAPTURES_KEPT = 3;
+    
+    // Break down vision latency by stage, from capture to being read here
+    static final boolean TRACE_VISION_LATENCY = true;
+    
+    // Estimate where the target is now, making up for vision latency
+    static final boolean PREDICT_TARGET = true;
+    
+    // Timing of each periodic loop, split up by what it's doing
+    static final double LOOP_BUDGET_S = 0.02;
+    static final int PHASE_VISION_READ = 0;
+    static final int PHASE_LOAD_MON_READ = 1;
+    static final int PHASE_OUTPUT = 2;
+    LoopTimingMonitor loopTiming = new LoopTimingMonitor(LOOP_BUDGET_S, "vision read", "load monitor read", "output");
+    
+    // Console output, written out in the background so the loop never waits on it
+    TelemetrySink telemetry = TelemetrySink.getConsole();
+    int visionOnlineChannel = telemetry.addChannel("Vision Online");
+    int tgtVisibleChannel = telemetry.addChannel("Target Visible");
+    int tgtAngleChannel = telemetry.addChannel("Target Angle");
+    int tgtRangeChannel = telemetry.addChannel("Target Range");
+    int predictedTgtAngleChannel = telemetry.addChannel("Predicted Target Angle");
+    int packetRxRateChannel = telemetry.addChannel("Serial Packet RX Rate");
+    int jeVoisFramerateChannel = telemetry.addChannel("JeVois Framerate");
+    int jeVoisCpuLoadChannel = telemetry.addChannel("JeVois CPU Load");
+    int jeVoisLinkLossesChannel = telemetry.addChannel("JeVois Link Losses");
+    int jeVoisLinkDelayChannel = telemetry.addChannel("JeVois Link Delay (ms)");
+    int visionLatencyP99Channel = telemetry.addChannel("Vision Latency p99 (ms)");
+    int rioCpuLoadChannel = telemetry.addChannel("RIO CPU Load");
+    int rioMemLoadChannel = telemetry.addChannel("RIO MEM Load");
+    int loopTimeP99Channel = telemetry.addChannel("Loop Time p99 (ms)");
+    int loopOverrunsChannel = telemetry.addChannel("Loop Overruns");
+    int telemetryDroppedChannel = telemetry.addChannel("Telemetry Dropped");
     
     /**
      * This function is run when the robot is first started up and should be
@@ -24,8 +77,57 @@ public class Robot extends IterativeRobot {
      */
     @Override
     public void robotInit() {
-        testCam = new JeVoisInterface(true);
+        CasseroleRIOLoadMonitor.registerCurrentThread("RobotMain");
+        if(RECORD_VISION_SERIAL){
+            deleteOldFiles(MATCH_LOG_DIR, "jevois_", ".cap", OLD_VISION_CAPTURES_KEPT);
+            JeVoisTransport visionPort = RecordingTransport.wrap(JeVoisInterface.openSerialPort(), 
+                                                                 MATCH_LOG_DIR + "jevois_" + System.currentTimeMillis() + ".cap",
+                                                                 VISION_CAPTURE_MAX_BYTES);
+            testCam = new JeVoisInterface(true, visionPort);
+        } else {
+            testCam = new JeVoisInterface(true);
+        }
+        testCam.setLatencyTracing(TRACE_VISION_LATENCY);
+        testCam.setTargetPrediction(PREDICT_TARGET);
         loadMon = new CasseroleRIOLoadMonitor();
+        
+        // Writing out the whole match log file takes a while on the RIO's flash, so do it in the background.
+        // Logging starts once it's ready.
+        Thread matchLogCreator = new Thread(new Runnable(){
+            public void run(){
+                deleteOldFiles(MATCH_LOG_DIR, "matchlog_", ".bin", OLD_MATCH_LOGS_KEPT);
+                BinaryMatchLog log = BinaryMatchLog.create(MATCH_LOG_DIR + "matchlog_" + System.currentTimeMillis() + ".bin", MATCH_LOG_MAX_RECORDS);
+                if(log != null){
+                    testCam.setMatchLog(log);
+                    loadMon.setMatchLog(log);
+                    matchLog = log;
+                }
+            }
+        });
+        matchLogCreator.setName("MatchLogCreator");
+        matchLogCreator.setDaemon(true);
+        matchLogCreator.setPriority(Thread.MIN_PRIORITY);
+        matchLogCreator.start();
+    }
+    
+    /**
+     * Deletes all but the newest few files in a directory with the given name prefix and extension
+     * @param dir directory to look in
+     * @param prefix start of the file names, ex: "jevois_"
+     * @param suffix end of the file names, ex: ".cap"
+     * @param keep how many of the newest files to leave alone
+     */
+    static void deleteOldFiles(String dir, final String prefix, final String suffix, int keep) {
+        File[] files = new File(dir).listFiles((d, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        if(files == null || files.length <= keep){
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        for(int i = keep; i < files.length; i++){
+            if(!files[i].delete()){
+                System.out.println("WARNING: cannot delete old log " + files[i].getPath());
+            }
+        }
     }
     
     /**
@@ -41,11 +143,19 @@ public class Robot extends IterativeRobot {
      */
     @Override
     public void disabledPeriodic() {
-        System.out.print("s");
-        System.out.println(testCam.getPacketRxRate_PPS());
-        System.out.print("r");
-        System.out.println(loadMon.getCPULoadPct());
-
+        loopTiming.startLoop();
+        
+        loopTiming.startPhase(PHASE_VISION_READ);
+        double packetRxRate = testCam.getPacketRxRate_PPS();
+        
+        loopTiming.startPhase(PHASE_LOAD_MON_READ);
+        double rioCpuLoad = loadMon.getCPULoadPct();
+        
+        loopTiming.startPhase(PHASE_OUTPUT);
+        telemetry.log(packetRxRateChannel, packetRxRate);
+        telemetry.log(rioCpuLoadChannel, rioCpuLoad);
+        
+        loopTiming.endLoop();
     }
     
     
@@ -78,27 +188,46 @@ public class Robot extends IterativeRobot {
      */
     @Override
     public void teleopPeriodic() {
-        System.out.println("==============+++==============");
-        System.out.print("Vision Online: ");
-        System.out.println(testCam.isVisionOnline());
-        System.out.print("Target Visible: ");
-        System.out.println(testCam.isTgtVisible());
-        System.out.print("Target Angle: ");
-        System.out.println(testCam.getTgtAngle_Deg());
-        System.out.print("Target Range:");
-        System.out.println(testCam.getTgtRange_in());
-        System.out.print("Serial Packet RX Rate: ");
-        System.out.println(testCam.getPacketRxRate_PPS());
-        System.out.print("JeVois Framerate: ");
-        System.out.println(testCam.getJeVoisFramerate_FPS());
-        System.out.print("JeVois CPU Load: ");
-        System.out.println(testCam.getJeVoisCpuLoad_pct());
-        System.out.print("RIO CPU Load: ");
-        System.out.println(loadMon.getCPULoadPct());
-        System.out.print("RIO MEM Load: ");
-        System.out.println(loadMon.getMemLoadPct());
-        System.out.println("===============================\n\n\n");
+        loopTiming.startLoop();
+        
+        loopTiming.startPhase(PHASE_VISION_READ);
+        boolean visionOnline = testCam.isVisionOnline();
+        boolean tgtVisible = testCam.isTgtVisible();
+        double tgtAngle = testCam.getTgtAngle_Deg();
+        double tgtRange = testCam.getTgtRange_in();
+        double predictedTgtAngle = testCam.getPredictedTgtAngle_Deg();
+        double packetRxRate = testCam.getPacketRxRate_PPS();
+        double jeVoisFramerate = testCam.getJeVoisFramerate_FPS();
+        double jeVoisCpuLoad = testCam.getJeVoisCpuLoad_pct();
+        long jeVoisLinkLosses = testCam.getLinkLossCount();
+        double jeVoisLinkDelay = testCam.getLinkDelay_s();
+        double visionLatencyP99 = testCam.getLatencyTracer().getStageStats(PacketLatencyTracer.STAGE_TOTAL).getPercentile(99, testCam.getStatsTime_s());
+        
+        loopTiming.startPhase(PHASE_LOAD_MON_READ);
+        double rioCpuLoad = loadMon.getCPULoadPct();
+        double rioMemLoad = loadMon.getMemLoadPct();
+        
+        loopTiming.startPhase(PHASE_OUTPUT);
+        telemetry.logMessage("==============+++==============");
+        telemetry.log(visionOnlineChannel, visionOnline);
+        telemetry.log(tgtVisibleChannel, tgtVisible);
+        telemetry.log(tgtAngleChannel, tgtAngle);
+        telemetry.log(tgtRangeChannel, tgtRange);
+        telemetry.log(predictedTgtAngleChannel, predictedTgtAngle);
+        telemetry.log(packetRxRateChannel, packetRxRate);
+        telemetry.log(jeVoisFramerateChannel, jeVoisFramerate);
+        telemetry.log(jeVoisCpuLoadChannel, jeVoisCpuLoad);
+        telemetry.log(jeVoisLinkLossesChannel, jeVoisLinkLosses);
+        telemetry.log(jeVoisLinkDelayChannel, jeVoisLinkDelay * 1000.0);
+        telemetry.log(visionLatencyP99Channel, visionLatencyP99 / 1000.0);
+        telemetry.log(rioCpuLoadChannel, rioCpuLoad);
+        telemetry.log(rioMemLoadChannel, rioMemLoad);
+        telemetry.log(loopTimeP99Channel, loopTiming.getLoopTimeStats().getPercentile(99) / 1000.0);
+        telemetry.log(loopOverrunsChannel, loopTiming.getOverrunCount());
+        telemetry.log(telemetryDroppedChannel, telemetry.getDroppedQueueFullCount() + telemetry.getDroppedRateLimitedCount());
+        telemetry.logMessage("===============================\n\n\n");
         
+        loopTiming.endLoop();
     }
 
     /**
@@ -0,0 +1,113 @@
+package org.usfirst.frc.team1736.robot;
+
+import edu.wpi.first.wpilibj.SerialPort;
+
+/**
+ * JeVoisTransport over a real roboRIO serial port (normally the USB serial link to the JeVois).
+ * Blocking reads are done inside the serial driver, so they return as soon as a byte arrives.
+ * <br>
+ * <br>
+ * If the USB cable is pulled or the camera browns out, WPILib throws from every call on the port.
+ * Those are turned into the broken link return values, and reopen() opens the port again once the
+ * camera is back.
+ */
+public class SerialPortTransport implements JeVoisTransport {
+
+    private final int baudRate;
+    private final SerialPort.Port portId;
+    private volatile SerialPort port;
+    // Last timeout handed to the driver, so we only make the (slow) native call when it changes
+    private double portTimeout_s = -1;
+    // Used when the caller's bytes don't start at the beginning of their array
+    private final byte[] writeScratch = new byte[256];
+
+    /**
+     * Opens the serial port. Throws whatever WPILib throws if the port can't be opened.
+     * @param baudRate serial baud rate
+     * @param portId which roboRIO port to open
+     */
+    public SerialPortTransport(int baudRate, SerialPort.Port portId) {
+        this.baudRate = baudRate;
+        this.portId = portId;
+        port = new SerialPort(baudRate, portId);
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, double timeout_s) {
+        byte[] rxBytes;
+        try {
+            SerialPort p = port;
+            int bytesAvailable = p.getBytesReceived();
+
+            if(bytesAvailable > 0){
+                // Something is already buffered, no need to wait at all.
+                rxBytes = p.read(Math.min(bytesAvailable, length));
+            } else if(timeout_s > 0){
+                if(timeout_s != portTimeout_s){
+                    p.setTimeout(timeout_s);
+                    portTimeout_s = timeout_s;
+                }
+                // Blocks until the first byte of the next burst shows up.
+                rxBytes = p.read(1);
+            } else {
+                return 0;
+            }
+        } catch (RuntimeException e) {
+            // Device went away underneath us
+            return -1;
+        }
+
+        System.arraycopy(rxBytes, 0, dest, offset, rxBytes.length);
+        return rxBytes.length;
+    }
+
+    @Override
+    public int bytesAvailable() {
+        try {
+            return port.getBytesReceived();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        try {
+            if(offset == 0){
+                return port.write(src, length);
+            }
+
+            // SerialPort can only write from the start of an array
+            synchronized(writeScratch){
+                byte[] buf = (length <= writeScratch.length) ? writeScratch : new byte[length];
+                System.arraycopy(src, offset, buf, 0, length);
+                return port.write(buf, length);
+            }
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            port.free();
+        } catch (RuntimeException e) {
+            // Already gone
+        }
+    }
+
+    @Override
+    public boolean reopen() {
+        close();
+        try {
+            port = new SerialPort(baudRate, portId);
+            portTimeout_s = -1;
+            return true;
+        } catch (RuntimeException e) {
+            // Not back yet
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,504 @@
+package org.usfirst.frc.team1736.robot;
+
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * In-memory stand-in for a JeVois camera, for exercising JeVoisInterface without any hardware.
+ * <br>
+ * <br>
+ * Every command line written to it is answered with "OK" ("ping" gets "ALIVE" first, like the real camera, and
+ * "echo N" gets "ECHO N t_us" with a reading of its own clock, which runs a little fast and starts at power on).
+ * After "streamon", it emits "{frame,T/F,angle,range,fps,cpuload,cputemp,delay}" packets at the configured
+ * rate, until "streamoff". After "binmode on", the same information is sent as binary packets instead, until "binmode off".
+ * After "multitgt N", up to N targets are listed in each packet: the real one, plus a couple of smaller
+ * distractors. Packets are generated on demand as the reader asks for bytes, based on how
+ * much time has passed, so rates of many kHz are possible. If the reader falls so far behind that the
+ * output buffer fills, packets are dropped and counted, the same way a real serial buffer would overflow.
+ * <br>
+ * <br>
+ * unplug(), replug() and restartCamera() fake a pulled cable and a camera reboot, for testing reconnects.
+ * <br>
+ * <br>
+ * The simulated target sweeps slowly back and forth in angle and range, and drops out of view
+ * for a short time every few seconds.
+ */
+public class SimulatedJeVoisTransport implements JeVoisTransport {
+
+    // Output buffer size. Must be a power of two.
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+    private static final int OUTPUT_BUFFER_MASK = OUTPUT_BUFFER_SIZE - 1;
+    // Room we leave for command responses, and the longest packet we can generate
+    private static final int MAX_PACKET_LEN = 256;
+
+    private static final byte[] OK_RESPONSE = "OK\n".getBytes();
+    private static final byte[] PING_RESPONSE = "ALIVE\nOK\n".getBytes();
+
+    // Simulated pipeline timing, reported in each packet
+    private static final int SIM_PIPELINE_DELAY_US = 10000;
+    private static final double SIM_CPU_LOAD_PCT = 45.0;
+    private static final double SIM_CPU_TEMP_C = 50.0;
+
+    // Simulated JeVois clock, which reads this much at power on and gains on the FPGA clock at this rate
+    private static final double SIM_CLOCK_START_S = 5.0;
+    private static final double SIM_CLOCK_DRIFT_PPM = 40.0;
+
+    // Simulated image, and the most targets it ever has in view (the real one plus distractors)
+    private static final double SIM_IMAGE_WIDTH_PX = 352;
+    private static final double SIM_IMAGE_HEIGHT_PX = 288;
+    private static final int SIM_NUM_TARGETS = 3;
+
+    private final Object lock = new Object();
+
+    // Bytes waiting to be read by the roboRIO side. Indices are absolute counts, wrapped with the mask.
+    private final byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    private long outputWriteIdx = 0;
+    private long outputReadIdx = 0;
+
+    // Command line currently being received from the roboRIO side
+    private final byte[] cmdLine = new byte[256];
+    private int cmdLineLen = 0;
+
+    // Packet generation state
+    private double packetRate_Hz;
+    private boolean streaming = false;
+    private long streamStartTime_ns = 0;
+    private long packetsGenerated = 0;
+    private long packetsDropped = 0;
+    private int frameCounter = 0;
+    // Frame counter of the first packet since the stream clock last restarted
+    private int streamStartFrame = 0;
+    private boolean binaryMode = false;
+    private int maxTargets = 0;
+    private final byte[] packetScratch = new byte[MAX_PACKET_LEN];
+    private final double[] packetValues = new double[JeVoisPacketFramer.MAX_FIELDS];
+    private double powerOnTime = Timer.getFPGATimestamp();
+
+    private boolean closed = false;
+    // Cable pulled, and whether the port has to be reopened before it works again
+    private boolean unplugged = false;
+    private boolean needsReopen = false;
+
+    /**
+     * Creates a simulated JeVois.
+     * @param packetRate_Hz rate to emit target packets at once streaming is turned on
+     */
+    public SimulatedJeVoisTransport(double packetRate_Hz) {
+        this.packetRate_Hz = packetRate_Hz;
+    }
+
+    /**
+     * Changes the packet emission rate. Takes effect immediately.
+     */
+    public void setPacketRate(double rate_Hz) {
+        synchronized(lock){
+            restartStreamClock();
+            packetRate_Hz = rate_Hz;
+        }
+    }
+
+    /**
+     * Returns the total number of packets the simulated camera has produced
+     */
+    public long getPacketsGenerated() {
+        synchronized(lock){
+            return packetsGenerated;
+        }
+    }
+
+    /**
+     * Returns the System.nanoTime() a packet was due to be sent at, for measuring latency. Only meaningful for
+     * packets sent since the last "streamon" or rate change.
+     * @param frame frame counter from the packet
+     */
+    public long getPacketDueTime_ns(long frame) {
+        synchronized(lock){
+            return streamStartTime_ns + (long)((frame - streamStartFrame + 1) * 1.0e9 / packetRate_Hz);
+        }
+    }
+
+    /**
+     * Returns the number of packets thrown away because the reader wasn't keeping up
+     */
+    public long getPacketsDropped() {
+        synchronized(lock){
+            return packetsDropped;
+        }
+    }
+
+    /**
+     * Acts like the USB cable was pulled. Every read and write fails until replug() and then reopen() are
+     * called, and the camera comes back up in its power-on state, not streaming.
+     */
+    public void unplug() {
+        synchronized(lock){
+            unplugged = true;
+            needsReopen = true;
+            resetCamera();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Acts like the USB cable was plugged back in. The port still has to be reopened before it works.
+     */
+    public void replug() {
+        synchronized(lock){
+            unplugged = false;
+        }
+    }
+
+    /**
+     * Acts like the camera rebooted without the link dropping (for example a short brownout). It comes
+     * back up in its power-on state, not streaming.
+     */
+    public void restartCamera() {
+        synchronized(lock){
+            resetCamera();
+        }
+    }
+
+    /**
+     * Puts the camera back to its power-on state. Only called with the lock held.
+     */
+    private void resetCamera() {
+        streaming = false;
+        binaryMode = false;
+        maxTargets = 0;
+        frameCounter = 0;
+        cmdLineLen = 0;
+        outputReadIdx = outputWriteIdx;
+        powerOnTime = Timer.getFPGATimestamp();
+    }
+
+    /**
+     * Returns the simulated JeVois clock reading right now, in seconds, for checking clock offset estimates
+     */
+    public double getJeVoisTime_s() {
+        synchronized(lock){
+            return SIM_CLOCK_START_S + (Timer.getFPGATimestamp() - powerOnTime) * (1 + SIM_CLOCK_DRIFT_PPM * 1.0e-6);
+        }
+    }
+
+    @Override
+    public boolean reopen() {
+        synchronized(lock){
+            if(closed || unplugged){
+                return false;
+            }
+            needsReopen = false;
+            return true;
+        }
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, double timeout_s) {
+        long deadline_ns = System.nanoTime() + (long)(timeout_s * 1.0e9);
+
+        synchronized(lock){
+            while(true){
+                if(closed || needsReopen){
+                    return -1;
+                }
+
+                generateDuePackets();
+
+                int available = (int)(outputWriteIdx - outputReadIdx);
+                if(available > 0){
+                    int count = Math.min(available, length);
+                    for(int i = 0; i < count; i++){
+                        dest[offset + i] = outputBuffer[(int)(outputReadIdx & OUTPUT_BUFFER_MASK)];
+                        outputReadIdx++;
+                    }
+                    return count;
+                }
+
+                // Nothing to hand out. Sleep until the next packet is due, a command comes in, or we time out.
+                long now_ns = System.nanoTime();
+                long wait_ns = deadline_ns - now_ns;
+                if(wait_ns <= 0){
+                    return 0;
+                }
+                if(streaming && packetRate_Hz > 0){
+                    long nextPacket_ns = streamStartTime_ns + (long)((packetsGenerated + 1) * 1.0e9 / packetRate_Hz);
+                    wait_ns = Math.min(wait_ns, Math.max(nextPacket_ns - now_ns, 1000));
+                }
+                try {
+                    lock.wait(wait_ns / 1000000, (int)(wait_ns % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int bytesAvailable() {
+        synchronized(lock){
+            if(closed || needsReopen){
+                return 0;
+            }
+            generateDuePackets();
+            return (int)(outputWriteIdx - outputReadIdx);
+        }
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        synchronized(lock){
+            if(closed || needsReopen){
+                return -1;
+            }
+            for(int i = 0; i < length; i++){
+                byte b = src[offset + i];
+                if(b == '\n'){
+                    handleCommand();
+                    cmdLineLen = 0;
+                } else if(b != '\r' && cmdLineLen < cmdLine.length){
+                    cmdLine[cmdLineLen++] = b;
+                }
+            }
+            lock.notifyAll();
+            return length;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized(lock){
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Acts on one complete command line from the roboRIO
+     */
+    private void handleCommand() {
+        if(cmdLineMatches("ping")){
+            appendOutput(PING_RESPONSE, PING_RESPONSE.length);
+            return;
+        } else if(cmdLineMatches("streamon")){
+            if(!streaming){
+                streaming = true;
+                restartStreamClock();
+            }
+        } else if(cmdLineMatches("streamoff")){
+            streaming = false;
+        } else if(cmdLineMatches("binmode on")){
+            binaryMode = true;
+        } else if(cmdLineMatches("binmode off")){
+            binaryMode = false;
+        } else if(cmdLineLen > 11 && cmdLineStartsWith("setmapping ")){
+            // Loading a mapping restarts the vision module, with its default settings and a fresh frame counter
+            streaming = false;
+            binaryMode = false;
+            maxTargets = 0;
+            frameCounter = 0;
+        } else if(cmdLineLen > 9 && cmdLineStartsWith("multitgt ")){
+            int count = 0;
+            for(int i = 9; i < cmdLineLen && cmdLine[i] >= '0' && cmdLine[i] <= '9'; i++){
+                count = count * 10 + (cmdLine[i] - '0');
+            }
+            maxTargets = Math.min(count, JeVoisPacketFramer.MAX_TARGETS);
+        } else if(cmdLineLen > 5 && cmdLineStartsWith("echo ")){
+            // Only happens about once a second, so building a string here is fine
+            String reply = "ECHO " + new String(cmdLine, 5, cmdLineLen - 5).trim() + " " + Math.round(getJeVoisTime_s() * 1.0e6) + "\n";
+            byte[] replyBytes = reply.getBytes();
+            appendOutput(replyBytes, replyBytes.length);
+        }
+        // Everything else (setcam, ...) is just accepted.
+        appendOutput(OK_RESPONSE, OK_RESPONSE.length);
+    }
+
+    private boolean cmdLineMatches(String cmd) {
+        if(cmdLineLen != cmd.length()){
+            return false;
+        }
+        for(int i = 0; i < cmdLineLen; i++){
+            if(cmdLine[i] != cmd.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean cmdLineStartsWith(String prefix) {
+        if(cmdLineLen < prefix.length()){
+            return false;
+        }
+        for(int i = 0; i < prefix.length(); i++){
+            if(cmdLine[i] != prefix.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void restartStreamClock() {
+        streamStartTime_ns = System.nanoTime();
+        packetsGenerated = 0;
+        streamStartFrame = frameCounter;
+    }
+
+    /**
+     * Writes out every packet which should have been sent by now, given the configured rate
+     */
+    private void generateDuePackets() {
+        if(!streaming || packetRate_Hz <= 0){
+            return;
+        }
+
+        long elapsed_ns = System.nanoTime() - streamStartTime_ns;
+        long packetsDue = (long)(elapsed_ns * packetRate_Hz / 1.0e9);
+
+        while(packetsGenerated < packetsDue){
+            // Always leave room for a command response
+            if(OUTPUT_BUFFER_SIZE - (outputWriteIdx - outputReadIdx) >= 2 * MAX_PACKET_LEN){
+                int len = formatPacket(packetsGenerated / packetRate_Hz);
+                appendOutput(packetScratch, len);
+            } else {
+                packetsDropped++;
+            }
+            packetsGenerated++;
+            frameCounter++;
+        }
+    }
+
+    private void appendOutput(byte[] src, int length) {
+        for(int i = 0; i < length; i++){
+            outputBuffer[(int)(outputWriteIdx & OUTPUT_BUFFER_MASK)] = src[i];
+            outputWriteIdx++;
+        }
+    }
+
+    /**
+     * Builds one packet into packetScratch. Text packets are built without allocating.
+     * @param time_s simulation time of the frame
+     * @return length of the packet in bytes
+     */
+    private int formatPacket(double time_s) {
+        boolean visible = (time_s % 5.0) < 4.0;
+        double angle = visible ? 20.0 * Math.sin(time_s * 0.5) : 0.0;
+        double range = visible ? 150.0 + 50.0 * Math.cos(time_s * 0.3) : 0.0;
+
+        packetValues[0] = frameCounter;
+        packetValues[1] = visible ? 1.0 : 0.0;
+        packetValues[2] = angle;
+        packetValues[3] = range;
+        packetValues[4] = packetRate_Hz;
+        packetValues[5] = SIM_CPU_LOAD_PCT;
+        packetValues[6] = SIM_CPU_TEMP_C;
+        packetValues[7] = SIM_PIPELINE_DELAY_US;
+        int numValues = JeVoisPacketFramer.NUM_EXPECTED_FIELDS;
+        if(maxTargets > 0){
+            numValues = fillTargetList(visible, angle, range, numValues);
+        }
+
+        if(binaryMode){
+            return JeVoisPacketFramer.encodeBinaryPacket(packetValues, numValues, packetScratch, 0);
+        }
+
+        int idx = 0;
+        packetScratch[idx++] = '{';
+        idx = formatNumber(frameCounter, 0, idx);
+        packetScratch[idx++] = ',';
+        packetScratch[idx++] = (byte)(visible ? 'T' : 'F');
+        packetScratch[idx++] = ',';
+        idx = formatNumber(angle, 3, idx);
+        packetScratch[idx++] = ',';
+        idx = formatNumber(range, 3, idx);
+        packetScratch[idx++] = ',';
+        idx = formatNumber(packetRate_Hz, 1, idx);
+        packetScratch[idx++] = ',';
+        idx = formatNumber(SIM_CPU_LOAD_PCT, 1, idx);
+        packetScratch[idx++] = ',';
+        idx = formatNumber(SIM_CPU_TEMP_C, 1, idx);
+        packetScratch[idx++] = ',';
+        idx = formatNumber(SIM_PIPELINE_DELAY_US, 0, idx);
+        for(int i = JeVoisPacketFramer.NUM_EXPECTED_FIELDS; i < numValues; i++){
+            packetScratch[idx++] = ',';
+            // Area is the last value of each target, and the only one which isn't a whole number
+            boolean isArea = (i > JeVoisPacketFramer.TARGET_COUNT_FIELD_IDX) && 
+                             ((i - JeVoisPacketFramer.TARGET_COUNT_FIELD_IDX) % JeVoisPacketFramer.FIELDS_PER_TARGET == 0);
+            idx = formatNumber(packetValues[i], isArea ? 1 : 0, idx);
+        }
+        packetScratch[idx++] = '}';
+        packetScratch[idx++] = '\n';
+        return idx;
+    }
+
+    /**
+     * Adds the target count and list to packetValues. The real target is biggest and listed first.
+     * Distractors stay in view all the time, in fixed spots.
+     * @param numValues number of values already in packetValues
+     * @return number of values in packetValues afterward
+     */
+    private int fillTargetList(boolean visible, double angle, double range, int numValues) {
+        int countIdx = numValues++;
+        int count = 0;
+        for(int i = 0; i < SIM_NUM_TARGETS && count < maxTargets; i++){
+            if(i == 0 && !visible){
+                continue;
+            }
+            // The real target moves with the angle and shrinks with range, distractors are small and still
+            double width = (i == 0) ? 6000.0 / range : 20.0 - 5.0 * i;
+            double height = width * 0.75;
+            double centerX = (i == 0) ? SIM_IMAGE_WIDTH_PX / 2 + angle * 4.0 : SIM_IMAGE_WIDTH_PX * i / 4.0;
+            double centerY = (i == 0) ? SIM_IMAGE_HEIGHT_PX / 2 : SIM_IMAGE_HEIGHT_PX / 4.0;
+            packetValues[numValues++] = Math.round(centerX);
+            packetValues[numValues++] = Math.round(centerY);
+            packetValues[numValues++] = Math.round(centerX - width / 2);
+            packetValues[numValues++] = Math.round(centerY - height / 2);
+            packetValues[numValues++] = Math.round(width);
+            packetValues[numValues++] = Math.round(height);
+            packetValues[numValues++] = Math.round(width * height * 0.8 * 10.0) / 10.0;
+            count++;
+        }
+        packetValues[countIdx] = count;
+        return numValues;
+    }
+
+    /**
+     * Writes a number as ASCII into packetScratch
+     * @param value number to write
+     * @param decimals digits to keep after the decimal point
+     * @param idx index in packetScratch to start writing at
+     * @return index just past the last character written
+     */
+    private int formatNumber(double value, int decimals, int idx) {
+        if(value < 0){
+            packetScratch[idx++] = '-';
+            value = -value;
+        }
+
+        long scale = 1;
+        for(int i = 0; i < decimals; i++){
+            scale *= 10;
+        }
+        long scaled = Math.round(value * scale);
+        long whole = scaled / scale;
+        long frac = scaled % scale;
+
+        // Whole part, written backward then reversed into place
+        int start = idx;
+        do {
+            packetScratch[idx++] = (byte)('0' + (whole % 10));
+            whole /= 10;
+        } while(whole > 0);
+        for(int i = start, j = idx - 1; i < j; i++, j--){
+            byte tmp = packetScratch[i];
+            packetScratch[i] = packetScratch[j];
+            packetScratch[j] = tmp;
+        }
+
+        if(decimals > 0){
+            packetScratch[idx++] = '.';
+            for(long div = scale / 10; div > 0; div /= 10){
+                packetScratch[idx++] = (byte)('0' + (frac / div) % 10);
+            }
+        }
+        return idx;
+    }
+
+}
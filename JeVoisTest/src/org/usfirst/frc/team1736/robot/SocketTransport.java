@@ -0,0 +1,115 @@
+package org.usfirst.frc.team1736.robot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * JeVoisTransport over a TCP socket. Handy for running without a roboRIO serial port, for example
+ * by bridging a Linux pseudo-terminal or a real serial device to a socket:
+ * <br>
+ * <code>socat PTY,link=/tmp/jevois,raw,echo=0 TCP-LISTEN:5800,reuseaddr</code>
+ * <br>
+ * <code>socat /dev/ttyACM0,raw,echo=0,b115200 TCP-LISTEN:5800,reuseaddr</code>
+ */
+public class SocketTransport implements JeVoisTransport {
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+    private volatile InputStream in;
+    private volatile OutputStream out;
+    // Last timeout handed to the socket, so we only change it when needed
+    private int socketTimeout_ms = -1;
+
+    /**
+     * Connects to a socket carrying the JeVois byte stream.
+     * @param host host name or IP address
+     * @param port TCP port number
+     * @throws IOException if the connection can't be made
+     */
+    public SocketTransport(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        connect();
+    }
+
+    private void connect() throws IOException {
+        Socket newSocket = new Socket();
+        newSocket.setTcpNoDelay(true);
+        newSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        in = newSocket.getInputStream();
+        out = newSocket.getOutputStream();
+        socketTimeout_ms = -1;
+        socket = newSocket;
+    }
+
+    @Override
+    public int read(byte[] dest, int offset, int length, double timeout_s) {
+        try {
+            int bytesAvailable = in.available();
+            if(bytesAvailable == 0 && timeout_s <= 0){
+                return 0;
+            }
+            if(bytesAvailable == 0){
+                // Zero means "forever" to a socket, so always wait at least 1ms
+                int timeout_ms = Math.max(1, (int)(timeout_s * 1000));
+                if(timeout_ms != socketTimeout_ms){
+                    socket.setSoTimeout(timeout_ms);
+                    socketTimeout_ms = timeout_ms;
+                }
+            }
+            return in.read(dest, offset, bytesAvailable > 0 ? Math.min(bytesAvailable, length) : length);
+        } catch (SocketTimeoutException e) {
+            return 0;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int bytesAvailable() {
+        try {
+            return in.available();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int write(byte[] src, int offset, int length) {
+        try {
+            out.write(src, offset, length);
+            out.flush();
+            return length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean reopen() {
+        close();
+        try {
+            connect();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
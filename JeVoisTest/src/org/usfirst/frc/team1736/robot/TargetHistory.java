@@ -0,0 +1,182 @@
+package org.usfirst.frc.team1736.robot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size history of recent target observations, indexed by capture timestamp.
+ * Lets robot code ask "where was the target at time t?" so vision can be lined up with gyro or
+ * odometry samples taken at a different moment.
+ * <br>
+ * <br>
+ * Storage is a preallocated ring of primitives, so neither adding nor looking up allocates anything.
+ * Lookups are a binary search over the stored timestamps (O(log N)), followed by linear interpolation
+ * between the two nearest observations.
+ * <br>
+ * <br>
+ * One thread (the JeVois listener) adds observations, any number of threads may look them up at the
+ * same time without locking. A lookup which races with the writer overwriting the slots it was reading
+ * simply retries.
+ */
+public class TargetHistory {
+
+    // Layout of each record in the data array
+    private static final int TIME_OFFSET = 0;
+    private static final int ANGLE_OFFSET = 1;
+    private static final int RANGE_OFFSET = 2;
+    private static final int VISIBLE_OFFSET = 3;
+    private static final int RECORD_SIZE = 4;
+
+    private final int capacity;
+    private final int mask;
+
+    // Records, stored as raw double bits so each element read is a volatile read
+    private final AtomicLongArray data;
+
+    // Total number of observations ever added. Observation n lives in slot (n & mask).
+    private volatile long writeCount = 0;
+
+    /**
+     * Creates an empty history
+     * @param capacity number of observations to keep. Rounded up to a power of two.
+     */
+    public TargetHistory(int capacity) {
+        int size = 2;
+        while(size < capacity){
+            size *= 2;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.data = new AtomicLongArray(size * RECORD_SIZE);
+    }
+
+    /**
+     * Records a new observation. Observations must be added in order of increasing time -
+     * anything older than the newest stored observation is ignored.
+     * @param time_s capture timestamp of the observation
+     * @param visible whether the target was seen
+     * @param angle_deg target angle
+     * @param range_in target range
+     * @return true if stored, false if ignored for being out of order
+     */
+    public boolean add(double time_s, boolean visible, double angle_deg, double range_in) {
+        long count = writeCount;
+        if(count > 0 && time_s <= getDouble(count - 1, TIME_OFFSET)){
+            return false;
+        }
+
+        int base = (int)(count & mask) * RECORD_SIZE;
+        data.lazySet(base + TIME_OFFSET, Double.doubleToRawLongBits(time_s));
+        data.lazySet(base + ANGLE_OFFSET, Double.doubleToRawLongBits(angle_deg));
+        data.lazySet(base + RANGE_OFFSET, Double.doubleToRawLongBits(range_in));
+        data.lazySet(base + VISIBLE_OFFSET, visible ? 1 : 0);
+        writeCount = count + 1;
+        return true;
+    }
+
+    /**
+     * Returns the target angle at the given time, interpolated between the two nearest observations.
+     * @param time_s timestamp to look up, on the same clock as the observations
+     * @return interpolated angle, or NaN if the time is outside the stored history or the target
+     *         wasn't visible in both neighboring observations
+     */
+    public double getAngleAt(double time_s) {
+        return interpolate(time_s, ANGLE_OFFSET);
+    }
+
+    /**
+     * Returns the target range at the given time, interpolated between the two nearest observations.
+     * @param time_s timestamp to look up, on the same clock as the observations
+     * @return interpolated range, or NaN if the time is outside the stored history or the target
+     *         wasn't visible in both neighboring observations
+     */
+    public double getRangeAt(double time_s) {
+        return interpolate(time_s, RANGE_OFFSET);
+    }
+
+    /**
+     * Returns the timestamp of the oldest observation still stored, or NaN if empty
+     */
+    public double getOldestTime() {
+        while(true){
+            long count = writeCount;
+            if(count == 0){
+                return Double.NaN;
+            }
+            long oldest = Math.max(0, count - capacity + 1);
+            double time = getDouble(oldest, TIME_OFFSET);
+            if(oldest >= writeCount - capacity + 1){
+                return time;
+            }
+        }
+    }
+
+    /**
+     * Returns the timestamp of the newest observation, or NaN if empty
+     */
+    public double getNewestTime() {
+        long count = writeCount;
+        return (count == 0) ? Double.NaN : getDouble(count - 1, TIME_OFFSET);
+    }
+
+    /**
+     * Returns the number of observations currently stored
+     */
+    public int size() {
+        return (int)Math.min(writeCount, capacity - 1);
+    }
+
+    private double interpolate(double time_s, int valueOffset) {
+        while(true){
+            long count = writeCount;
+            if(count == 0){
+                return Double.NaN;
+            }
+
+            // The writer may be overwriting the slot just before the oldest, so don't count that one.
+            long lo = Math.max(0, count - capacity + 1);
+            long hi = count - 1;
+            double result;
+
+            if(time_s < getDouble(lo, TIME_OFFSET) || time_s > getDouble(hi, TIME_OFFSET)){
+                result = Double.NaN;
+            } else {
+                // Find the newest observation at or before the requested time
+                long low = lo;
+                long high = hi;
+                while(low < high){
+                    long mid = (low + high + 1) >>> 1;
+                    if(getDouble(mid, TIME_OFFSET) <= time_s){
+                        low = mid;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+
+                long before = low;
+                long after = Math.min(low + 1, hi);
+                if(!isVisible(before) || !isVisible(after)){
+                    result = Double.NaN;
+                } else {
+                    double t0 = getDouble(before, TIME_OFFSET);
+                    double t1 = getDouble(after, TIME_OFFSET);
+                    double v0 = getDouble(before, valueOffset);
+                    double v1 = getDouble(after, valueOffset);
+                    result = (t1 > t0) ? v0 + (v1 - v0) * (time_s - t0) / (t1 - t0) : v0;
+                }
+            }
+
+            // Only trust the result if nothing we read was overwritten in the meantime
+            if(lo >= writeCount - capacity + 1){
+                return result;
+            }
+        }
+    }
+
+    private double getDouble(long idx, int offset) {
+        return Double.longBitsToDouble(data.get((int)(idx & mask) * RECORD_SIZE + offset));
+    }
+
+    private boolean isVisible(long idx) {
+        return data.get((int)(idx & mask) * RECORD_SIZE + VISIBLE_OFFSET) != 0;
+    }
+}
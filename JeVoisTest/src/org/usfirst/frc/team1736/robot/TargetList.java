@@ -0,0 +1,140 @@
+package org.usfirst.frc.team1736.robot;
+
+/**
+ * Every target the JeVois reported in a single frame, for robot code which wants to pick its own target
+ * rather than use the one the JeVois chose. Only filled in once the JeVois has been asked to send target
+ * lists with {@link JeVoisInterface#setMaxTargets(int)}. Targets are in the order the JeVois sent them,
+ * which is largest first.
+ * <br>
+ * <br>
+ * Values are kept in one preallocated primitive array per quantity, with room for
+ * {@link JeVoisPacketFramer#MAX_TARGETS} targets, so refilling a list never allocates. Keep one instance
+ * around and refill it each loop with {@link JeVoisInterface#getTargets(TargetList)}. Like
+ * TargetObservation, a list is a private snapshot, and is not meant to be shared between threads.
+ */
+public class TargetList {
+
+    /** Most targets a list can hold */
+    public static final int MAX_TARGETS = JeVoisPacketFramer.MAX_TARGETS;
+
+    private long frameCounter = -1;
+    private double tgtTime = 0;
+    private double rxTime = 0;
+    private int count = 0;
+
+    private final double[] centroidX = new double[MAX_TARGETS];
+    private final double[] centroidY = new double[MAX_TARGETS];
+    private final double[] boxX = new double[MAX_TARGETS];
+    private final double[] boxY = new double[MAX_TARGETS];
+    private final double[] boxWidth = new double[MAX_TARGETS];
+    private final double[] boxHeight = new double[MAX_TARGETS];
+    private final double[] area = new double[MAX_TARGETS];
+
+    /**
+     * Overwrite the frame information and the number of targets. Only JeVoisInterface fills these in.
+     */
+    void set(long frameCounter, double tgtTime, double rxTime, int count){
+        this.frameCounter = frameCounter;
+        this.tgtTime = tgtTime;
+        this.rxTime = rxTime;
+        this.count = Math.min(count, MAX_TARGETS);
+    }
+
+    /**
+     * Overwrite one target. Only JeVoisInterface fills these in.
+     */
+    void setTarget(int idx, double centroidX, double centroidY, double boxX, double boxY,
+                   double boxWidth, double boxHeight, double area){
+        this.centroidX[idx] = centroidX;
+        this.centroidY[idx] = centroidY;
+        this.boxX[idx] = boxX;
+        this.boxY[idx] = boxY;
+        this.boxWidth[idx] = boxWidth;
+        this.boxHeight[idx] = boxHeight;
+        this.area[idx] = area;
+    }
+
+    /**
+     * Returns the JeVois frame index the targets came from, or -1 if no packet has been received yet.
+     */
+    public long getFrameCounter(){
+        return frameCounter;
+    }
+
+    /**
+     * Returns the estimated FPGA timestamp the frame was captured at
+     */
+    public double getTgtTime(){
+        return tgtTime;
+    }
+
+    /**
+     * Returns the FPGA timestamp the packet was received at
+     */
+    public double getRxTime(){
+        return rxTime;
+    }
+
+    /**
+     * Returns the number of targets in the list. Zero if none were seen, or target lists aren't turned on.
+     */
+    public int getCount(){
+        return count;
+    }
+
+    /**
+     * Returns the horizontal position of a target's centroid in the image, in pixels from the left edge
+     * @param idx target index, from 0 to getCount()-1
+     */
+    public double getCentroidX_px(int idx){
+        return centroidX[idx];
+    }
+
+    /**
+     * Returns the vertical position of a target's centroid in the image, in pixels from the top edge
+     * @param idx target index, from 0 to getCount()-1
+     */
+    public double getCentroidY_px(int idx){
+        return centroidY[idx];
+    }
+
+    /**
+     * Returns the left edge of a target's bounding box, in pixels from the left edge of the image
+     * @param idx target index, from 0 to getCount()-1
+     */
+    public double getBoxX_px(int idx){
+        return boxX[idx];
+    }
+
+    /**
+     * Returns the top edge of a target's bounding box, in pixels from the top edge of the image
+     * @param idx target index, from 0 to getCount()-1
+     */
+    public double getBoxY_px(int idx){
+        return boxY[idx];
+    }
+
+    /**
+     * Returns the width of a target's bounding box in pixels
+     * @param idx target index, from 0 to getCount()-1
+     */
+    public double getBoxWidth_px(int idx){
+        return boxWidth[idx];
+    }
+
+    /**
+     * Returns the height of a target's bounding box in pixels
+     * @param idx target index, from 0 to getCount()-1
+     */
+    public double getBoxHeight_px(int idx){
+        return boxHeight[idx];
+    }
+
+    /**
+     * Returns the filled-in area of a target's contour, in square pixels
+     * @param idx target index, from 0 to getCount()-1
+     */
+    public double getArea_px2(int idx){
+        return area[idx];
+    }
+}
@@ -0,0 +1,105 @@
+package org.usfirst.frc.team1736.robot;
+
+/**
+ * One consistent snapshot of everything the JeVois reported in a single packet.
+ * Get one from {@link JeVoisInterface#getLatestObservation()}. All values come from the same frame,
+ * so (unlike calling the individual JeVoisInterface getters back to back) the angle can never be from
+ * one frame while the range is from another.
+ * <br>
+ * <br>
+ * Robot code can only read these values. To avoid allocating a new snapshot every loop, keep one
+ * instance around and refill it with {@link JeVoisInterface#getLatestObservation(TargetObservation)}.
+ */
+public class TargetObservation {
+
+    private long frameCounter = -1;
+    private boolean tgtVisible = false;
+    private double tgtAngleDeg = 0;
+    private double tgtRange = 0;
+    private double tgtTime = 0;
+    private double rxTime = 0;
+    private double jeVoisCpuTempC = 0;
+    private double jeVoisCpuLoadPct = 0;
+    private double jeVoisFramerateFPS = 0;
+
+    /**
+     * Overwrite every value in the snapshot. Only JeVoisInterface fills these in.
+     */
+    void set(long frameCounter, boolean tgtVisible, double tgtAngleDeg, double tgtRange, double tgtTime, double rxTime,
+             double jeVoisCpuTempC, double jeVoisCpuLoadPct, double jeVoisFramerateFPS){
+        this.frameCounter = frameCounter;
+        this.tgtVisible = tgtVisible;
+        this.tgtAngleDeg = tgtAngleDeg;
+        this.tgtRange = tgtRange;
+        this.tgtTime = tgtTime;
+        this.rxTime = rxTime;
+        this.jeVoisCpuTempC = jeVoisCpuTempC;
+        this.jeVoisCpuLoadPct = jeVoisCpuLoadPct;
+        this.jeVoisFramerateFPS = jeVoisFramerateFPS;
+    }
+
+    /**
+     * Returns the JeVois frame index this observation came from, or -1 if no packet has been received yet.
+     * Compare against a previous snapshot to tell if new data has arrived.
+     */
+    public long getFrameCounter(){
+        return frameCounter;
+    }
+
+    /**
+     * Returns true if the JeVois saw a target in this frame
+     */
+    public boolean isTgtVisible(){
+        return tgtVisible;
+    }
+
+    /**
+     * Returns the target's angle relative to the camera in degrees. Positive means to the right of center.
+     */
+    public double getTgtAngle_Deg(){
+        return tgtAngleDeg;
+    }
+
+    /**
+     * Returns the target's range from the camera in inches
+     */
+    public double getTgtRange_in(){
+        return tgtRange;
+    }
+
+    /**
+     * Returns the estimated FPGA timestamp the frame was captured at
+     */
+    public double getTgtTime(){
+        return tgtTime;
+    }
+
+    /**
+     * Returns the FPGA timestamp the packet was received at
+     */
+    public double getRxTime(){
+        return rxTime;
+    }
+
+    /**
+     * Returns the JeVois's CPU Temperature in deg C, as reported with this frame
+     */
+    public double getJeVoisCPUTemp_C(){
+        return jeVoisCpuTempC;
+    }
+
+    /**
+     * Returns the JeVois's CPU Load in percent of max, as reported with this frame
+     */
+    public double getJeVoisCpuLoad_pct(){
+        return jeVoisCpuLoadPct;
+    }
+
+    /**
+     * Returns the JeVois's pipline framerate in Frames per second, as reported with this frame
+     */
+    public double getJeVoisFramerate_FPS(){
+        return jeVoisFramerateFPS;
+    }
+
+}
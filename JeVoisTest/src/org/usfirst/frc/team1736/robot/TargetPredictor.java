@@ -0,0 +1,241 @@
+package org.usfirst.frc.team1736.robot;
+
+/**
+ * Alpha-beta (constant velocity) tracking filter over target angle and range, so robot code can ask where the
+ * target is right now, rather than where it was when the frame was captured a pipeline delay and a serial
+ * transfer ago.
+ * <br>
+ * <br>
+ * Each observation is compared with where the filter predicted the target would be at the observation's capture
+ * time. The filter then moves its angle and range part way (alpha) toward the observation, and its rates of change
+ * by a smaller amount (beta). Predictions for any other time extrapolate from the latest estimate along those rates,
+ * for up to MAX_PREDICT_S.
+ * <br>
+ * <br>
+ * An observation which lands further than the gate from the prediction is assumed to be a one-frame glitch (a
+ * reflection, a partly hidden target) and is skipped. If several in a row are outside the gate, the target really
+ * did jump, so the track starts over from the latest one. The track is also dropped when the target has been out of
+ * view, or no observations have come in, for longer than MAX_COAST_S.
+ * <br>
+ * <br>
+ * Update is constant time, and nothing is allocated after construction. Only one thread updates the filter at a time.
+ * Predictions may be read from any thread without locking. A reader which catches an update part way through retries.
+ */
+public class TargetPredictor {
+
+    /** Default position gain */
+    public static final double DEFAULT_ALPHA = 0.5;
+    /** Default rate gain, from the Benedict-Bordner relation beta = alpha^2 / (2 - alpha) for the default position gain */
+    public static final double DEFAULT_BETA = DEFAULT_ALPHA * DEFAULT_ALPHA / (2 - DEFAULT_ALPHA);
+
+    // How far an observation can be from the prediction before it's treated as an outlier
+    private static final double ANGLE_GATE_DEG = 5.0;
+    private static final double RANGE_GATE_IN = 24.0;
+    // Outliers in a row before the track is restarted on the latest observation
+    private static final int MAX_CONSECUTIVE_OUTLIERS = 3;
+    // How long the track is kept with the target out of view, or with no observations at all
+    private static final double MAX_COAST_S = 0.5;
+    // Farthest past the latest estimate we'll extrapolate. Beyond this, the estimate is held.
+    private static final double MAX_PREDICT_S = 0.25;
+
+    private final double alpha;
+    private final double beta;
+
+    // Filter state, published together. Readers retry if they catch the updater part way through.
+    private volatile long publishSeq = 0;
+    private volatile boolean valid = false;
+    private volatile double stateTime = 0;
+    private volatile double angle_deg = 0;
+    private volatile double angleRate_degps = 0;
+    private volatile double range_in = 0;
+    private volatile double rangeRate_inps = 0;
+
+    // Updater only
+    private int numUpdates = 0;
+    private int consecutiveOutliers = 0;
+    private double lastVisibleTime = 0;
+
+    private volatile long outlierCount = 0;
+    private volatile long trackRestarts = 0;
+
+    /**
+     * Creates a predictor with the default gains
+     */
+    public TargetPredictor() {
+        this(DEFAULT_ALPHA, DEFAULT_BETA);
+    }
+
+    /**
+     * Creates a predictor with no track yet
+     * @param alpha how far to move the position toward each observation, 0 to 1. Higher follows faster but is noisier.
+     * @param beta how far to move the rate toward each observation, 0 to 1. Usually much smaller than alpha.
+     */
+    public TargetPredictor(double alpha, double beta) {
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    /**
+     * Adds one observation. Observations must come in order of capture time. Only call from one thread at a time.
+     * @param time_s FPGA timestamp the frame was captured at
+     * @param visible whether the target was seen. Angle and range are ignored if not.
+     * @param angle_deg target angle
+     * @param range_in target range
+     * @return true if the observation was used, false if it was skipped as an outlier, out of order, or not visible
+     */
+    public boolean update(double time_s, boolean visible, double angle_deg, double range_in) {
+        if(!visible){
+            if(valid && time_s - lastVisibleTime > MAX_COAST_S){
+                publish(false, stateTime, this.angle_deg, 0, this.range_in, 0);
+            }
+            return false;
+        }
+        lastVisibleTime = time_s;
+
+        double dt = time_s - stateTime;
+        if(!valid || dt > MAX_COAST_S){
+            // Nothing to go on, or it's too old to trust
+            startTrack(time_s, angle_deg, range_in);
+            return true;
+        }
+        if(dt <= 0){
+            return false;
+        }
+
+        double predAngle = this.angle_deg + angleRate_degps * dt;
+        double predRange = this.range_in + rangeRate_inps * dt;
+        double angleResidual = angle_deg - predAngle;
+        double rangeResidual = range_in - predRange;
+
+        if(Math.abs(angleResidual) > ANGLE_GATE_DEG || Math.abs(rangeResidual) > RANGE_GATE_IN){
+            outlierCount++;
+            consecutiveOutliers++;
+            if(consecutiveOutliers >= MAX_CONSECUTIVE_OUTLIERS){
+                // Not a glitch, the target moved. Follow it.
+                trackRestarts++;
+                startTrack(time_s, angle_deg, range_in);
+                return true;
+            }
+            return false;
+        }
+        consecutiveOutliers = 0;
+
+        // Until there are two points to get a rate from, take the rate straight from them
+        double rateGain = (numUpdates == 1) ? 1.0 : beta;
+        numUpdates++;
+        publish(true, time_s,
+                predAngle + alpha * angleResidual, angleRate_degps + rateGain * angleResidual / dt,
+                predRange + alpha * rangeResidual, rangeRate_inps + rateGain * rangeResidual / dt);
+        return true;
+    }
+
+    /**
+     * Drops the track, for when the camera has restarted or the robot code wants to start fresh.
+     * Only call from the thread which calls update().
+     */
+    public void reset() {
+        consecutiveOutliers = 0;
+        numUpdates = 0;
+        publish(false, 0, 0, 0, 0, 0);
+    }
+
+    private void startTrack(double time_s, double angle_deg, double range_in) {
+        consecutiveOutliers = 0;
+        numUpdates = 1;
+        publish(true, time_s, angle_deg, 0, range_in, 0);
+    }
+
+    private void publish(boolean valid, double time, double angle, double angleRate, double range, double rangeRate) {
+        publishSeq++;
+        this.valid = valid;
+        this.stateTime = time;
+        this.angle_deg = angle;
+        this.angleRate_degps = angleRate;
+        this.range_in = range;
+        this.rangeRate_inps = rangeRate;
+        publishSeq++;
+    }
+
+    /**
+     * Returns the predicted target angle at a time, in degrees
+     * @param time_s FPGA timestamp. Usually now, or a little ahead to allow for the mechanism's response time.
+     * @return predicted angle, or NaN if there's no track or it's gone stale
+     */
+    public double getAngleAt(double time_s) {
+        double result, t;
+        long seq;
+        do {
+            seq = publishSeq;
+            t = time_s - stateTime;
+            result = isTracking(t) ? angle_deg + angleRate_degps * Math.min(t, MAX_PREDICT_S) : Double.NaN;
+        } while((seq & 1) != 0 || seq != publishSeq);
+        return result;
+    }
+
+    /**
+     * Returns the predicted target range at a time, in inches
+     * @param time_s FPGA timestamp. Usually now, or a little ahead to allow for the mechanism's response time.
+     * @return predicted range, or NaN if there's no track or it's gone stale
+     */
+    public double getRangeAt(double time_s) {
+        double result, t;
+        long seq;
+        do {
+            seq = publishSeq;
+            t = time_s - stateTime;
+            result = isTracking(t) ? range_in + rangeRate_inps * Math.min(t, MAX_PREDICT_S) : Double.NaN;
+        } while((seq & 1) != 0 || seq != publishSeq);
+        return result;
+    }
+
+    /**
+     * Returns true if there's a track, and it's recent enough to predict from for a time this far past it.
+     * Going backward is always allowed. Going forward, the estimate is extrapolated for up to MAX_PREDICT_S,
+     * then held until the track is MAX_COAST_S old.
+     */
+    private boolean isTracking(double timeSinceState) {
+        return valid && timeSinceState <= MAX_COAST_S;
+    }
+
+    /**
+     * Returns true if there's a track to predict from
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Returns the estimated rate of change of the target angle, in degrees per second
+     */
+    public double getAngleRate_degps() {
+        return angleRate_degps;
+    }
+
+    /**
+     * Returns the estimated rate of change of the target range, in inches per second
+     */
+    public double getRangeRate_inps() {
+        return rangeRate_inps;
+    }
+
+    /**
+     * Returns the capture time of the observation the latest estimate is based on
+     */
+    public double getStateTime() {
+        return stateTime;
+    }
+
+    /**
+     * Returns the number of observations skipped as outliers
+     */
+    public long getOutlierCount() {
+        return outlierCount;
+    }
+
+    /**
+     * Returns the number of times the track started over because the target jumped
+     */
+    public long getTrackRestarts() {
+        return trackRestarts;
+    }
+}
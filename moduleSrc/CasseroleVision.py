@@ -3,8 +3,51 @@ import cv2
 import numpy as np
 import time
 import re
+import struct
 from datetime import datetime
 
+# Binary packet format constants. These must be aligned with the roboRIO code (JeVoisPacketFramer).
+BINARY_SYNC_CHAR = "\x01"
+BINARY_TYPE_TARGET = 1
+BINARY_TYPE_MULTI_TARGET = 2
+BINARY_TARGET_FORMAT = "<BIBffHHHI"
+BINARY_TARGET_ENTRY_FORMAT = "<HHHHHHf"
+
+# Most targets we will list in one packet. Must be aligned with the roboRIO code.
+MAX_TARGETS_SENT = 8
+
+# CRC-16/CCITT lookup table (polynomial 0x1021), one entry per byte value
+CRC16_TABLE = []
+for i in range(256):
+    crc = i << 8
+    for bit in range(8):
+        crc = ((crc << 1) ^ 0x1021) if (crc & 0x8000) else (crc << 1)
+    CRC16_TABLE.append(crc & 0xFFFF)
+
+## CRC-16/CCITT, starting from 0xFFFF, of a bytes object
+def crc16(data):
+    crc = 0xFFFF
+    for b in data:
+        crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ b) & 0xFF]) & 0xFFFF
+    return crc
+
+## Pack bytes 7 bits at a time, least significant bits first, into a string of characters below 0x80.
+# sendSerial takes a string, and would UTF-8 encode anything higher into two bytes.
+def pack7(data):
+    out = []
+    bitBuffer = 0
+    numBits = 0
+    for b in data:
+        bitBuffer |= b << numBits
+        numBits += 8
+        while numBits >= 7:
+            out.append(chr(bitBuffer & 0x7F))
+            bitBuffer >>= 7
+            numBits -= 7
+    if numBits > 0:
+        out.append(chr(bitBuffer & 0x7F))
+    return "".join(out)
+
 ## Detects stuff for FRC
 #
 # Add some description of your module here.
@@ -57,6 +100,12 @@ class CasseroleVision:
         self.CPUTemp_C = "0"
         self.pipelineDelay_us = "0"
 
+        #Serial packet format. Text by default, the roboRIO can ask for binary with "binmode on".
+        self.binaryMode = False
+
+        #Number of targets to list in each packet, largest first. Off by default, the roboRIO can ask with "multitgt N".
+        self.maxTargetsSent = 0
+
         #data structure object to hold info about the present data processed from the image fram
         self.curTargets = []
 
@@ -120,7 +169,7 @@ class CasseroleVision:
                     #Calculate centroid X and Y
                     c_x = int(moments['m10']/moments['m00'])
                     c_y = int(moments['m01']/moments['m00'])
-                    self.curTargets.append(TargetObservation(c_x, c_y, area, w, h)) 
+                    self.curTargets.append(TargetObservation(c_x, c_y, area, w, h, br_x, br_y)) 
 
         #If we have some contours, figure out which is the target.
         if(len(self.curTargets) > 0):
@@ -152,9 +201,20 @@ class CasseroleVision:
         pipeline_end_time = datetime.now() - pipline_start_time
         self.pipelineDelay_us = pipeline_end_time.microseconds
         
+        # Pick out the targets to list, biggest first
+        sentTargets = []
+        if(self.maxTargetsSent > 0):
+            sentTargets = sorted(self.curTargets, key=lambda tgt: tgt.boundedArea, reverse=True)[:self.maxTargetsSent]
+
         # Send processed data about target location and current status
         # Note the order and number of params here must match with the roboRIO code.
-        jevois.sendSerial("{{{},{},{},{},{},{},{},{}}}\n".format(self.frame,("T" if self.tgtAvailable else "F"),self.tgtAngle, self.tgtRange,self.framerate_fps,self.CPULoad_pct,self.CPUTemp_C,self.pipelineDelay_us))
+        if(self.binaryMode):
+            jevois.sendSerial(self.formatBinaryPacket(sentTargets))
+        elif(self.maxTargetsSent > 0):
+            targetList = "".join(",{},{},{},{},{},{},{}".format(tgt.X, tgt.Y, tgt.boxX, tgt.boxY, tgt.width, tgt.height, tgt.boundedArea) for tgt in sentTargets)
+            jevois.sendSerial("{{{},{},{},{},{},{},{},{},{}{}}}\n".format(self.frame,("T" if self.tgtAvailable else "F"),self.tgtAngle, self.tgtRange,self.framerate_fps,self.CPULoad_pct,self.CPUTemp_C,self.pipelineDelay_us,len(sentTargets),targetList))
+        else:
+            jevois.sendSerial("{{{},{},{},{},{},{},{},{}}}\n".format(self.frame,("T" if self.tgtAvailable else "F"),self.tgtAngle, self.tgtRange,self.framerate_fps,self.CPULoad_pct,self.CPUTemp_C,self.pipelineDelay_us))
         
 
         # Broadcast the frame if we have an output sink available
@@ -184,6 +244,29 @@ class CasseroleVision:
             self.CPUTemp_C = results.group(3)
             
 
+    # ###################################################################################################
+    ## Build the binary version of the target info packet: sync char, two length chars, then the
+    # payload plus its CRC, packed 7 bits per char. The JeVois adds the newline.
+    # Lists sentTargets too, if target lists are turned on.
+    def formatBinaryPacket(self, sentTargets):
+        payload = struct.pack(BINARY_TARGET_FORMAT,
+                              BINARY_TYPE_MULTI_TARGET if self.maxTargetsSent > 0 else BINARY_TYPE_TARGET,
+                              self.frame & 0xFFFFFFFF,
+                              1 if self.tgtAvailable else 0,
+                              float(self.tgtAngle),
+                              float(self.tgtRange),
+                              min(int(round(float(self.framerate_fps) * 100)), 0xFFFF),
+                              min(int(round(float(self.CPULoad_pct) * 100)), 0xFFFF),
+                              min(int(round(float(self.CPUTemp_C) * 100)), 0xFFFF),
+                              int(self.pipelineDelay_us) & 0xFFFFFFFF)
+        if(self.maxTargetsSent > 0):
+            payload += struct.pack("<B", len(sentTargets))
+            for tgt in sentTargets:
+                payload += struct.pack(BINARY_TARGET_ENTRY_FORMAT, tgt.X, tgt.Y, tgt.boxX, tgt.boxY, tgt.width, tgt.height, float(tgt.boundedArea))
+        payload += struct.pack("<H", crc16(payload))
+        packed = pack7(payload)
+        return BINARY_SYNC_CHAR + chr(len(packed) & 0x7F) + chr((len(packed) >> 7) & 0x7F) + packed
+
     # ###################################################################################################
     ## Parse a serial command forwarded to us by the JeVois Engine, return a string
     def parseSerial(self, str):
@@ -198,13 +281,25 @@ class CasseroleVision:
             return self.hello()
         elif str == "Geevoooice":
             return self.hi()
+        elif str == "binmode on":
+            self.binaryMode = True
+            return "Binary packets on"
+        elif str == "binmode off":
+            self.binaryMode = False
+            return "Binary packets off"
+        elif str.startswith("multitgt "):
+            self.maxTargetsSent = max(0, min(int(str[9:]), MAX_TARGETS_SENT))
+            return "Listing up to {} targets".format(self.maxTargetsSent)
+        elif str.startswith("echo "):
+            # Send back our clock reading, so the roboRIO can time the link and line our clock up with its own
+            return "ECHO {} {}".format(str[5:].strip(), int(time.monotonic() * 1000000))
         return "ERR: Unsupported command. "
 
     # ###################################################################################################
     ## Return a string that describes the custom commands we support, for the JeVois help message
     def supportedCommands(self):
         # use \n seperator if your module supports several commands
-        return "hello - print hello using python"
+        return "hello - print hello using python\nbinmode on|off - send target info as binary packets with a checksum, or as text\nmultitgt N - list up to N targets in each packet, 0 for none\necho N - reply with N and the time in microseconds, for timing the link"
 
     # ###################################################################################################
     ## Internal method that gets invoked as a custom command
@@ -217,10 +312,12 @@ class CasseroleVision:
 
 
 class TargetObservation(object):
-    def __init__(self, X_in, Y_in, area_in, width_in, height_in):
+    def __init__(self, X_in, Y_in, area_in, width_in, height_in, boxX_in, boxY_in):
         self.X = (X_in)
         self.Y = (Y_in)
         self.boundedArea = (area_in)
         self.width = (width_in)
         self.height = (height_in)
+        self.boxX = (boxX_in)
+        self.boxY = (boxY_in)
         